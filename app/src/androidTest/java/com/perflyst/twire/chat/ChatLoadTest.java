@@ -0,0 +1,332 @@
+package com.perflyst.twire.chat;
+
+import static org.junit.Assert.assertTrue;
+
+import android.app.Activity;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Debug;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.ViewGroup;
+
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.rule.ActivityTestRule;
+
+import com.github.twitch4j.chat.events.roomstate.ChannelStatesEvent;
+import com.github.twitch4j.client.websocket.domain.WebsocketConnectionState;
+import com.perflyst.twire.activities.settings.SettingsTwitchChatActivity;
+import com.perflyst.twire.adapters.ChatAdapter;
+import com.perflyst.twire.model.ChatMessage;
+import com.perflyst.twire.model.Emote;
+import com.perflyst.twire.model.UserInfo;
+import com.perflyst.twire.utils.Execute;
+import com.perflyst.twire.views.recyclerviews.ChatRecyclerView;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays chat from a local IRC server through the whole chat path, from the WebSocket to a drawn RecyclerView,
+ * and logs how long every stage took, how much was allocated and how many frames were dropped.
+ * Fast chat collapses repeated messages and limits how many are shown, so only the shown messages are timed.
+ * The last message is from a moderator, which is always shown, and marks the end of the run.
+ * <p>
+ * The length of every run can be set with the {@code chatLoadSeconds} instrumentation argument,
+ * and {@code chatLoadRecording} can point at a file of raw IRC lines on the device to replay instead of random messages.
+ */
+public class ChatLoadTest {
+    private static final String TAG = "ChatLoadTest";
+    private static final String[] STAGES = {"decode", "render", "deliver", "display", "total"};
+
+    @Rule
+    public final ActivityTestRule<SettingsTwitchChatActivity> activityRule = new ActivityTestRule<>(SettingsTwitchChatActivity.class);
+
+    @Test
+    public void rate50() throws Exception {
+        run(50);
+    }
+
+    @Test
+    public void rate200() throws Exception {
+        run(200);
+    }
+
+    @Test
+    public void rate500() throws Exception {
+        run(500);
+    }
+
+    private void run(int messagesPerSecond) throws Exception {
+        Bundle arguments = InstrumentationRegistry.getArguments();
+        int seconds = Integer.parseInt(arguments.getString("chatLoadSeconds", "10"));
+        String recording = arguments.getString("chatLoadRecording");
+        int count = messagesPerSecond * seconds;
+
+        FakeIrcServer server = new FakeIrcServer();
+        server.start();
+
+        Pipeline pipeline = new Pipeline(count);
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> pipeline.attach(activityRule.getActivity()));
+
+        ChatManager chatManager = new ChatManager(new UserInfo("1", "twireloadtest", "TwireLoadTest"), null, 0, pipeline, server.getUrl());
+        try {
+            Execute.background(chatManager);
+            assertTrue("Chat didn't join the channel", server.awaitJoin(15, TimeUnit.SECONDS));
+            // The emotes are loaded from the network as usual, run with whatever arrived in time.
+            pipeline.emotesLoaded.await(10, TimeUnit.SECONDS);
+
+            ChatTraffic traffic = recording != null ? ChatTraffic.recorded(readLines(recording)) : ChatTraffic.synthetic(pipeline.getCustomEmotes(), 1);
+            String[] lines = traffic.lines(count, server.getChannel());
+            lines[count - 1] = ChatTraffic.moderatorLine(count - 1, server.getChannel());
+
+            InstrumentationRegistry.getInstrumentation().runOnMainSync(pipeline::startFrames);
+            long allocatedBefore = getAllocatedBytes();
+            long start = System.nanoTime();
+
+            server.replay(lines, messagesPerSecond, pipeline.sentAt);
+            boolean complete = pipeline.finished.await(30, TimeUnit.SECONDS);
+
+            long elapsed = System.nanoTime() - start;
+            long allocated = getAllocatedBytes() - allocatedBefore;
+            InstrumentationRegistry.getInstrumentation().runOnMainSync(pipeline::stopFrames);
+
+            report(messagesPerSecond, pipeline, elapsed, allocated);
+            assertTrue("The last message wasn't shown", complete);
+        } finally {
+            chatManager.stop();
+            server.shutdown();
+        }
+    }
+
+    private static void report(int messagesPerSecond, Pipeline pipeline, long elapsedNanos, long allocatedBytes) {
+        Log.i(TAG, String.format(Locale.ROOT, "%d messages/s, %d messages in %.1f s, %d shown, %d repeats collapsed", messagesPerSecond,
+                pipeline.sentAt.length, elapsedNanos / 1e9, pipeline.shown, pipeline.repeats));
+
+        long[][] stages = pipeline.getStageLatencies();
+        for (int i = 0; i < STAGES.length; i++) {
+            long[] latencies = stages[i];
+            Arrays.sort(latencies);
+            Log.i(TAG, String.format(Locale.ROOT, "%-8s p50 %7.2f ms, p90 %7.2f ms, p99 %7.2f ms, max %7.2f ms", STAGES[i],
+                    percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99), percentile(latencies, 100)));
+        }
+
+        if (allocatedBytes >= 0)
+            Log.i(TAG, String.format(Locale.ROOT, "allocated %.1f MB/s", allocatedBytes / 1e6 / (elapsedNanos / 1e9)));
+
+        Log.i(TAG, String.format(Locale.ROOT, "dropped %d of %d frames", pipeline.droppedFrames, pipeline.frames + pipeline.droppedFrames));
+    }
+
+    private static double percentile(long[] sortedNanos, int percentile) {
+        if (sortedNanos.length == 0) return 0;
+
+        int index = (int) Math.ceil(percentile / 100.0 * sortedNanos.length) - 1;
+        return sortedNanos[Math.max(0, index)] / 1e6;
+    }
+
+    /**
+     * @return The bytes allocated by the process so far, or -1 if the runtime doesn't say
+     */
+    private static long getAllocatedBytes() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return -1;
+
+        String allocated = Debug.getRuntimeStat("art.gc.bytes-allocated");
+        return allocated != null ? Long.parseLong(allocated) : -1;
+    }
+
+    private static List<String> readLines(String path) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(path))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Stands in for the chat fragment, and records when every message passes each stage.
+     */
+    private static class Pipeline implements ChatManager.ChatCallback, Choreographer.FrameCallback {
+        private final long[] sentAt;
+        private final long[] decodedAt;
+        private final long[] renderedAt;
+        private final long[] deliveredAt;
+        private final long[] displayedAt;
+        private final CountDownLatch finished = new CountDownLatch(1);
+        // Every emote provider reports once.
+        private final CountDownLatch emotesLoaded = new CountDownLatch(6);
+        private volatile List<String> customEmotes = new ArrayList<>();
+
+        // Only used on the main thread
+        private ChatRecyclerView recyclerView;
+        private ChatAdapter adapter;
+        private final List<ChatMessage> pending = new ArrayList<>();
+        private long frameIntervalNanos;
+        private long lastFrameNanos;
+        private boolean countingFrames;
+        private int frames;
+        private int droppedFrames;
+        private int shown;
+        private int repeats;
+
+        private Pipeline(int count) {
+            sentAt = new long[count];
+            decodedAt = new long[count];
+            renderedAt = new long[count];
+            deliveredAt = new long[count];
+            displayedAt = new long[count];
+        }
+
+        private void attach(Activity activity) {
+            recyclerView = new ChatRecyclerView(activity);
+            adapter = new ChatAdapter(recyclerView, activity, (formattedString, userName, message) -> {
+            });
+
+            LinearLayoutManager layoutManager = new LinearLayoutManager(activity);
+            layoutManager.setStackFromEnd(true);
+            recyclerView.setAdapter(adapter);
+            recyclerView.setLayoutManager(layoutManager);
+            recyclerView.setItemAnimator(null);
+            activity.addContentView(recyclerView, new ViewGroup.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+
+            // The messages delivered before a draw are on screen after it.
+            recyclerView.getViewTreeObserver().addOnDrawListener(() -> {
+                long now = System.nanoTime();
+                for (ChatMessage message : pending) {
+                    int sequence = ChatTraffic.sequenceOf(message.getId());
+                    displayedAt[sequence] = now;
+                    shown++;
+                    if (sequence == displayedAt.length - 1) finished.countDown();
+                }
+                pending.clear();
+            });
+
+            frameIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / activity.getWindowManager().getDefaultDisplay().getRefreshRate());
+        }
+
+        private List<String> getCustomEmotes() {
+            return customEmotes;
+        }
+
+        private void startFrames() {
+            countingFrames = true;
+            lastFrameNanos = 0;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        private void stopFrames() {
+            countingFrames = false;
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (!countingFrames) return;
+
+            if (lastFrameNanos != 0) {
+                long missed = Math.round((double) (frameTimeNanos - lastFrameNanos) / frameIntervalNanos) - 1;
+                if (missed > 0) droppedFrames += (int) missed;
+                frames++;
+            }
+
+            lastFrameNanos = frameTimeNanos;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        /**
+         * @return The latencies of every stage in nanoseconds, for the messages that were shown
+         */
+        private long[][] getStageLatencies() {
+            List<long[]> shown = new ArrayList<>();
+            for (int i = 0; i < sentAt.length; i++) {
+                if (displayedAt[i] != 0)
+                    shown.add(new long[]{
+                            decodedAt[i] - sentAt[i],
+                            renderedAt[i] - decodedAt[i],
+                            deliveredAt[i] - renderedAt[i],
+                            displayedAt[i] - deliveredAt[i],
+                            displayedAt[i] - sentAt[i]
+                    });
+            }
+
+            long[][] stages = new long[STAGES.length][shown.size()];
+            for (int i = 0; i < shown.size(); i++) {
+                for (int stage = 0; stage < STAGES.length; stage++) {
+                    stages[stage][i] = shown.get(i)[stage];
+                }
+            }
+            return stages;
+        }
+
+        @Override
+        public void onPrepareMessage(ChatMessage message) {
+            int sequence = ChatTraffic.sequenceOf(message.getId());
+            if (sequence == -1) return;
+
+            decodedAt[sequence] = System.nanoTime();
+            adapter.prerender(message);
+            renderedAt[sequence] = System.nanoTime();
+        }
+
+        @Override
+        public void onMessages(List<ChatMessage> messages) {
+            long now = System.nanoTime();
+            for (ChatMessage message : messages) {
+                int sequence = ChatTraffic.sequenceOf(message.getId());
+                if (sequence == -1) continue;
+
+                deliveredAt[sequence] = now;
+                pending.add(message);
+            }
+
+            adapter.addAll(messages);
+        }
+
+        @Override
+        public void onMessagesChanged(List<ChatMessage> messages) {
+            repeats += messages.size();
+            adapter.refresh(messages);
+        }
+
+        @Override
+        public void onCustomEmoteIdFetched(List<Emote> channel, List<Emote> global) {
+            List<String> keywords = new ArrayList<>();
+            for (Emote emote : global) keywords.add(emote.keyword);
+            for (Emote emote : channel) keywords.add(emote.keyword);
+            customEmotes = keywords;
+            emotesLoaded.countDown();
+        }
+
+        @Override
+        public void onClear(String target) {
+        }
+
+        @Override
+        public void onClearUser(String userId) {
+        }
+
+        @Override
+        public void onConnectionChanged(WebsocketConnectionState state) {
+        }
+
+        @Override
+        public void onRoomStateChange(ChannelStatesEvent state) {
+        }
+
+        @Override
+        public void onEmoteSetsFetched(List<String> emoteSets) {
+        }
+    }
+}
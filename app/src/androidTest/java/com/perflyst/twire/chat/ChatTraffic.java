@@ -0,0 +1,141 @@
+package com.perflyst.twire.chat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * IRC lines for {@link FakeIrcServer} to replay. Every line gets a message id that holds its sequence number,
+ * so the harness can find out when the message it became was sent.
+ */
+abstract class ChatTraffic {
+    private static final String ID_PREFIX = "00000000-0000-0000-0000-";
+    private static final Pattern ID_TAG = Pattern.compile("(^@|;)id=[^; ]*");
+    private static final Pattern CHANNEL = Pattern.compile(" PRIVMSG #[^ ]+ ");
+
+    abstract String line(int sequence, String channel);
+
+    String[] lines(int count, String channel) {
+        String[] lines = new String[count];
+        for (int i = 0; i < count; i++) {
+            lines[i] = line(i, channel);
+        }
+        return lines;
+    }
+
+    /**
+     * A message from a moderator, which is always shown even when chat collapses messages.
+     */
+    static String moderatorLine(int sequence, String channel) {
+        return "@badge-info=;badges=moderator/1;color=#00FF00;display-name=Moderator;emotes=;id=" + messageId(sequence)
+                + ";mod=1;room-id=1;subscriber=0;tmi-sent-ts=" + System.currentTimeMillis() + ";turbo=0;user-id=99;user-type=mod"
+                + " :moderator!moderator@moderator.tmi.twitch.tv PRIVMSG #" + channel + " :That's all";
+    }
+
+    static String messageId(int sequence) {
+        return ID_PREFIX + String.format(Locale.ROOT, "%012d", sequence);
+    }
+
+    /**
+     * @return The sequence number in the message id, or -1 if the message wasn't replayed
+     */
+    static int sequenceOf(String messageId) {
+        if (messageId == null || !messageId.startsWith(ID_PREFIX)) return -1;
+        return Integer.parseInt(messageId.substring(ID_PREFIX.length()));
+    }
+
+    /**
+     * Random messages from a few thousand chatters, with Twitch emotes, the given custom emotes and badges.
+     * Like a hype moment, some of them are the same few spam messages.
+     */
+    static ChatTraffic synthetic(List<String> customEmotes, long seed) {
+        return new Synthetic(customEmotes, seed);
+    }
+
+    /**
+     * Replays the PRIVMSG lines of a recorded chat in a loop, with their id and channel replaced.
+     */
+    static ChatTraffic recorded(List<String> recording) {
+        List<String> messages = new ArrayList<>();
+        for (String line : recording) {
+            if (line.startsWith("@") && line.contains(" PRIVMSG #") && ID_TAG.matcher(line).find())
+                messages.add(line);
+        }
+
+        if (messages.isEmpty())
+            throw new IllegalArgumentException("The recording has no tagged PRIVMSG lines");
+
+        return new ChatTraffic() {
+            @Override
+            String line(int sequence, String channel) {
+                String line = messages.get(sequence % messages.size());
+                line = ID_TAG.matcher(line).replaceFirst("$1id=" + messageId(sequence));
+                return CHANNEL.matcher(line).replaceFirst(" PRIVMSG #" + channel + " ");
+            }
+        };
+    }
+
+    private static class Synthetic extends ChatTraffic {
+        private static final int CHATTERS = 2000;
+        private static final String[] TWITCH_EMOTES = {"Kappa", "PogChamp", "LUL", "BibleThump", "Kreygasm"};
+        private static final String[] TWITCH_EMOTE_IDS = {"25", "305954156", "425618", "86", "41"};
+        private static final String[] BADGES = {"", "", "", "subscriber/12", "subscriber/3,sub-gifter/5", "moderator/1", "vip/1", "premium/1"};
+        private static final String[] SPAM = {"W", "W W W", "LETS GOOOO", "GG", "gg", "Clap Clap"};
+
+        private final List<String> customEmotes;
+        private final Random random;
+
+        private Synthetic(List<String> customEmotes, long seed) {
+            this.customEmotes = customEmotes;
+            this.random = new Random(seed);
+        }
+
+        @Override
+        String line(int sequence, String channel) {
+            // A few chatters write most of the messages.
+            int chatter = random.nextInt(random.nextInt(CHATTERS) + 1);
+            String login = "chatter" + chatter;
+
+            StringBuilder body = new StringBuilder();
+            StringBuilder emotes = new StringBuilder();
+            int words = 1 + random.nextInt(15);
+            if (random.nextInt(4) == 0) {
+                body.append(SPAM[random.nextInt(SPAM.length)]);
+                words = 0;
+            }
+
+            for (int i = 0; i < words; i++) {
+                if (i > 0) body.append(' ');
+
+                int kind = random.nextInt(8);
+                if (kind == 0) {
+                    int emote = random.nextInt(TWITCH_EMOTES.length);
+                    if (emotes.length() > 0) emotes.append('/');
+                    emotes.append(TWITCH_EMOTE_IDS[emote]).append(':')
+                            .append(body.length()).append('-').append(body.length() + TWITCH_EMOTES[emote].length() - 1);
+                    body.append(TWITCH_EMOTES[emote]);
+                } else if (kind == 1 && !customEmotes.isEmpty()) {
+                    body.append(customEmotes.get(random.nextInt(customEmotes.size())));
+                } else if (kind == 2) {
+                    body.append("@chatter").append(random.nextInt(CHATTERS));
+                } else {
+                    for (int length = 2 + random.nextInt(8); length > 0; length--) {
+                        body.append((char) ('a' + random.nextInt(26)));
+                    }
+                }
+            }
+
+            return "@badge-info=;badges=" + BADGES[random.nextInt(BADGES.length)]
+                    + ";color=#" + String.format(Locale.ROOT, "%06X", random.nextInt(0x1000000))
+                    + ";display-name=Chatter" + chatter
+                    + ";emotes=" + emotes
+                    + ";first-msg=0;flags=;id=" + messageId(sequence)
+                    + ";mod=0;returning-chatter=0;room-id=1;subscriber=0"
+                    + ";tmi-sent-ts=" + System.currentTimeMillis()
+                    + ";turbo=0;user-id=" + (100000 + chatter) + ";user-type="
+                    + " :" + login + "!" + login + "@" + login + ".tmi.twitch.tv PRIVMSG #" + channel + " :" + body;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.perflyst.twire.chat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.util.Log;
+
+import com.perflyst.twire.model.ChatMessage;
+import com.perflyst.twire.model.Emote;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class EmoteMatcherBenchmark {
+    private static final int KEYWORDS = 5000;
+    private static final int MESSAGES = 2000;
+    private static final int ROUNDS = 20;
+
+    private final Map<String, Emote> keywordToEmote = new HashMap<>();
+    private final String[] messages = new String[MESSAGES];
+
+    public EmoteMatcherBenchmark() {
+        Random random = new Random(1);
+        String[] keywords = new String[KEYWORDS];
+        for (int i = 0; i < KEYWORDS; i++) {
+            keywords[i] = randomWord(random) + i;
+            keywordToEmote.put(keywords[i], new Emote(keywords[i]));
+        }
+
+        for (int i = 0; i < MESSAGES; i++) {
+            StringBuilder builder = new StringBuilder();
+            int words = 3 + random.nextInt(15);
+            for (int j = 0; j < words; j++) {
+                if (j > 0) builder.append(random.nextInt(10) == 0 ? "  " : " ");
+                builder.append(random.nextInt(4) == 0 ? keywords[random.nextInt(KEYWORDS)] : randomWord(random));
+            }
+            messages[i] = builder.toString();
+        }
+    }
+
+    private static String randomWord(Random random) {
+        char[] word = new char[2 + random.nextInt(8)];
+        for (int i = 0; i < word.length; i++) {
+            word[i] = (char) ('A' + random.nextInt(58));
+        }
+        return new String(word);
+    }
+
+    @Test
+    public void matchesSplitImplementation() {
+        EmoteMatcher matcher = EmoteMatcher.compile(keywordToEmote);
+        for (String message : messages) {
+            Map<Integer, Emote> found = new HashMap<>();
+            matcher.findEmotes(message, found);
+            assertEquals(ChatMessage.getEmotesFromMessage(message, keywordToEmote), found);
+        }
+    }
+
+    @Test
+    public void emptyMatcher() {
+        Map<Integer, Emote> found = new HashMap<>();
+        EmoteMatcher.EMPTY.findEmotes("Kappa PogChamp", found);
+        assertTrue(found.isEmpty());
+    }
+
+    @Test
+    public void benchmark() {
+        EmoteMatcher matcher = EmoteMatcher.compile(keywordToEmote);
+        int[] counter = new int[1];
+
+        long splitTime = Long.MAX_VALUE;
+        long matcherTime = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (String message : messages) {
+                counter[0] += ChatMessage.getEmotesFromMessage(message, keywordToEmote).size();
+            }
+            splitTime = Math.min(splitTime, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (String message : messages) {
+                matcher.scan(message, (position, emote) -> counter[0]++);
+            }
+            matcherTime = Math.min(matcherTime, System.nanoTime() - start);
+        }
+
+        Log.i("EmoteMatcherBenchmark", String.format("split: %d ns/message, matcher: %d ns/message (%d matches)",
+                splitTime / MESSAGES, matcherTime / MESSAGES, counter[0]));
+    }
+}
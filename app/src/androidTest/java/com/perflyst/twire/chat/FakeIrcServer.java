@@ -0,0 +1,100 @@
+package com.perflyst.twire.chat;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+/**
+ * A local WebSocket server that speaks just enough Twitch IRC for chat to join a channel,
+ * and then replays traffic to it at a fixed rate.
+ */
+class FakeIrcServer {
+    // Twitch4j reconnects if the connection drops, every connection needs its own upgrade.
+    private static final int CONNECTIONS = 4;
+
+    private final MockWebServer server = new MockWebServer();
+    private final CountDownLatch joined = new CountDownLatch(1);
+    private volatile WebSocket socket;
+    private volatile String channel;
+
+    void start() throws IOException {
+        for (int i = 0; i < CONNECTIONS; i++) {
+            server.enqueue(new MockResponse().withWebSocketUpgrade(new IrcListener()));
+        }
+        server.start();
+    }
+
+    /**
+     * @return The base URL to give to {@link ChatManager}
+     */
+    String getUrl() {
+        return "ws://" + server.getHostName() + ":" + server.getPort();
+    }
+
+    boolean awaitJoin(long timeout, TimeUnit unit) throws InterruptedException {
+        return joined.await(timeout, unit);
+    }
+
+    String getChannel() {
+        return channel;
+    }
+
+    /**
+     * Sends the lines, paced to the rate, on the calling thread.
+     *
+     * @param sentAt Filled with the {@link System#nanoTime()} every line was sent at
+     */
+    void replay(String[] lines, int messagesPerSecond, long[] sentAt) {
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / messagesPerSecond;
+        long start = System.nanoTime();
+        for (int i = 0; i < lines.length; i++) {
+            long due = start + i * intervalNanos;
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            sentAt[i] = System.nanoTime();
+            socket.send(lines[i]);
+        }
+    }
+
+    void shutdown() throws IOException {
+        server.shutdown();
+    }
+
+    private class IrcListener extends WebSocketListener {
+        @Override
+        public void onOpen(@NonNull WebSocket webSocket, @NonNull Response response) {
+            socket = webSocket;
+        }
+
+        @Override
+        public void onMessage(@NonNull WebSocket webSocket, @NonNull String text) {
+            // A frame can hold several commands.
+            for (String command : text.split("\r?\n")) {
+                if (command.startsWith("PING")) {
+                    webSocket.send("PONG :tmi.twitch.tv");
+                } else if (command.startsWith("NICK ")) {
+                    String nick = command.substring(5).trim();
+                    webSocket.send(":tmi.twitch.tv 001 " + nick + " :Welcome, GLHF!\r\n"
+                            + ":tmi.twitch.tv 376 " + nick + " :>");
+                } else if (command.startsWith("JOIN #")) {
+                    channel = command.substring(6).trim();
+                    webSocket.send(":justinfan!justinfan@justinfan.tmi.twitch.tv JOIN #" + channel + "\r\n"
+                            + "@emote-only=0;followers-only=-1;r9k=0;room-id=1;slow=0;subs-only=0 :tmi.twitch.tv ROOMSTATE #" + channel);
+                    joined.countDown();
+                }
+            }
+        }
+    }
+}
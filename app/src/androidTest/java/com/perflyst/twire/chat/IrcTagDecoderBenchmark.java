@@ -0,0 +1,200 @@
+package com.perflyst.twire.chat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Build;
+import android.os.Debug;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.perflyst.twire.model.Badge;
+import com.perflyst.twire.model.Emote;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class IrcTagDecoderBenchmark {
+    private static final int MESSAGES = 2000;
+    private static final int ROUNDS = 20;
+    private static final String[] KEYWORDS = {"Kappa", "PogChamp", "LUL", "BibleThump", "Kreygasm", "NotLikeThis", "ResidentSleeper"};
+    private static final String[] IDS = {"25", "305954156", "425618", "86", "41", "58765", "emotesv2_1a2b3c4d5e6f"};
+
+    private static final Pattern emotePattern = Pattern.compile("(\\w+):((?:\\d+-\\d+,?)+)");
+
+    private final String[] messages = new String[MESSAGES];
+    private final String[] tags = new String[MESSAGES];
+
+    public IrcTagDecoderBenchmark() {
+        Random random = new Random(1);
+        for (int i = 0; i < MESSAGES; i++) {
+            StringBuilder message = new StringBuilder();
+            Map<Integer, StringBuilder> positions = new HashMap<>();
+            int words = 1 + random.nextInt(15);
+            for (int j = 0; j < words; j++) {
+                if (j > 0) message.append(' ');
+
+                if (random.nextInt(3) == 0) {
+                    int emote = random.nextInt(KEYWORDS.length);
+                    StringBuilder ranges = positions.computeIfAbsent(emote, key -> new StringBuilder());
+                    if (ranges.length() > 0) ranges.append(',');
+                    ranges.append(message.length()).append('-').append(message.length() + KEYWORDS[emote].length() - 1);
+                    message.append(KEYWORDS[emote]);
+                } else {
+                    for (int length = 2 + random.nextInt(8); length > 0; length--) {
+                        message.append((char) ('a' + random.nextInt(26)));
+                    }
+                }
+            }
+
+            StringBuilder tag = new StringBuilder();
+            for (Map.Entry<Integer, StringBuilder> entry : positions.entrySet()) {
+                if (tag.length() > 0) tag.append('/');
+                tag.append(IDS[entry.getKey()]).append(':').append(entry.getValue());
+            }
+
+            messages[i] = message.toString();
+            tags[i] = tag.toString();
+        }
+    }
+
+    /**
+     * The split based implementation that the decoder replaced.
+     */
+    private static Map<Integer, Emote> findTwitchEmotes(String line, String message) {
+        Map<Integer, Emote> emotes = new HashMap<>();
+        Matcher emoteMatcher = emotePattern.matcher(line);
+
+        while (emoteMatcher.find()) {
+            String emoteId = emoteMatcher.group(1);
+            String[] stringPositions = emoteMatcher.group(2).split(",");
+            int[] positions = new int[stringPositions.length];
+            String keyword = "";
+            for (int i = 0; i < stringPositions.length; i++) {
+                String[] range = stringPositions[i].split("-");
+                int start = Integer.parseInt(range[0]);
+
+                positions[i] = start;
+
+                if (i == 0) {
+                    int end = Integer.parseInt(range[1]);
+                    keyword = message.substring(start, end + 1);
+                }
+            }
+
+            for (int position : positions) {
+                emotes.put(position, Emote.Twitch(keyword, emoteId));
+            }
+        }
+
+        return emotes;
+    }
+
+    @Test
+    public void matchesSplitImplementation() {
+        for (int i = 0; i < MESSAGES; i++) {
+            Map<Integer, Emote> decoded = new HashMap<>();
+            IrcTagDecoder.decodeEmotes(tags[i], messages[i], decoded);
+            assertEquals(findTwitchEmotes(tags[i], messages[i]), decoded);
+        }
+    }
+
+    @Test
+    public void codePointPositions() {
+        // Twitch counts the emoji as one position, it's two chars in the string.
+        String message = "😀 Kappa hi Kappa";
+        Map<Integer, Emote> decoded = new HashMap<>();
+        IrcTagDecoder.decodeEmotes("25:2-6,11-15", message, decoded);
+
+        assertEquals(2, decoded.size());
+        assertEquals("Kappa", decoded.get(3).keyword);
+        assertSame(decoded.get(3), decoded.get(12));
+    }
+
+    @Test
+    public void malformedTags() {
+        Map<Integer, Emote> decoded = new HashMap<>();
+        IrcTagDecoder.decodeEmotes("25:", "Kappa", decoded);
+        IrcTagDecoder.decodeEmotes("25:0-", "Kappa", decoded);
+        IrcTagDecoder.decodeEmotes(":0-4", "Kappa", decoded);
+        IrcTagDecoder.decodeEmotes("25:0-40", "Kappa", decoded);
+        assertTrue(decoded.isEmpty());
+    }
+
+    @Test
+    public void internsEmotes() {
+        assertSame(IrcTagDecoder.twitchEmote("25", "Kappa"), IrcTagDecoder.twitchEmote("25", "Kappa"));
+    }
+
+    @Test
+    public void sharedIdKeepsEachKeyword() {
+        // Id 1 is both :-) and :), the span of each has to cover its own text.
+        Map<Integer, Emote> decoded = new HashMap<>();
+        IrcTagDecoder.decodeEmotes("1:0-2", ":-) hi", decoded);
+        assertEquals(":-)", decoded.get(0).keyword);
+
+        decoded.clear();
+        IrcTagDecoder.decodeEmotes("1:3-4", "hi :)", decoded);
+        assertEquals(":)", decoded.get(3).keyword);
+    }
+
+    @Test
+    public void badges() {
+        List<Badge> badges = IrcTagDecoder.decodeBadges("moderator/1,subscriber/12", (set, version) -> new Badge(set + "/" + version, new SparseArray<>()));
+        assertEquals(2, badges.size());
+        assertEquals("moderator/1", badges.get(0).name);
+        assertEquals("subscriber/12", badges.get(1).name);
+
+        assertTrue(IrcTagDecoder.hasBadge("subscriber/12,moderator/1", "moderator"));
+        assertFalse(IrcTagDecoder.hasBadge("supermoderator/1", "moderator"));
+        assertFalse(IrcTagDecoder.hasBadge("", "moderator"));
+    }
+
+    @Test
+    public void benchmark() {
+        int[] counter = new int[1];
+
+        long splitTime = Long.MAX_VALUE;
+        long decoderTime = Long.MAX_VALUE;
+        long splitAllocated = Long.MAX_VALUE;
+        long decoderAllocated = Long.MAX_VALUE;
+        Map<Integer, Emote> decoded = new HashMap<>();
+        for (int round = 0; round < ROUNDS; round++) {
+            long allocated = getAllocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < MESSAGES; i++) {
+                counter[0] += findTwitchEmotes(tags[i], messages[i]).size();
+            }
+            splitTime = Math.min(splitTime, System.nanoTime() - start);
+            splitAllocated = Math.min(splitAllocated, getAllocatedBytes() - allocated);
+
+            allocated = getAllocatedBytes();
+            start = System.nanoTime();
+            for (int i = 0; i < MESSAGES; i++) {
+                decoded.clear();
+                IrcTagDecoder.decodeEmotes(tags[i], messages[i], decoded);
+                counter[0] += decoded.size();
+            }
+            decoderTime = Math.min(decoderTime, System.nanoTime() - start);
+            decoderAllocated = Math.min(decoderAllocated, getAllocatedBytes() - allocated);
+        }
+
+        Log.i("IrcTagDecoderBenchmark", String.format("split: %d ns/message %d B/message, decoder: %d ns/message %d B/message (%d emotes)",
+                splitTime / MESSAGES, splitAllocated / MESSAGES, decoderTime / MESSAGES, decoderAllocated / MESSAGES, counter[0]));
+    }
+
+    private static long getAllocatedBytes() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return 0;
+
+        String allocated = Debug.getRuntimeStat("art.gc.bytes-allocated");
+        return allocated != null ? Long.parseLong(allocated) : 0;
+    }
+}
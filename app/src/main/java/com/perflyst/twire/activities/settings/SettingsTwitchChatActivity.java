@@ -1,12 +1,14 @@
 package com.perflyst.twire.activities.settings;
 
 import android.os.Bundle;
+import android.text.InputType;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.CheckedTextView;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.StringRes;
 import androidx.appcompat.widget.Toolbar;
 
 import com.afollestad.materialdialogs.MaterialDialog;
@@ -17,8 +19,10 @@ import com.perflyst.twire.misc.Utils;
 import com.perflyst.twire.service.DialogService;
 import com.perflyst.twire.service.Settings;
 
+import java.util.function.Consumer;
+
 public class SettingsTwitchChatActivity extends ThemeActivity {
-    private TextView emoteSizeSummary, messageSizeSummary, chatLandscapeWidthSummary, chatLandscapeToggleSummary, chatLandscapeSwipeToShowSummary, chat_enable_ssl_summary, chat_enable_account_connect_summary, chat_enable_emote_bbtv_summary, chat_enable_emote_ffz_summary, chat_enable_emote_seventv_summary;
+    private TextView emoteSizeSummary, messageSizeSummary, scrollbackSummary, highlightWordsSummary, ignoredUsersSummary, filteredPhrasesSummary, liteModeSummary, chatLandscapeWidthSummary, chatLandscapeToggleSummary, chatLandscapeSwipeToShowSummary, chat_enable_ssl_summary, chat_enable_account_connect_summary, chat_enable_emote_bbtv_summary, chat_enable_emote_ffz_summary, chat_enable_emote_seventv_summary;
     private CheckedTextView chatLandscapeToggle, chatSwipeToShowToggle, chat_enable_ssl, chat_enable_account_connect, chat_enable_emote_bbtv, chat_enable_emote_ffz, chat_enable_emote_seventv;
 
     @Override
@@ -35,6 +39,11 @@ public class SettingsTwitchChatActivity extends ThemeActivity {
 
         emoteSizeSummary = findViewById(R.id.chat_emote_size_summary);
         messageSizeSummary = findViewById(R.id.message_size_summary);
+        scrollbackSummary = findViewById(R.id.chat_scrollback_summary);
+        highlightWordsSummary = findViewById(R.id.chat_highlight_words_summary);
+        ignoredUsersSummary = findViewById(R.id.chat_ignored_users_summary);
+        filteredPhrasesSummary = findViewById(R.id.chat_filtered_phrases_summary);
+        liteModeSummary = findViewById(R.id.chat_lite_mode_summary);
         chatLandscapeWidthSummary = findViewById(R.id.chat_landscape_summary);
         chatLandscapeToggleSummary = findViewById(R.id.chat_landscape_enable_summary);
         chatLandscapeSwipeToShowSummary = findViewById(R.id.chat_landscape_swipe_summary);
@@ -57,6 +66,11 @@ public class SettingsTwitchChatActivity extends ThemeActivity {
 
         binding.emoteSizeButton.setOnClickListener(this::onClickEmoteSize);
         binding.messageSizeButton.setOnClickListener(this::onClickMessageSize);
+        binding.scrollbackButton.setOnClickListener(this::onClickChatScrollback);
+        binding.highlightWordsButton.setOnClickListener(this::onClickChatHighlightWords);
+        binding.ignoredUsersButton.setOnClickListener(this::onClickChatIgnoredUsers);
+        binding.filteredPhrasesButton.setOnClickListener(this::onClickChatFilteredPhrases);
+        binding.liteModeButton.setOnClickListener(this::onClickChatLiteMode);
         binding.landscapeEnableButton.setOnClickListener(this::onClickChatLandscapeEnable);
         binding.landscapeSwipeButton.setOnClickListener(this::onClickChatLandscapeSwipeable);
         binding.landscapeWidthButton.setOnClickListener(this::onClickChatLandScapeWidth);
@@ -72,10 +86,28 @@ public class SettingsTwitchChatActivity extends ThemeActivity {
         summary.setText(isEnabled ? R.string.enabled : R.string.disabled);
     }
 
+    private void updateRulesSummary(TextView summary, String rules) {
+        int entries = 0;
+        for (String line : rules.split("\n")) {
+            if (!line.trim().isEmpty()) entries++;
+        }
+
+        if (entries == 0) {
+            summary.setText(R.string.chat_rules_none);
+        } else {
+            summary.setText(getString(R.string.chat_rules_summary, entries));
+        }
+    }
+
     private void updateSummaries() {
         String[] sizes = getResources().getStringArray(R.array.ChatSize);
         emoteSizeSummary.setText(sizes[Settings.getEmoteSize() - 1]);
         messageSizeSummary.setText(sizes[Settings.getMessageSize() - 1]);
+        scrollbackSummary.setText(getString(R.string.chat_scrollback_summary, Settings.getChatScrollback()));
+        updateRulesSummary(highlightWordsSummary, Settings.getChatHighlightWords());
+        updateRulesSummary(ignoredUsersSummary, Settings.getChatIgnoredUsers());
+        updateRulesSummary(filteredPhrasesSummary, Settings.getChatFilteredPhrases());
+        liteModeSummary.setText(getResources().getStringArray(R.array.ChatLiteMode)[Settings.getChatLiteMode()]);
         Utils.setPercent(chatLandscapeWidthSummary, Settings.getChatLandscapeWidth() / 100f);
 
         // Chat enabled in landscape
@@ -124,6 +156,58 @@ public class SettingsTwitchChatActivity extends ThemeActivity {
         dialog.show();
     }
 
+    public void onClickChatScrollback(View _view) {
+        final int scrollback = Settings.getChatScrollback();
+
+        DialogService.getSliderDialog(
+                this,
+                (dialog, which) -> {
+                    Settings.setChatScrollback(scrollback);
+                    updateSummaries();
+                },
+                (view, fromUser, oldPos, newPos, oldValue, newValue) -> {
+                    Settings.setChatScrollback(newValue);
+                    updateSummaries();
+                },
+                scrollback,
+                100,
+                2000,
+                getString(R.string.chat_scrollback_dialog)
+        ).show();
+    }
+
+    public void onClickChatHighlightWords(View _view) {
+        showRulesDialog(R.string.chat_highlight_words, Settings.getChatHighlightWords(), Settings::setChatHighlightWords);
+    }
+
+    public void onClickChatIgnoredUsers(View _view) {
+        showRulesDialog(R.string.chat_ignored_users, Settings.getChatIgnoredUsers(), Settings::setChatIgnoredUsers);
+    }
+
+    public void onClickChatFilteredPhrases(View _view) {
+        showRulesDialog(R.string.chat_filtered_phrases, Settings.getChatFilteredPhrases(), Settings::setChatFilteredPhrases);
+    }
+
+    public void onClickChatLiteMode(View _view) {
+        DialogService.getChooseDialog(this, R.string.chat_lite_mode, R.array.ChatLiteMode, Settings.getChatLiteMode(), (dialog, itemView, which, text) -> {
+            Settings.setChatLiteMode(which);
+            updateSummaries();
+            return true;
+        }).show();
+    }
+
+    private void showRulesDialog(@StringRes int title, String rules, Consumer<String> setter) {
+        DialogService.getBaseThemedDialog(this)
+                .title(title)
+                .content(R.string.chat_rules_hint)
+                .inputType(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_FLAG_MULTI_LINE)
+                .input(null, rules, true, (dialog, input) -> {
+                    setter.accept(input.toString());
+                    updateSummaries();
+                })
+                .show();
+    }
+
     public void onClickChatLandscapeEnable(View _view) {
         Settings.setChatInLandscapeEnabled(!Settings.isChatInLandscapeEnabled());
         updateSummaries();
@@ -1,40 +1,34 @@
 package com.perflyst.twire.adapters;
 
-import static com.perflyst.twire.misc.Utils.appendSpan;
-
 import android.app.Activity;
-import android.graphics.Color;
 import android.graphics.Typeface;
-import android.net.Uri;
+import android.text.SpannableString;
 import android.text.SpannableStringBuilder;
 import android.text.Spanned;
 import android.text.method.LinkMovementMethod;
-import android.text.style.ClickableSpan;
-import android.text.style.ForegroundColorSpan;
 import android.text.style.StyleSpan;
 import android.util.Patterns;
 import android.util.TypedValue;
-import android.view.HapticFeedbackConstants;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
-import androidx.browser.customtabs.CustomTabsIntent;
-import androidx.core.content.ContextCompat;
+import androidx.core.text.PrecomputedTextCompat;
+import androidx.core.widget.TextViewCompat;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.perflyst.twire.R;
+import com.perflyst.twire.chat.ChatMessageBuffer;
+import com.perflyst.twire.misc.EmoteAtlas;
 import com.perflyst.twire.misc.GlideImageSpan;
-import com.perflyst.twire.model.Badge;
 import com.perflyst.twire.model.ChatMessage;
-import com.perflyst.twire.model.Emote;
 import com.perflyst.twire.service.Service;
 import com.perflyst.twire.service.Settings;
+import com.perflyst.twire.views.ChatLiteMessageView;
 import com.perflyst.twire.views.recyclerviews.ChatRecyclerView;
 
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.regex.Matcher;
@@ -45,31 +39,97 @@ import timber.log.Timber;
  * Created by SebastianRask on 03-03-2016.
  */
 public class ChatAdapter extends RecyclerView.Adapter<ChatAdapter.ContactViewHolder> {
-    private final List<ChatMessage> messages;
+    // The lite chat settings, in the order of the settings dialog.
+    public static final int LITE_AUTOMATIC = 0;
+    public static final int LITE_ON = 1;
+    public static final int LITE_OFF = 2;
+
+    private static final int VIEW_TYPE_MESSAGE = 0;
+    private static final int VIEW_TYPE_LITE = 1;
+
+    private final ChatMessageBuffer messages;
     private final ChatRecyclerView mRecyclerView;
     private final Activity context;
     private final ChatAdapterCallback mCallback;
-    private final boolean isNightTheme;
+    private final ChatMessageRenderer renderer;
     private final float textSize;
+    // The emotes of the lite chat are a bit taller than the text, like in the full chat.
+    private final int emoteCellSize;
+    private final ChatFrameMonitor frameMonitor;
+    private boolean hasTextMetricsParams;
+    private boolean lite;
 
     public ChatAdapter(ChatRecyclerView aRecyclerView, Activity aContext, ChatAdapterCallback aCallback) {
-        messages = new ArrayList<>();
+        messages = new ChatMessageBuffer(Settings.getChatScrollback());
         mRecyclerView = aRecyclerView;
         context = aContext;
         mCallback = aCallback;
 
-        isNightTheme = Settings.isDarkTheme();
+        renderer = new ChatMessageRenderer(aContext, aRecyclerView);
         textSize = aContext.getResources().getDimension(R.dimen.chat_message_text_size) * getTextScale();
+        emoteCellSize = Math.round(textSize * (1 + 0.4f * Settings.getEmoteSize()));
+
+        int liteMode = Settings.getChatLiteMode();
+        setLite(liteMode == LITE_ON);
+        frameMonitor = liteMode == LITE_AUTOMATIC ? new ChatFrameMonitor(aContext.getWindowManager().getDefaultDisplay().getRefreshRate(), () -> {
+            Timber.i("Chat keeps dropping frames, switching to the lite chat");
+            setLite(true);
+        }) : null;
+    }
+
+    /**
+     * Switches between the full chat and the lite chat, which draws rows itself with emotes and badges from shared atlases
+     * and no Glide requests or link spans.
+     */
+    public void setLite(boolean lite) {
+        if (this.lite == lite) return;
+
+        this.lite = lite;
+        renderer.setLiteAtlas(lite ? EmoteAtlas.getInstance(context, emoteCellSize) : null);
+
+        // The messages were rendered for the other kind of row.
+        for (int i = 0; i < messages.size(); i++) {
+            messages.get(i).rendered = null;
+        }
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getItemViewType(int position) {
+        return lite ? VIEW_TYPE_LITE : VIEW_TYPE_MESSAGE;
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        super.onDetachedFromRecyclerView(recyclerView);
+        if (frameMonitor != null) frameMonitor.stop();
     }
 
     @Override
     @NonNull
     public ContactViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        if (viewType == VIEW_TYPE_LITE) {
+            ChatLiteMessageView liteMessage = new ChatLiteMessageView(parent.getContext());
+            liteMessage.setLayoutParams(new RecyclerView.LayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+            int padding = context.getResources().getDimensionPixelSize(R.dimen.chat_recyclerview_padding);
+            liteMessage.setPadding(padding, 0, padding, 0);
+            liteMessage.setTextSize(textSize);
+            liteMessage.setAtlas(EmoteAtlas.getInstance(context, emoteCellSize));
+            return new ContactViewHolder(liteMessage);
+        }
+
         View itemView = LayoutInflater
                 .from(parent.getContext())
                 .inflate(R.layout.chat_message, parent, false);
 
-        return new ContactViewHolder(itemView);
+        ContactViewHolder holder = new ContactViewHolder(itemView);
+        holder.message.setTextSize(TypedValue.COMPLEX_UNIT_PX, textSize);
+        if (!hasTextMetricsParams) {
+            hasTextMetricsParams = true;
+            renderer.setTextMetricsParams(TextViewCompat.getTextMetricsParams(holder.message));
+        }
+
+        return holder;
     }
 
     @Override
@@ -80,57 +140,46 @@ public class ChatAdapter extends RecyclerView.Adapter<ChatAdapter.ContactViewHol
                 return;
             }
 
-            final SpannableStringBuilder builder = new SpannableStringBuilder();
-            if (!message.systemMessage.isEmpty()) {
-                appendSpan(builder, message.systemMessage, new ForegroundColorSpan(Color.GRAY));
-                holder.message.setBackgroundResource(R.drawable.system_message);
-            } else {
-                holder.message.setBackgroundResource(0);
-            }
-
-            if (!message.message.isEmpty()) {
-                if (!message.systemMessage.isEmpty()) builder.append('\n');
+            CharSequence rendered = renderer.getRendered(message);
 
-                for (Badge badge : message.badges) {
-                    if (badge == null) {continue;}
+            if (holder.liteMessage != null) {
+                bindLite(holder.liteMessage, message, rendered);
+                return;
+            }
 
-                    final GlideImageSpan badgeSpan = new GlideImageSpan(context, badge.getUrl(2), holder.message, 36, 1, badge.color);
-                    appendSpan(builder, "  ", badgeSpan).append(" ");
+            // An image loaded with a different size than it was measured with, so the precomputed layout is stale.
+            GlideImageSpan[] imageSpans = ((Spanned) rendered).getSpans(0, rendered.length(), GlideImageSpan.class);
+            if (rendered instanceof PrecomputedTextCompat) {
+                for (GlideImageSpan span : imageSpans) {
+                    if (span.hasSizeChanged()) {
+                        rendered = new SpannableString(rendered);
+                        message.rendered = rendered;
+                        break;
+                    }
                 }
+            }
 
-                int nameColor = getNameColor(message.color);
-                appendSpan(builder, message.name, new ForegroundColorSpan(nameColor), new StyleSpan(Typeface.BOLD));
-
-                int preLength = builder.length();
-                String beforeMessage = ": ";
-                String messageWithPre = beforeMessage + message.message;
-                appendSpan(builder, messageWithPre, new ForegroundColorSpan(getMessageColor()));
-
-                checkForLink(builder.toString(), builder);
-
-                for (var entry : message.emotes.entrySet()) {
-                    Integer emotePosition = entry.getKey();
-                    final Emote emote = entry.getValue();
-                    final int fromPosition = emotePosition + preLength;
-                    final int toPosition = emotePosition + emote.keyword.length() - 1 + preLength;
-
-                    int emoteSize = Settings.getEmoteSize();
-                    int emotePixels = emoteSize == 1 ? 28 : emoteSize == 2 ? 56 : 112;
+            rendered = withRepeats(rendered, message);
 
-                    final GlideImageSpan emoteSpan = new GlideImageSpan(context, emote.getEmoteUrl(emoteSize, isNightTheme), holder.message, emotePixels, (float) emote.getBestAvailableSize(emoteSize) / emoteSize);
+            GlideImageSpan.attachAll(holder.message, imageSpans);
+            setBackground(holder.message, message);
 
-                    builder.setSpan(emoteSpan, fromPosition + beforeMessage.length(), toPosition + 1 + beforeMessage.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+            if (rendered instanceof PrecomputedTextCompat) {
+                try {
+                    TextViewCompat.setPrecomputedText(holder.message, (PrecomputedTextCompat) rendered);
+                } catch (IllegalArgumentException e) {
+                    // The text was measured for different text settings.
+                    rendered = new SpannableString(rendered);
+                    message.rendered = rendered;
+                    holder.message.setText(rendered);
                 }
+            } else {
+                holder.message.setText(rendered);
             }
 
-            if (message.isHighlight) {
-                holder.message.setBackgroundColor(Service.getColorAttribute(androidx.appcompat.R.attr.colorAccent, R.color.accent, context));
-            }
-
-            holder.message.setTextSize(TypedValue.COMPLEX_UNIT_PX, textSize);
-            holder.message.setText(builder);
             holder.message.setMovementMethod(LinkMovementMethod.getInstance());
-            holder.message.setOnClickListener(view -> mCallback.onMessageClicked(builder, message.name, message.message));
+            final CharSequence formattedMessage = rendered;
+            holder.message.setOnClickListener(view -> mCallback.onMessageClicked(new SpannableStringBuilder(formattedMessage), message.name, message.message));
 
         } catch (Exception e) {
             //In case twitch doesn't comply to their own API.
@@ -139,39 +188,65 @@ public class ChatAdapter extends RecyclerView.Adapter<ChatAdapter.ContactViewHol
         }
     }
 
-    public void getNamesThatMatches(String match, List<String> suggestions) {
-        for (ChatMessage message : messages) {
-            String name = message.name;
-            if (name.toLowerCase().matches("^" + match + "\\w+") && !suggestions.contains(name)) {
-                suggestions.add(name);
-            }
-        }
+    /**
+     * Renders a message ahead of time so binding it is cheap. Can be called from any thread.
+     */
+    public void prerender(ChatMessage message) {
+        renderer.getRendered(message);
+    }
 
-        Collections.sort(suggestions);
+    /**
+     * Adds the names of the chatters in the scrollback that start with the lower case prefix, best matches first.
+     */
+    public void getNamesThatMatches(String match, int limit, List<String> suggestions) {
+        messages.findChatters(match, limit, suggestions);
     }
 
-    private void checkForLink(String message, SpannableStringBuilder spanBuilder) {
-        Matcher linkMatcher = Patterns.WEB_URL.matcher(message);
-        while (linkMatcher.find()) {
-            String url = linkMatcher.group(0);
+    private void bindLite(ChatLiteMessageView view, ChatMessage message, CharSequence rendered) {
+        setBackground(view, message);
+        view.setText(withRepeats(rendered, message));
+        view.setOnClickListener(v -> onLiteMessageClicked(view, message));
+    }
 
-            if (!url.matches("^https?://.+"))
-                url = "http://" + url;
+    /**
+     * The lite chat has no link spans, a tap on a row is checked for a link under it instead.
+     */
+    private void onLiteMessageClicked(ChatLiteMessageView view, ChatMessage message) {
+        CharSequence text = view.getText();
+        int offset = view.getTouchedOffset();
+        if (offset != -1) {
+            Matcher linkMatcher = Patterns.WEB_URL.matcher(text);
+            while (linkMatcher.find()) {
+                if (offset >= linkMatcher.start() && offset < linkMatcher.end()) {
+                    renderer.openUrl(linkMatcher.group());
+                    return;
+                }
+            }
+        }
 
-            final String finalUrl = url;
-            ClickableSpan clickableSpan = new ClickableSpan() {
-                @Override
-                public void onClick(@NonNull View view) {
-                    CustomTabsIntent.Builder mTabs = new CustomTabsIntent.Builder();
-                    mTabs.setStartAnimations(context, R.anim.slide_in_bottom_anim, R.anim.fade_out_semi_anim);
-                    mTabs.setExitAnimations(context, R.anim.fade_in_semi_anim, R.anim.slide_out_bottom_anim);
-                    mTabs.build().launchUrl(context, Uri.parse(finalUrl));
+        mCallback.onMessageClicked(new SpannableStringBuilder(text), message.name, message.message);
+    }
 
-                    mRecyclerView.performHapticFeedback(HapticFeedbackConstants.KEYBOARD_TAP);
-                }
-            };
+    /**
+     * A collapsed message shows how many times it was repeated.
+     */
+    private CharSequence withRepeats(CharSequence rendered, ChatMessage message) {
+        if (message.repeats <= 1) return rendered;
+
+        SpannableStringBuilder builder = new SpannableStringBuilder(rendered);
+        int start = builder.length();
+        builder.append(context.getString(R.string.chat_message_repeats, message.repeats));
+        builder.setSpan(new StyleSpan(Typeface.BOLD), start, builder.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        return builder;
+    }
 
-            spanBuilder.setSpan(clickableSpan, linkMatcher.start(), linkMatcher.end(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    private void setBackground(View view, ChatMessage message) {
+        if (message.isHighlight) {
+            view.setBackgroundColor(Service.getColorAttribute(androidx.appcompat.R.attr.colorAccent, R.color.accent, context));
+        } else if (!message.systemMessage.isEmpty()) {
+            view.setBackgroundResource(R.drawable.system_message);
+        } else {
+            view.setBackgroundResource(0);
         }
     }
 
@@ -193,44 +268,38 @@ public class ChatAdapter extends RecyclerView.Adapter<ChatAdapter.ContactViewHol
         return messages.size();
     }
 
-    private int getNameColor(String colorFromAPI) {
-        String BLACK_TEXT = "#000000";
-        if (colorFromAPI == null || colorFromAPI.equals(BLACK_TEXT)) {
-            if (isNightTheme) {
-                return ContextCompat.getColor(context, R.color.blue_500);
-            } else {
-                return ContextCompat.getColor(context, R.color.blue_700);
-            }
-        }
-
-        String WHITE_TEXT = "#FFFFFF";
-        if (colorFromAPI.equals(WHITE_TEXT) && !isNightTheme) {
-            return ContextCompat.getColor(context, R.color.blue_700);
-        }
-
-        return Color.parseColor(colorFromAPI);
-    }
-
-    private int getMessageColor() {
-        if (isNightTheme) {
-            return ContextCompat.getColor(context, R.color.white_text);
-        } else {
-            return ContextCompat.getColor(context, R.color.black_text);
-        }
-    }
-
     /**
      * Add a message and make sure it is in view
      */
     public void add(ChatMessage message) {
-        messages.add(message);
+        addAll(Collections.singletonList(message));
+    }
+
+    /**
+     * Add a batch of messages with a single insert notification and make sure the last one is in view
+     */
+    public void addAll(List<ChatMessage> newMessages) {
+        if (newMessages.isEmpty()) return;
 
-        notifyItemInserted(messages.size() - 1);
-        if (!mRecyclerView.isScrolled()) {
-            checkSize();
+        // Messages that wouldn't fit in the scrollback are never shown.
+        if (newMessages.size() > messages.capacity()) {
+            newMessages = newMessages.subList(newMessages.size() - messages.capacity(), newMessages.size());
+        }
+
+        if (frameMonitor != null) frameMonitor.onActivity();
+
+        // While the user reads back the oldest messages are kept, so the rows don't move out from under them.
+        // They are evicted once chat follows the newest messages again.
+        boolean scrolled = mRecyclerView.isScrolled();
+        int evicted = scrolled ? 0 : messages.trim();
+        evicted += messages.addAll(newMessages, scrolled);
+        if (evicted > 0) notifyItemRangeRemoved(0, evicted);
+
+        notifyItemRangeInserted(messages.size() - newMessages.size(), newMessages.size());
+        if (!scrolled) {
             mRecyclerView.scrollToPosition(messages.size() - 1);
         }
-        Timber.v("Adding Message %s", message.message);
+        Timber.v("Adding %d messages", newMessages.size());
     }
 
     public void clear() {
@@ -239,43 +308,60 @@ public class ChatAdapter extends RecyclerView.Adapter<ChatAdapter.ContactViewHol
         notifyItemRangeRemoved(0, size);
     }
 
+    /**
+     * Marks a single message as deleted
+     */
     public void clear(String target) {
-        for (int i = messages.size() - 1; i >= 0; i--) {
-            ChatMessage message = messages.get(i);
-            if (!message.getId().equals(target)) {
-                continue;
-            }
+        int position = messages.indexOf(target);
+        if (position == -1) return;
+
+        markDeleted(position);
+    }
 
-            messages.remove(i);
-            notifyItemRemoved(i);
+    /**
+     * Shows the messages again if they're still in the scrollback
+     */
+    public void refresh(List<ChatMessage> changed) {
+        for (ChatMessage message : changed) {
+            int position = message.getId() != null ? messages.indexOf(message.getId()) : -1;
+            if (position != -1) notifyItemChanged(position);
         }
     }
 
     /**
-     * Checks if the data structure contains more items that the specified max amount, if so. Remove the first item in the structure.
-     * Notifies observers that item has been removed
+     * Marks every message from a user as deleted, used when the user is banned or timed out
      */
-    private void checkSize() {
-        int MAX_MESSAGES = 150;
-        if (messages.size() > MAX_MESSAGES) {
-            int messagesOverLimit = messages.size() - MAX_MESSAGES;
-            for (int i = 0; i < messagesOverLimit; i++) {
-                messages.remove(0);
-                notifyItemRemoved(0);
-            }
+    public void clearUser(String userId) {
+        for (int position : messages.positionsOfUser(userId)) {
+            markDeleted(position);
         }
     }
 
+    private void markDeleted(int position) {
+        ChatMessage message = messages.get(position);
+        message.isDeleted = true;
+        message.rendered = null;
+        notifyItemChanged(position);
+    }
+
     public interface ChatAdapterCallback {
         void onMessageClicked(SpannableStringBuilder formattedString, String userName, String message);
     }
 
     static class ContactViewHolder extends RecyclerView.ViewHolder {
         private final TextView message;
+        private final ChatLiteMessageView liteMessage;
 
         ContactViewHolder(View itemView) {
             super(itemView);
             message = itemView.findViewById(R.id.txt_message);
+            liteMessage = null;
+        }
+
+        ContactViewHolder(ChatLiteMessageView liteMessage) {
+            super(liteMessage);
+            message = null;
+            this.liteMessage = liteMessage;
         }
     }
 }
@@ -0,0 +1,90 @@
+package com.perflyst.twire.adapters;
+
+import android.view.Choreographer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches how smoothly the chat draws while messages arrive, and reports once frames keep being dropped.
+ * Frames are only counted for a moment after messages were added, so an idle chat doesn't run a frame callback.
+ * Must be used on the main thread.
+ */
+class ChatFrameMonitor implements Choreographer.FrameCallback {
+    private static final long ACTIVE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // Frames are judged in windows of this many frames, and it takes several bad windows in a row to count as jank.
+    private static final int WINDOW_FRAMES = 120;
+    private static final double DROPPED_RATIO = 0.25;
+    private static final int JANK_WINDOWS = 3;
+
+    private final long frameIntervalNanos;
+    private final Runnable onJank;
+
+    private boolean running;
+    private boolean reported;
+    private long lastFrameNanos;
+    private long lastActivityNanos;
+    private int frames;
+    private int droppedFrames;
+    private int jankWindows;
+
+    /**
+     * @param onJank Called once when chat has dropped frames for a while
+     */
+    ChatFrameMonitor(float refreshRate, Runnable onJank) {
+        frameIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / (refreshRate > 0 ? refreshRate : 60));
+        this.onJank = onJank;
+    }
+
+    /**
+     * Called when messages were added.
+     */
+    void onActivity() {
+        if (reported) return;
+
+        lastActivityNanos = System.nanoTime();
+        if (!running) {
+            running = true;
+            lastFrameNanos = 0;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    void stop() {
+        running = false;
+        Choreographer.getInstance().removeFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!running) return;
+
+        if (lastFrameNanos != 0) {
+            long missed = Math.round((double) (frameTimeNanos - lastFrameNanos) / frameIntervalNanos) - 1;
+            if (missed > 0) droppedFrames += (int) missed;
+            frames++;
+
+            if (frames + droppedFrames >= WINDOW_FRAMES) {
+                boolean janky = (double) droppedFrames / (frames + droppedFrames) > DROPPED_RATIO;
+                jankWindows = janky ? jankWindows + 1 : 0;
+                frames = 0;
+                droppedFrames = 0;
+
+                if (jankWindows >= JANK_WINDOWS) {
+                    running = false;
+                    reported = true;
+                    onJank.run();
+                    return;
+                }
+            }
+        }
+
+        // Chat went quiet, the next message starts counting again.
+        if (frameTimeNanos - lastActivityNanos > ACTIVE_NANOS) {
+            running = false;
+            return;
+        }
+
+        lastFrameNanos = frameTimeNanos;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+}
@@ -0,0 +1,239 @@
+package com.perflyst.twire.adapters;
+
+import static com.perflyst.twire.misc.Utils.appendSpan;
+
+import android.app.Activity;
+import android.graphics.Color;
+import android.graphics.Typeface;
+import android.net.Uri;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.ClickableSpan;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.StyleSpan;
+import android.util.Patterns;
+import android.view.HapticFeedbackConstants;
+import android.view.View;
+
+import androidx.annotation.NonNull;
+import androidx.browser.customtabs.CustomTabsIntent;
+import androidx.core.content.ContextCompat;
+import androidx.core.text.PrecomputedTextCompat;
+
+import com.perflyst.twire.R;
+import com.perflyst.twire.misc.AtlasBadgeSpan;
+import com.perflyst.twire.misc.AtlasEmoteSpan;
+import com.perflyst.twire.misc.BadgeAtlas;
+import com.perflyst.twire.misc.EmoteAtlas;
+import com.perflyst.twire.misc.GlideImageSpan;
+import com.perflyst.twire.model.Badge;
+import com.perflyst.twire.model.ChatMessage;
+import com.perflyst.twire.model.Emote;
+import com.perflyst.twire.service.Settings;
+
+import java.util.regex.Matcher;
+
+import timber.log.Timber;
+
+/**
+ * Turns a {@link ChatMessage} into the text shown in the chat.
+ * Rendering doesn't touch any views, so it can run on the chat thread. The result is cached on the message.
+ * Badges are drawn from the {@link BadgeAtlas} once they are in it.
+ * The lite chat gets plain text with emotes from an {@link EmoteAtlas}, without links or precomputed layout.
+ */
+class ChatMessageRenderer {
+    private final Activity context;
+    private final View hapticView;
+    private final BadgeAtlas badgeAtlas;
+    private final boolean isNightTheme;
+    private final int emoteSize;
+    private final int nameColorDark, nameColorLight, messageColor;
+
+    // Set on the main thread once a chat row exists, read by the rendering thread.
+    private volatile PrecomputedTextCompat.Params textMetricsParams;
+    // Set while the chat is lite
+    private volatile EmoteAtlas liteAtlas;
+
+    ChatMessageRenderer(Activity context, View hapticView) {
+        this.context = context;
+        this.hapticView = hapticView;
+        badgeAtlas = BadgeAtlas.getInstance(context);
+
+        isNightTheme = Settings.isDarkTheme();
+        emoteSize = Settings.getEmoteSize();
+        nameColorDark = ContextCompat.getColor(context, R.color.blue_500);
+        nameColorLight = ContextCompat.getColor(context, R.color.blue_700);
+        messageColor = ContextCompat.getColor(context, isNightTheme ? R.color.white_text : R.color.black_text);
+    }
+
+    void setTextMetricsParams(PrecomputedTextCompat.Params params) {
+        textMetricsParams = params;
+    }
+
+    /**
+     * @param atlas The atlas to draw emotes from in the lite chat, or null for the full chat
+     */
+    void setLiteAtlas(EmoteAtlas atlas) {
+        liteAtlas = atlas;
+    }
+
+    /**
+     * Returns the rendered message, rendering it if it hasn't been already or was rendered for the other kind of chat.
+     */
+    CharSequence getRendered(ChatMessage message) {
+        EmoteAtlas atlas = liteAtlas;
+        CharSequence rendered = message.rendered;
+        // A message that was rendered ahead of time while the chat switched can be for the other kind of row.
+        if (rendered == null || message.renderedLite != (atlas != null)) {
+            rendered = atlas != null ? renderLite(message, atlas) : render(message);
+            message.renderedLite = atlas != null;
+            message.rendered = rendered;
+        }
+
+        return rendered;
+    }
+
+    private CharSequence render(ChatMessage message) {
+        final SpannableStringBuilder builder = new SpannableStringBuilder();
+        if (!message.systemMessage.isEmpty()) {
+            appendSpan(builder, message.systemMessage, new ForegroundColorSpan(Color.GRAY));
+        }
+
+        if (message.isDeleted || message.isCollapsed) {
+            if (!message.systemMessage.isEmpty()) builder.append('\n');
+
+            appendSpan(builder, message.name, new ForegroundColorSpan(getNameColor(message.color)), new StyleSpan(Typeface.BOLD));
+            appendSpan(builder, ": " + context.getString(message.isDeleted ? R.string.chat_message_deleted : R.string.chat_message_filtered), new ForegroundColorSpan(Color.GRAY), new StyleSpan(Typeface.ITALIC));
+        } else if (!message.message.isEmpty()) {
+            if (!message.systemMessage.isEmpty()) builder.append('\n');
+
+            for (Badge badge : message.badges) {
+                if (badge == null) {continue;}
+
+                // Until the badge has been decoded into the atlas it's loaded like an emote.
+                int handle = badgeAtlas.find(badge);
+                final Object badgeSpan = handle != -1 ? new AtlasBadgeSpan(badgeAtlas, handle) : new GlideImageSpan(context, badge.getUrl(2), 36, 1, badge.color);
+                appendSpan(builder, "  ", badgeSpan).append(" ");
+            }
+
+            int nameColor = getNameColor(message.color);
+            appendSpan(builder, message.name, new ForegroundColorSpan(nameColor), new StyleSpan(Typeface.BOLD));
+
+            int preLength = builder.length();
+            String beforeMessage = ": ";
+            String messageWithPre = beforeMessage + message.message;
+            appendSpan(builder, messageWithPre, new ForegroundColorSpan(messageColor));
+
+            checkForLink(builder.toString(), builder);
+
+            int emotePixels = emoteSize == 1 ? 28 : emoteSize == 2 ? 56 : 112;
+            for (int i = 0; i < message.getEmoteCount(); i++) {
+                int emotePosition = message.getEmotePosition(i);
+                final Emote emote = message.getEmote(i);
+                // The emote was dropped from the registry, it's shown as text.
+                if (emote == null) continue;
+
+                final int fromPosition = emotePosition + preLength;
+                final int toPosition = emotePosition + emote.keyword.length() - 1 + preLength;
+
+                final GlideImageSpan emoteSpan = new GlideImageSpan(context, emote.getEmoteUrl(emoteSize, isNightTheme), emotePixels, (float) emote.getBestAvailableSize(emoteSize) / emoteSize);
+
+                builder.setSpan(emoteSpan, fromPosition + beforeMessage.length(), toPosition + 1 + beforeMessage.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+            }
+        }
+
+        PrecomputedTextCompat.Params params = textMetricsParams;
+        if (params == null) return builder;
+
+        try {
+            return PrecomputedTextCompat.create(builder, params);
+        } catch (RuntimeException e) {
+            Timber.w(e, "Failed to precompute message");
+            return builder;
+        }
+    }
+
+    private CharSequence renderLite(ChatMessage message, EmoteAtlas atlas) {
+        final SpannableStringBuilder builder = new SpannableStringBuilder();
+        if (!message.systemMessage.isEmpty()) {
+            appendSpan(builder, message.systemMessage, new ForegroundColorSpan(Color.GRAY));
+        }
+
+        if (message.isDeleted || message.isCollapsed) {
+            if (!message.systemMessage.isEmpty()) builder.append('\n');
+
+            appendSpan(builder, message.name, new ForegroundColorSpan(getNameColor(message.color)), new StyleSpan(Typeface.BOLD));
+            appendSpan(builder, ": " + context.getString(message.isDeleted ? R.string.chat_message_deleted : R.string.chat_message_filtered), new ForegroundColorSpan(Color.GRAY), new StyleSpan(Typeface.ITALIC));
+        } else if (!message.message.isEmpty()) {
+            if (!message.systemMessage.isEmpty()) builder.append('\n');
+
+            // Only badges that are in the atlas are shown, the lite chat doesn't load images per row.
+            for (Badge badge : message.badges) {
+                int handle = badge != null ? badgeAtlas.find(badge) : -1;
+                if (handle == -1) continue;
+
+                appendSpan(builder, "  ", new AtlasBadgeSpan(badgeAtlas, handle)).append(" ");
+            }
+
+            appendSpan(builder, message.name, new ForegroundColorSpan(getNameColor(message.color)), new StyleSpan(Typeface.BOLD));
+
+            int messageStart = builder.length() + 2;
+            appendSpan(builder, ": " + message.message, new ForegroundColorSpan(messageColor));
+
+            for (int i = 0; i < message.getEmoteCount(); i++) {
+                final Emote emote = message.getEmote(i);
+                String url = emote != null ? emote.getEmoteUrl(emoteSize, isNightTheme) : null;
+                if (url == null) continue;
+
+                int start = messageStart + message.getEmotePosition(i);
+                builder.setSpan(new AtlasEmoteSpan(atlas, url), start, start + emote.keyword.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+        }
+
+        return builder;
+    }
+
+    private void checkForLink(String message, SpannableStringBuilder spanBuilder) {
+        Matcher linkMatcher = Patterns.WEB_URL.matcher(message);
+        while (linkMatcher.find()) {
+            final String url = linkMatcher.group(0);
+            ClickableSpan clickableSpan = new ClickableSpan() {
+                @Override
+                public void onClick(@NonNull View view) {
+                    openUrl(url);
+                }
+            };
+
+            spanBuilder.setSpan(clickableSpan, linkMatcher.start(), linkMatcher.end(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+    }
+
+    /**
+     * Opens a link from a message in a custom tab.
+     */
+    void openUrl(String url) {
+        if (!url.matches("^https?://.+"))
+            url = "http://" + url;
+
+        CustomTabsIntent.Builder mTabs = new CustomTabsIntent.Builder();
+        mTabs.setStartAnimations(context, R.anim.slide_in_bottom_anim, R.anim.fade_out_semi_anim);
+        mTabs.setExitAnimations(context, R.anim.fade_in_semi_anim, R.anim.slide_out_bottom_anim);
+        mTabs.build().launchUrl(context, Uri.parse(url));
+
+        hapticView.performHapticFeedback(HapticFeedbackConstants.KEYBOARD_TAP);
+    }
+
+    private int getNameColor(String colorFromAPI) {
+        String BLACK_TEXT = "#000000";
+        if (colorFromAPI == null || colorFromAPI.equals(BLACK_TEXT)) {
+            return isNightTheme ? nameColorDark : nameColorLight;
+        }
+
+        String WHITE_TEXT = "#FFFFFF";
+        if (colorFromAPI.equals(WHITE_TEXT) && !isNightTheme) {
+            return nameColorLight;
+        }
+
+        return Color.parseColor(colorFromAPI);
+    }
+}
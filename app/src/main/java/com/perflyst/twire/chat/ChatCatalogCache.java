@@ -0,0 +1,297 @@
+package com.perflyst.twire.chat;
+
+import android.util.LruCache;
+
+import androidx.annotation.Nullable;
+
+import com.google.common.hash.Hashing;
+import com.perflyst.twire.service.Service;
+import com.perflyst.twire.service.Settings;
+
+import org.json.JSONException;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import timber.log.Timber;
+
+/**
+ * Process wide cache of the emote and badge catalogs chat needs, backed by a gzipped copy on disk.
+ * Entries are fresh for a time to live, after that HTTP catalogs are revalidated with ETag / If-Modified-Since.
+ * If a catalog can't be refreshed the stale copy is used.
+ * Bodies are streamed to disk and parsed from there, only the parsed form of a catalog is kept in memory,
+ * and it's only parsed again when the body changes.
+ * The catalogs used last are kept, in memory up to a number of them and on disk up to a size.
+ */
+class ChatCatalogCache {
+    private static final int FORMAT_VERSION = 3;
+    // A few global catalogs and one per provider for each of the last channels
+    private static final int MAX_ENTRIES = 32;
+    private static final long MAX_DISK_SIZE = 16 * 1024 * 1024;
+
+    // A provider that doesn't answer within the deadline is given up on, the cached copy is used if there is one.
+    private static final OkHttpClient client = Service.client.newBuilder()
+            .callTimeout(8, TimeUnit.SECONDS)
+            .build();
+
+    private static final LruCache<String, Entry> entries = new LruCache<>(MAX_ENTRIES);
+
+    /**
+     * Gets an HTTP catalog, revalidating it when it's older than the time to live.
+     *
+     * @return The parsed catalog, or null if it couldn't be fetched or parsed
+     */
+    @Nullable
+    static <T> T get(String url, long ttlMs, Parser<T> parser) {
+        return get(url, ttlMs, parser, entry -> revalidate(url, entry));
+    }
+
+    /**
+     * Gets a catalog that isn't fetched over plain HTTP, the loader serializes it to a string.
+     * These can't be revalidated, so they are loaded again when they're older than the time to live.
+     *
+     * @return The parsed catalog, or null if it couldn't be loaded or parsed
+     */
+    @Nullable
+    static <T> T get(String key, long ttlMs, Callable<String> loader, Parser<T> parser) {
+        return get(key, ttlMs, parser, entry -> {
+            try {
+                String body = loader.call();
+                if (body == null) return null;
+
+                Entry entry = new Entry(null, null);
+                return writeToDisk(key, entry, new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8))) ? entry : null;
+            } catch (Exception e) {
+                Timber.w(e, "Failed to load %s", key);
+                return null;
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T get(String key, long ttlMs, Parser<T> parser, Refresher refresher) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = readFromDisk(key);
+        }
+
+        if (entry == null || System.currentTimeMillis() - entry.fetchedAt > ttlMs) {
+            Entry refreshed = refresher.refresh(entry);
+            if (refreshed == entry) {
+                // Still valid, the file's modification time is when it was last fetched.
+                if (!getFile(key).setLastModified(entry.fetchedAt))
+                    Timber.w("Failed to touch cached %s", key);
+            } else if (refreshed != null) {
+                entry = refreshed;
+            }
+        }
+
+        if (entry == null) return null;
+        entries.put(key, entry);
+
+        synchronized (entry) {
+            if (entry.parsed == null) {
+                try (DataInputStream input = openFile(key)) {
+                    if (input == null) return null;
+
+                    entry.parsed = parser.parse(new InputStreamReader(input, StandardCharsets.UTF_8));
+                } catch (JSONException | IOException e) {
+                    Timber.w(e, "Failed to parse %s", key);
+                    return null;
+                }
+            }
+
+            return (T) entry.parsed;
+        }
+    }
+
+    /**
+     * Fetches the catalog if it changed, the new body is streamed to disk.
+     *
+     * @return A new entry if the body changed, the same entry if it's still valid, or null if the request failed
+     */
+    @Nullable
+    private static Entry revalidate(String url, @Nullable Entry entry) {
+        Request.Builder requestBuilder = new Request.Builder().url(url);
+        if (entry != null) {
+            if (entry.etag != null) requestBuilder.header("If-None-Match", entry.etag);
+            if (entry.lastModified != null) requestBuilder.header("If-Modified-Since", entry.lastModified);
+        }
+
+        try (Response response = client.newCall(requestBuilder.build()).execute()) {
+            if (response.code() == 304 && entry != null) {
+                entry.fetchedAt = System.currentTimeMillis();
+                return entry;
+            }
+
+            // Channels without an account on a provider answer 404 with a JSON body, that is cached like any other answer.
+            if ((!response.isSuccessful() && response.code() != 404) || response.body() == null) {
+                Timber.w("Failed to fetch %s: %d", url, response.code());
+                return null;
+            }
+
+            Entry fetched = new Entry(response.header("ETag"), response.header("Last-Modified"));
+            return writeToDisk(url, fetched, response.body().byteStream()) ? fetched : null;
+        } catch (IOException e) {
+            Timber.w(e, "Failed to fetch %s", url);
+            return null;
+        }
+    }
+
+    private static File getFile(String key) {
+        String name = Hashing.sha256().hashString(key, StandardCharsets.UTF_8).toString();
+        return new File(new File(Settings.getContext().getCacheDir(), "chat_catalogs"), name);
+    }
+
+    /**
+     * Reads the header of the cached copy, the body is left on disk until it's parsed.
+     */
+    @Nullable
+    private static Entry readFromDisk(String key) {
+        File file = getFile(key);
+        if (!file.exists()) return null;
+
+        try (DataInputStream input = new DataInputStream(new GZIPInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != FORMAT_VERSION) return null;
+
+            String etag = input.readBoolean() ? input.readUTF() : null;
+            String lastModified = input.readBoolean() ? input.readUTF() : null;
+
+            Entry entry = new Entry(etag, lastModified);
+            entry.fetchedAt = file.lastModified();
+            return entry;
+        } catch (IOException e) {
+            Timber.w(e, "Failed to read cached %s", key);
+            return null;
+        }
+    }
+
+    /**
+     * @return The cached copy, positioned at the start of the body, or null if there is none
+     */
+    @Nullable
+    private static DataInputStream openFile(String key) throws IOException {
+        File file = getFile(key);
+        if (!file.exists()) return null;
+
+        DataInputStream input = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))));
+        if (input.readInt() != FORMAT_VERSION) {
+            input.close();
+            return null;
+        }
+
+        if (input.readBoolean()) input.readUTF();
+        if (input.readBoolean()) input.readUTF();
+        return input;
+    }
+
+    /**
+     * Copies the body to disk as it's read.
+     *
+     * @return If the body was stored, the entry can't be parsed otherwise
+     */
+    private static boolean writeToDisk(String key, Entry entry, InputStream body) {
+        File file = getFile(key);
+        File directory = file.getParentFile();
+        if (directory != null && !directory.exists() && !directory.mkdirs()) {
+            Timber.w("Failed to cache %s", key);
+            return false;
+        }
+
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(temporaryFile)))) {
+            output.writeInt(FORMAT_VERSION);
+            output.writeBoolean(entry.etag != null);
+            if (entry.etag != null) output.writeUTF(entry.etag);
+            output.writeBoolean(entry.lastModified != null);
+            if (entry.lastModified != null) output.writeUTF(entry.lastModified);
+
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = body.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            Timber.w(e, "Failed to cache %s", key);
+            if (!temporaryFile.delete()) Timber.w("Failed to delete %s", temporaryFile);
+            return false;
+        }
+
+        if (!temporaryFile.renameTo(file)) {
+            Timber.w("Failed to cache %s", key);
+            return false;
+        }
+
+        if (!file.setLastModified(entry.fetchedAt)) Timber.w("Failed to touch cached %s", key);
+        trimDisk(directory);
+        return true;
+    }
+
+    /**
+     * Deletes the copies that were fetched longest ago until the rest fit in {@link #MAX_DISK_SIZE}.
+     * Catalogs that are in use are refreshed every time to live, so these are the channels nobody watched in a while.
+     */
+    private static synchronized void trimDisk(File directory) {
+        File[] files = directory.listFiles((dir, name) -> !name.endsWith(".tmp"));
+        if (files == null) return;
+
+        long[] modified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            modified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(modified[b], modified[a]));
+
+        long size = 0;
+        for (int i : order) {
+            size += files[i].length();
+            if (size > MAX_DISK_SIZE && !files[i].delete()) Timber.w("Failed to delete %s", files[i]);
+        }
+    }
+
+    interface Parser<T> {
+        /**
+         * @param body The body as it's read from disk, it's closed once the parser returns
+         */
+        T parse(Reader body) throws JSONException, IOException;
+    }
+
+    private interface Refresher {
+        /**
+         * @return The new or revalidated entry, or null if it couldn't be refreshed
+         */
+        @Nullable
+        Entry refresh(@Nullable Entry entry);
+    }
+
+    private static class Entry {
+        private final String etag;
+        private final String lastModified;
+        private volatile long fetchedAt = System.currentTimeMillis();
+        private Object parsed;
+
+        private Entry(String etag, String lastModified) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+}
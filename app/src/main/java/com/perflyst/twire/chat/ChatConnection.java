@@ -0,0 +1,222 @@
+package com.perflyst.twire.chat;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.Nullable;
+
+import com.github.philippheuer.credentialmanager.domain.OAuth2Credential;
+import com.github.philippheuer.events4j.core.EventManager;
+import com.github.philippheuer.events4j.simple.SimpleEventHandler;
+import com.github.philippheuer.events4j.simple.domain.EventSubscriber;
+import com.github.twitch4j.chat.TwitchChat;
+import com.github.twitch4j.chat.TwitchChatBuilder;
+import com.github.twitch4j.chat.events.AbstractChannelEvent;
+import com.github.twitch4j.chat.events.ChatConnectionStateEvent;
+import com.github.twitch4j.chat.events.channel.UserStateEvent;
+import com.github.twitch4j.chat.events.roomstate.ChannelStatesEvent;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * A connection to Twitch chat that is shared by every {@link ChatManager} of an account.
+ * It joins the channels that are subscribed to and routes the events of each channel to its subscribers.
+ * A channel is left a while after its last subscriber is gone, and the connection is closed once it has no channels,
+ * so going back and forth between channels doesn't connect, log in and join every time.
+ * Events are published to subscribers outside of the lock, so a subscriber handling a message never holds up another thread.
+ */
+class ChatConnection {
+    private static final long LINGER_MS = TimeUnit.SECONDS.toMillis(30);
+
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+    // The open connections by server and account, guarded by the class.
+    private static final Map<String, ChatConnection> connections = new HashMap<>();
+
+    private final String key;
+    private final TwitchChat twitchChat;
+
+    // Guarded by this
+    private final Map<String, Channel> channels = new HashMap<>();
+    private ChatConnectionStateEvent lastState;
+
+    private ChatConnection(String key, @Nullable OAuth2Credential account, String server) {
+        this.key = key;
+        twitchChat = TwitchChatBuilder.builder()
+                .withChatAccount(account)
+                .withBaseUrl(server)
+                .build();
+
+        twitchChat.getEventManager().getEventHandler(SimpleEventHandler.class).registerListener(this);
+    }
+
+    /**
+     * Subscribes to the events of a channel, joining it if it isn't joined already.
+     * The listener gets the events through its {@link EventSubscriber} methods, starting with the last connection,
+     * room and user state, so it doesn't matter if the channel was joined before.
+     *
+     * @param account The account to log in with, or null to read chat anonymously
+     * @param server  The base URL of the IRC WebSocket server
+     */
+    static Subscription subscribe(@Nullable OAuth2Credential account, String server, String channel, Object listener) {
+        String key = server + '\n' + (account != null ? account.getAccessToken() : "");
+
+        Subscription subscription;
+        List<Object> replay = new ArrayList<>();
+        synchronized (ChatConnection.class) {
+            ChatConnection connection = connections.get(key);
+            if (connection == null) {
+                connection = new ChatConnection(key, account, server);
+                connections.put(key, connection);
+            }
+
+            subscription = connection.join(channel.toLowerCase(Locale.ROOT), listener, replay);
+        }
+
+        for (Object event : replay) subscription.publish(event);
+        return subscription;
+    }
+
+    /**
+     * @param replay Gets the events the new subscriber has to be caught up with
+     */
+    private synchronized Subscription join(String name, Object listener, List<Object> replay) {
+        Channel channel = channels.get(name);
+        if (channel == null) {
+            channel = new Channel(name);
+            channels.put(name, channel);
+            twitchChat.joinChannel(name);
+        } else if (channel.leave != null) {
+            Timber.d("Reusing the joined channel %s", name);
+            handler.removeCallbacks(channel.leave);
+            channel.leave = null;
+        }
+
+        Subscription subscription = new Subscription(channel);
+        subscription.eventManager.getEventHandler(SimpleEventHandler.class).registerListener(listener);
+        channel.subscriptions.add(subscription);
+
+        if (lastState != null) replay.add(lastState);
+        replay.addAll(channel.roomStates.values());
+        if (channel.userState != null) replay.add(channel.userState);
+
+        return subscription;
+    }
+
+    private synchronized void unsubscribe(Subscription subscription) {
+        Channel channel = subscription.channel;
+        if (!channel.subscriptions.remove(subscription) || !channel.subscriptions.isEmpty()) return;
+
+        channel.leave = () -> leave(channel);
+        handler.postDelayed(channel.leave, LINGER_MS);
+    }
+
+    private void leave(Channel channel) {
+        boolean close;
+        synchronized (ChatConnection.class) {
+            synchronized (this) {
+                if (channel.leave == null || !channel.subscriptions.isEmpty()) return;
+
+                Timber.d("Leaving channel %s", channel.name);
+                channels.remove(channel.name);
+                close = channels.isEmpty();
+                if (close) {
+                    connections.remove(key);
+                } else {
+                    twitchChat.leaveChannel(channel.name);
+                }
+            }
+        }
+
+        if (close) {
+            Timber.d("Closing the unused chat connection");
+            twitchChat.close();
+        }
+    }
+
+    @EventSubscriber
+    private void handleSocketState(ChatConnectionStateEvent event) {
+        List<Subscription> subscriptions = new ArrayList<>();
+        synchronized (this) {
+            lastState = event;
+            for (Channel channel : channels.values()) subscriptions.addAll(channel.subscriptions);
+        }
+
+        for (Subscription subscription : subscriptions) subscription.publish(event);
+    }
+
+    @EventSubscriber
+    private void handleChannelEvent(AbstractChannelEvent event) {
+        List<Subscription> subscriptions;
+        synchronized (this) {
+            Channel channel = channels.get(event.getChannel().getName().toLowerCase(Locale.ROOT));
+            if (channel == null) return;
+
+            // Twitch only sends these when a channel is joined or they change, later subscribers get them from here.
+            // Only the latest room state of each kind matters.
+            if (event instanceof ChannelStatesEvent) {
+                channel.roomStates.put(event.getClass(), (ChannelStatesEvent) event);
+            } else if (event instanceof UserStateEvent) {
+                channel.userState = (UserStateEvent) event;
+            }
+
+            subscriptions = new ArrayList<>(channel.subscriptions);
+        }
+
+        for (Subscription subscription : subscriptions) subscription.publish(event);
+    }
+
+    private static class Channel {
+        private final String name;
+        private final List<Subscription> subscriptions = new ArrayList<>();
+        private final Map<Class<?>, ChannelStatesEvent> roomStates = new LinkedHashMap<>();
+        private UserStateEvent userState;
+        // Set while the channel waits to be left
+        private Runnable leave;
+
+        private Channel(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * The events of a channel for one subscriber.
+     */
+    class Subscription {
+        private final Channel channel;
+        private final EventManager eventManager = new EventManager();
+        // An event taken from the channel just before the subscription was closed isn't delivered anymore.
+        private volatile boolean closed;
+
+        private Subscription(Channel channel) {
+            this.channel = channel;
+            eventManager.registerEventHandler(new SimpleEventHandler());
+        }
+
+        private void publish(Object event) {
+            if (!closed) eventManager.publish(event);
+        }
+
+        /**
+         * Sends a message to the channel.
+         */
+        void sendMessage(String message) {
+            twitchChat.sendMessage(channel.name, message);
+        }
+
+        /**
+         * Stops the events, the channel is left later if nothing subscribes to it again.
+         */
+        void close() {
+            closed = true;
+            unsubscribe(this);
+        }
+    }
+}
@@ -1,12 +1,11 @@
 package com.perflyst.twire.chat;
 
-import androidx.annotation.Nullable;
-
-import com.perflyst.twire.model.ChatMessage;
+import com.google.common.io.CharStreams;
 import com.perflyst.twire.model.Emote;
+import com.perflyst.twire.model.EmoteRegistry;
 import com.perflyst.twire.model.UserInfo;
-import com.perflyst.twire.service.Service;
 import com.perflyst.twire.service.Settings;
+import com.perflyst.twire.utils.Execute;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -18,20 +17,41 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
 
 /**
  * Created by sebastian on 26/07/2017.
  */
 
 class ChatEmoteManager {
-    private static Map<String, Emote> emoteKeywordToEmote;
-
-    private final List<Emote> customGlobal = new ArrayList<>();
-    private final List<Emote> customChannel = new ArrayList<>();
+    private static final long GLOBAL_TTL = TimeUnit.HOURS.toMillis(12);
+    private static final long CHANNEL_TTL = TimeUnit.MINUTES.toMillis(15);
+
+    private static final String BTTV_GLOBAL_URL = "https://api.betterttv.net/3/cached/emotes/global";
+    private static final String BTTV_CHANNEL_URL = "https://api.betterttv.net/3/cached/users/twitch/";
+    private static final String FFZ_GLOBAL_URL = "https://api.frankerfacez.com/v1/set/global";
+    private static final String FFZ_CHANNEL_URL = "https://api.frankerfacez.com/v1/room/";
+    // API Doc: https://7tv.io/v3/docs
+    private static final String SEVENTV_GLOBAL_URL = "https://7tv.io/v3/emote-sets/global";
+    private static final String SEVENTV_USER_URL = "https://7tv.io/v3/users/twitch/";
+
+    // Every chat matches with its own emotes, a chat that is kept running in the background doesn't get the ones of another channel.
+    private volatile EmoteMatcher emoteMatcher = EmoteMatcher.EMPTY;
+
+    // The emotes of every enabled provider, in the order their keywords override each other. Null until it arrives.
+    // Guarded by itself, like the fields below.
+    private final List<List<Emote>> providerEmotes = new ArrayList<>();
+    // Counts the loads, emotes of an earlier load that arrive late are dropped.
+    private int generation;
+    private List<Emote> customGlobal = Collections.emptyList();
+    private List<Emote> customChannel = Collections.emptyList();
+    // Counts down as the providers of the current load arrive.
+    private volatile CountDownLatch loaded = new CountDownLatch(0);
 
-    private final Pattern emotePattern = Pattern.compile("(\\w+):((?:\\d+-\\d+,?)+)");
 
     private final UserInfo channel;
 
@@ -43,164 +63,214 @@ class ChatEmoteManager {
     /**
      * Connects to custom emote APIs.
      * Fetches and maps the emote keywords and id's
-     * This must not be called on main UI thread
+     * Every provider is fetched at the same time and its emotes are matched as soon as it arrives,
+     * so the callback is called once per provider. A provider that misses its deadline falls back to the cached copy.
+     * The emote sets are cached by {@link ChatCatalogCache}, so switching channels reuses the global sets.
      */
     void loadCustomEmotes(EmoteFetchCallback callback) {
-        emoteKeywordToEmote = new HashMap<>();
+        emoteMatcher = EmoteMatcher.EMPTY;
 
-        // Emote Settings
-        boolean enabled_bttv = Settings.getChatEmoteBTTV();
-        boolean enabled_ffz = Settings.getChatEmoteFFZ();
-        boolean enabled_seventv = Settings.getChatEmoteSEVENTV();
+        List<Callable<List<Emote>>> providers = new ArrayList<>();
 
         // BetterTTV emotes
-        final String BTTV_GLOBAL_URL = "https://api.betterttv.net/3/cached/emotes/global";
-        final String BTTV_CHANNEL_URL = "https://api.betterttv.net/3/cached/users/twitch/" + channel.getUserId();
-        final String CHANNEL_EMOTE_ARRAY = "channelEmotes";
-        final String SHARED_EMOTE_ARRAY = "sharedEmotes";
-
-        try {
-            String bttvResponse = enabled_bttv ? Service.urlToJSONString(BTTV_GLOBAL_URL) : "";
-            if (!bttvResponse.isEmpty()) {
-                JSONArray globalEmotes = new JSONArray(bttvResponse);
+        if (Settings.getChatEmoteBTTV()) {
+            providers.add(() -> ChatCatalogCache.get(BTTV_GLOBAL_URL, GLOBAL_TTL, body -> parseBTTV(CharStreams.toString(body), false)));
+            providers.add(() -> ChatCatalogCache.get(BTTV_CHANNEL_URL + channel.getUserId(), CHANNEL_TTL, body -> parseBTTV(CharStreams.toString(body), true)));
+        }
 
-                for (int i = 0; i < globalEmotes.length(); i++) {
-                    Emote emote = ToBTTV(globalEmotes.getJSONObject(i));
-                    customGlobal.add(emote);
-                    emoteKeywordToEmote.put(emote.keyword, emote);
-                }
-            }
+        // FFZ emotes
+        if (Settings.getChatEmoteFFZ()) {
+            providers.add(() -> ChatCatalogCache.get(FFZ_GLOBAL_URL, GLOBAL_TTL, body -> parseFFZ(CharStreams.toString(body), false)));
+            providers.add(() -> ChatCatalogCache.get(FFZ_CHANNEL_URL + channel.getLogin(), CHANNEL_TTL, body -> parseFFZ(CharStreams.toString(body), true)));
+        }
 
-            String bttvChannelResponse = enabled_bttv ? Service.urlToJSONString(BTTV_CHANNEL_URL) : "";
-            if (!bttvChannelResponse.isEmpty()) {
-                JSONObject topChannelEmotes = new JSONObject(bttvChannelResponse);
-                if (topChannelEmotes.has("message")) return;
+        // 7TV emotes
+        if (Settings.getChatEmoteSEVENTV()) {
+            providers.add(() -> ChatCatalogCache.get(SEVENTV_GLOBAL_URL, GLOBAL_TTL, body -> parse7TV(new JSONObject(CharStreams.toString(body)), false)));
+            providers.add(() -> ChatCatalogCache.get(SEVENTV_USER_URL + channel.getUserId(), CHANNEL_TTL, body -> {
+                JSONObject userData = new JSONObject(CharStreams.toString(body));
+                return userData.isNull("emote_set") ? List.of() : parse7TV(userData.getJSONObject("emote_set"), true);
+            }));
+        }
 
-                JSONArray channelEmotes = topChannelEmotes.getJSONArray(CHANNEL_EMOTE_ARRAY);
+        final int loadGeneration;
+        synchronized (providerEmotes) {
+            loadGeneration = ++generation;
+            releaseProviderEmotes();
+            providerEmotes.addAll(Collections.nCopies(providers.size(), null));
+            loaded = new CountDownLatch(providers.size());
+        }
 
-                // Append shared emotes
-                JSONArray sharedEmotes = topChannelEmotes.getJSONArray(SHARED_EMOTE_ARRAY);
-                for (int i = 0; i < sharedEmotes.length(); i++) {
-                    channelEmotes.put(sharedEmotes.get(i));
+        for (int i = 0; i < providers.size(); i++) {
+            final int index = i;
+            final Callable<List<Emote>> provider = providers.get(i);
+            Execute.background(() -> {
+                List<Emote> emotes;
+                try {
+                    emotes = provider.call();
+                } catch (Exception e) {
+                    Timber.w(e, "Failed to load custom emotes");
+                    emotes = null;
                 }
 
-                // Read all the emotes
-                for (int i = 0; i < channelEmotes.length(); i++) {
-                    Emote emote = ToBTTV(channelEmotes.getJSONObject(i));
-                    emote.isCustomChannelEmote = true;
-                    customChannel.add(emote);
+                publishEmotes(loadGeneration, index, emotes != null ? emotes : List.of(), callback);
+            });
+        }
+    }
+
+    /**
+     * Merges the emotes of every provider that has arrived so far and swaps in a new matcher.
+     */
+    private void publishEmotes(int loadGeneration, int index, List<Emote> emotes, EmoteFetchCallback callback) {
+        synchronized (providerEmotes) {
+            if (loadGeneration != generation) return;
+
+            // The parsed sets are shared through the cache, every chat holds on to the registered emotes itself.
+            List<Emote> previous = providerEmotes.set(index, EmoteRegistry.acquire(emotes));
+            if (previous != null) EmoteRegistry.release(previous);
+
+            Map<String, Emote> emoteKeywordToEmote = new HashMap<>();
+            List<Emote> global = new ArrayList<>();
+            List<Emote> channel = new ArrayList<>();
+            for (List<Emote> provider : providerEmotes) {
+                if (provider == null) continue;
+
+                for (Emote emote : provider) {
+                    (emote.isCustomChannelEmote ? channel : global).add(emote);
                     emoteKeywordToEmote.put(emote.keyword, emote);
                 }
             }
-        } catch (JSONException e) {
+
+            emoteMatcher = EmoteMatcher.compile(emoteKeywordToEmote);
+            customGlobal = global;
+            customChannel = channel;
+            loaded.countDown();
+        }
+
+        try {
+            callback.onEmoteFetched();
+        } catch (Exception e) {
             e.printStackTrace();
         }
+    }
 
-        // FFZ emotes
-        final String FFZ_GLOBAL_URL = "https://api.frankerfacez.com/v1/set/global";
-        final String FFZ_CHANNEL_URL = "https://api.frankerfacez.com/v1/room/" + channel.getLogin();
+    /**
+     * Waits until every provider of the last load has arrived or failed.
+     *
+     * @return If they arrived before the timeout
+     */
+    boolean awaitLoaded(long timeout, TimeUnit unit) throws InterruptedException {
+        return loaded.await(timeout, unit);
+    }
+
+    /**
+     * Lets go of the emotes of the chat, emotes that arrive later are dropped.
+     */
+    void release() {
+        synchronized (providerEmotes) {
+            generation++;
+            releaseProviderEmotes();
+            // Nothing waits on a chat that is gone.
+            while (loaded.getCount() > 0) loaded.countDown();
+        }
+
+        emoteMatcher = EmoteMatcher.EMPTY;
+    }
+
+    // Must hold providerEmotes
+    private void releaseProviderEmotes() {
+        for (List<Emote> emotes : providerEmotes) {
+            if (emotes != null) EmoteRegistry.release(emotes);
+        }
+
+        providerEmotes.clear();
+        customGlobal = Collections.emptyList();
+        customChannel = Collections.emptyList();
+    }
+
+    private static List<Emote> parseBTTV(String body, boolean isChannel) throws JSONException {
+        final String CHANNEL_EMOTE_ARRAY = "channelEmotes";
+        final String SHARED_EMOTE_ARRAY = "sharedEmotes";
+
+        List<JSONArray> emoteArrays = new ArrayList<>();
+        if (!isChannel) {
+            emoteArrays.add(new JSONArray(body));
+        } else {
+            JSONObject topChannelEmotes = new JSONObject(body);
+            // A "message" means the channel has no BTTV account, so there are no channel emotes.
+            if (topChannelEmotes.has("message")) return List.of();
+
+            emoteArrays.add(topChannelEmotes.getJSONArray(CHANNEL_EMOTE_ARRAY));
+            emoteArrays.add(topChannelEmotes.getJSONArray(SHARED_EMOTE_ARRAY));
+        }
+
+        List<Emote> emotes = new ArrayList<>();
+        for (JSONArray emoteArray : emoteArrays) {
+            for (int i = 0; i < emoteArray.length(); i++) {
+                Emote emote = ToBTTV(emoteArray.getJSONObject(i));
+                emote.isCustomChannelEmote = isChannel;
+                emotes.add(emote);
+            }
+        }
+
+        return emotes;
+    }
+
+    private static List<Emote> parseFFZ(String body, boolean isChannel) throws JSONException {
         final String DEFAULT_SETS = "default_sets";
         final String SETS = "sets";
         final String EMOTICONS = "emoticons";
 
-        try {
-            JSONObject topObject = enabled_ffz ? new JSONObject(Service.urlToJSONString(FFZ_GLOBAL_URL)) : new JSONObject();
-
-            JSONArray defaultSets;
-            if (topObject.has("defaultSets")) {
-                defaultSets = topObject.getJSONArray(DEFAULT_SETS);
-            } else {
-                defaultSets = new JSONArray();
-            }
+        JSONObject topObject = new JSONObject(body);
+        if (topObject.has("error") || !topObject.has(SETS)) return List.of();
 
-            JSONObject sets;
-            if (topObject.has("sets")) {
-                sets = topObject.getJSONObject(SETS);
-            } else {
-                sets = new JSONObject();
+        JSONObject sets = topObject.getJSONObject(SETS);
+        List<String> setIds = new ArrayList<>();
+        if (isChannel) {
+            for (Iterator<String> iterator = sets.keys(); iterator.hasNext(); ) {
+                setIds.add(iterator.next());
             }
-
+        } else if (topObject.has(DEFAULT_SETS)) {
+            JSONArray defaultSets = topObject.getJSONArray(DEFAULT_SETS);
             for (int setIndex = 0; setIndex < defaultSets.length(); setIndex++) {
-                JSONArray emoticons = sets.getJSONObject(defaultSets.get(setIndex).toString()).getJSONArray(EMOTICONS);
-                for (int emoteIndex = 0; emoteIndex < emoticons.length(); emoteIndex++) {
-                    Emote emote = ToFFZ(emoticons.getJSONObject(emoteIndex));
-                    customGlobal.add(emote);
-                    emoteKeywordToEmote.put(emote.keyword, emote);
-                }
+                setIds.add(defaultSets.get(setIndex).toString());
             }
+        }
 
-            String ffzResponse = enabled_ffz ? Service.urlToJSONString(FFZ_CHANNEL_URL) : "";
-            if (!ffzResponse.isEmpty()) {
-                JSONObject channelTopObject = new JSONObject(ffzResponse);
-                if (!channelTopObject.has("error")) {
-                    JSONObject channelSets = channelTopObject.getJSONObject(SETS);
-                    for (Iterator<String> iterator = channelSets.keys(); iterator.hasNext(); ) {
-                        JSONArray emoticons = channelSets.getJSONObject(iterator.next()).getJSONArray(EMOTICONS);
-                        for (int emoteIndex = 0; emoteIndex < emoticons.length(); emoteIndex++) {
-                            Emote emote = ToFFZ(emoticons.getJSONObject(emoteIndex));
-                            emote.isCustomChannelEmote = true;
-                            customChannel.add(emote);
-                            emoteKeywordToEmote.put(emote.keyword, emote);
-                        }
-                    }
-                }
+        List<Emote> emotes = new ArrayList<>();
+        for (String setId : setIds) {
+            JSONArray emoticons = sets.getJSONObject(setId).getJSONArray(EMOTICONS);
+            for (int emoteIndex = 0; emoteIndex < emoticons.length(); emoteIndex++) {
+                Emote emote = ToFFZ(emoticons.getJSONObject(emoteIndex));
+                emote.isCustomChannelEmote = isChannel;
+                emotes.add(emote);
             }
-        } catch (JSONException e) {
-            e.printStackTrace();
         }
 
-        // 7TV emotes
-        // API Doc: https://7tv.io/v3/docs
-        final String SEVENTV_GLOBAL_URL = "https://7tv.io/v3/emote-sets/global";
-        final String SEVENTV_USER_URL = "https://7tv.io/v3/users/twitch/" + channel.getUserId();
+        return emotes;
+    }
 
-        try {
-            if (enabled_seventv) {
-                HashMap<String, JSONObject> emoteSets = new HashMap<>();
-
-                // Get the global emote set
-                emoteSets.put("global", new JSONObject(Service.urlToJSONString(SEVENTV_GLOBAL_URL)));
-
-                // Get the channel's emote sets
-                JSONObject userData = new JSONObject(Service.urlToJSONString(SEVENTV_USER_URL));
-                if (!userData.isNull("emote_set"))
-                    emoteSets.put("channel", userData.getJSONObject("emote_set"));
-
-                // Load the emote sets
-                for (var entry : emoteSets.entrySet()) {
-                    JSONObject emoteSetData = entry.getValue();
-                    JSONArray emotes = emoteSetData.getJSONArray("emotes");
-                    for (int i = 0; i < emotes.length(); i++) {
-                        Emote emote = To7TV(emotes.getJSONObject(i));
-                        if (entry.getKey().equals("global")) {
-                            customGlobal.add(emote);
-                        } else {
-                            emote.isCustomChannelEmote = true;
-                            customChannel.add(emote);
-                        }
-                        emoteKeywordToEmote.put(emote.keyword, emote);
-                    }
-                }
-            }
-        } catch (JSONException e) {
-            e.printStackTrace();
+    private static List<Emote> parse7TV(JSONObject emoteSetData, boolean isChannel) throws JSONException {
+        JSONArray emoteArray = emoteSetData.getJSONArray("emotes");
+        List<Emote> emotes = new ArrayList<>();
+        for (int i = 0; i < emoteArray.length(); i++) {
+            Emote emote = To7TV(emoteArray.getJSONObject(i));
+            emote.isCustomChannelEmote = isChannel;
+            emotes.add(emote);
         }
 
-        try {
-            callback.onEmoteFetched();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        return emotes;
     }
 
-    private Emote ToBTTV(JSONObject emoteObject) throws JSONException {
+    private static Emote ToBTTV(JSONObject emoteObject) throws JSONException {
         final String EMOTE_ID = "id";
         final String EMOTE_WORD = "code";
 
         return Emote.BTTV(emoteObject.getString(EMOTE_WORD), emoteObject.getString(EMOTE_ID));
     }
 
-    private Emote ToFFZ(JSONObject emoteObject) throws JSONException {
+    private static Emote ToFFZ(JSONObject emoteObject) throws JSONException {
+        final String EMOTE_ID = "id";
         final String EMOTE_NAME = "name";
         final String EMOTE_URLS = "urls";
 
@@ -211,11 +281,12 @@ class ChatEmoteManager {
             urlMap.put(Integer.parseInt(key), urls.getString(key));
         }
 
-        return new Emote(emoteObject.getString(EMOTE_NAME), urlMap);
+        return Emote.fromUrls(emoteObject.getString(EMOTE_NAME), Emote.FFZ_URL, emoteObject.getString(EMOTE_ID), urlMap);
     }
 
-    private Emote To7TV(JSONObject emoteObject) throws JSONException {
-        JSONObject hostObject = emoteObject.getJSONObject("data").getJSONObject("host");
+    private static Emote To7TV(JSONObject emoteObject) throws JSONException {
+        JSONObject dataObject = emoteObject.getJSONObject("data");
+        JSONObject hostObject = dataObject.getJSONObject("host");
         String baseUrl = String.format("https:%s/", hostObject.getString("url"));
 
         JSONArray files = hostObject.getJSONArray("files");
@@ -229,64 +300,28 @@ class ChatEmoteManager {
             urlMap.put(size, baseUrl + name);
         }
 
-        return new Emote(emoteObject.getString("name"), urlMap);
+        return Emote.fromUrls(emoteObject.getString("name"), Emote.SEVENTV_URL, dataObject.getString("id"), urlMap);
     }
 
     /**
-     * Finds and creates custom emotes in a message and returns them.
+     * Finds the custom emotes in a message and puts them in the map, keyed on their position.
      *
      * @param message The message to find emotes in
-     * @return The List of emotes in the message
      */
-    Map<Integer, Emote> findCustomEmotes(String message) {
-        return ChatMessage.getEmotesFromMessage(message, emoteKeywordToEmote);
-    }
-
-    /**
-     * Finds and creates Twitch emotes in an unsplit irc line.
-     *
-     * @param line The line to find emotes in
-     * @return The list of emotes from the line
-     */
-    Map<Integer, Emote> findTwitchEmotes(@Nullable String line, String message) {
-        if (line == null)
-            return Collections.emptyMap();
-
-        Map<Integer, Emote> emotes = new HashMap<>();
-        Matcher emoteMatcher = emotePattern.matcher(line);
-
-        while (emoteMatcher.find()) {
-            String emoteId = emoteMatcher.group(1);
-            String[] stringPositions = emoteMatcher.group(2).split(",");
-            int[] positions = new int[stringPositions.length];
-            String keyword = "";
-            for (int i = 0; i < stringPositions.length; i++) {
-                String stringPosition = stringPositions[i];
-                String[] range = stringPosition.split("-");
-                int start = Integer.parseInt(range[0]);
-
-                positions[i] = start;
-
-                if (i == 0) {
-                    int end = Integer.parseInt(range[1]);
-                    keyword = message.substring(start, end + 1);
-                }
-            }
-
-            for (int position : positions) {
-                emotes.put(position, Emote.Twitch(keyword, emoteId));
-            }
-        }
-
-        return emotes;
+    void findCustomEmotes(String message, Map<Integer, Emote> emotes) {
+        emoteMatcher.findEmotes(message, emotes);
     }
 
     List<Emote> getGlobalCustomEmotes() {
-        return customGlobal;
+        synchronized (providerEmotes) {
+            return customGlobal;
+        }
     }
 
     List<Emote> getChannelCustomEmotes() {
-        return customChannel;
+        synchronized (providerEmotes) {
+            return customChannel;
+        }
     }
 
     public interface EmoteFetchCallback {
@@ -7,78 +7,104 @@ package com.perflyst.twire.chat;
 import android.os.SystemClock;
 import android.util.SparseArray;
 
+import androidx.annotation.Nullable;
+
 import com.github.philippheuer.credentialmanager.domain.OAuth2Credential;
-import com.github.philippheuer.events4j.core.EventManager;
-import com.github.philippheuer.events4j.simple.SimpleEventHandler;
 import com.github.philippheuer.events4j.simple.domain.EventSubscriber;
 import com.github.twitch4j.chat.TwitchChat;
-import com.github.twitch4j.chat.TwitchChatBuilder;
 import com.github.twitch4j.chat.events.ChatConnectionStateEvent;
 import com.github.twitch4j.chat.events.channel.ChannelMessageEvent;
 import com.github.twitch4j.chat.events.channel.ClearChatEvent;
 import com.github.twitch4j.chat.events.channel.DeleteMessageEvent;
+import com.github.twitch4j.chat.events.channel.UserBanEvent;
 import com.github.twitch4j.chat.events.channel.UserStateEvent;
+import com.github.twitch4j.chat.events.channel.UserTimeoutEvent;
 import com.github.twitch4j.chat.events.roomstate.ChannelStatesEvent;
 import com.github.twitch4j.client.websocket.domain.WebsocketConnectionState;
 import com.github.twitch4j.helix.domain.ChatBadge;
 import com.github.twitch4j.helix.domain.ChatBadgeSet;
 import com.github.twitch4j.helix.domain.ChatBadgeSetList;
 import com.github.twitch4j.helix.domain.NamedUserChatColor;
-import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.io.CharStreams;
 import com.netflix.hystrix.HystrixCommand;
 import com.perflyst.twire.TwireApplication;
+import com.perflyst.twire.misc.BadgeAtlas;
 import com.perflyst.twire.model.Badge;
 import com.perflyst.twire.model.ChatMessage;
 import com.perflyst.twire.model.Emote;
 import com.perflyst.twire.model.UserInfo;
-import com.perflyst.twire.service.Service;
 import com.perflyst.twire.service.Settings;
 import com.perflyst.twire.utils.Execute;
 
 import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import timber.log.Timber;
 
 public class ChatManager implements Runnable {
     public static ChatManager instance = null;
 
-    public static ImmutableSetMultimap<String, Badge> ffzBadgeMap;
-    private double currentProgress = -1;
-    private String cursor = "";
-    private boolean seek = false;
-    private double previousProgress;
+    private static final long BADGE_TTL = TimeUnit.HOURS.toMillis(12);
+    private static final int VOD_PAGES_AHEAD = 3;
+    private static final int PREFETCH_EMOTES = 30;
+    // How long VOD chat waits for the emotes and badges before it decodes its first comments without them.
+    private static final long CATALOG_TIMEOUT_MS = 5000;
+    // The global badge sets that show up in most chats, the other global badges are decoded when they're first seen.
+    private static final List<String> COMMON_GLOBAL_BADGES = Arrays.asList("broadcaster", "moderator", "vip", "subscriber", "founder", "premium", "turbo", "partner", "staff");
+
+    private static volatile FfzBadgeIndex ffzBadges;
     private final OAuth2Credential account;
     private final UserInfo channel;
     private final String vodId;
     private final ChatCallback callback;
     private final ChatEmoteManager mEmoteManager;
-    private Map<String, Map<String, Badge>> globalBadges = new HashMap<>();
-    private Map<String, Map<String, Badge>> channelBadges = new HashMap<>();
+    private final ChatMessageBatcher messageBatcher;
+    private final ChatSpamFilter spamFilter;
+    private final BadgeAtlas badgeAtlas;
+    private final EmoteUsageStats emoteUsage;
+    private volatile ChatRules rules;
+    private volatile Map<String, Map<String, Badge>> globalBadges = new HashMap<>();
+    private volatile Map<String, Map<String, Badge>> channelBadges = new HashMap<>();
+    // The resolved badges of every distinct badges tag, replaced whenever more badges have loaded.
+    private volatile Map<String, List<Badge>> resolvedBadges = new ConcurrentHashMap<>();
     private final String twitchChatServer;
 
-    private final Object vodLock = new Object();
-    private double nextCommentOffset = 0;
+    private volatile VodChatFetcher vodFetcher;
+    private volatile VodChatScheduler vodScheduler;
     private int vodOffset = 0;
 
-    private boolean isStopping;
+    private volatile boolean isStopping;
+    // Counts down as the three badge catalogs arrive, VOD comments are decoded once they have.
+    private volatile CountDownLatch badgesLoaded = new CountDownLatch(0);
+    private volatile boolean catalogsLoaded;
     // Data about the user and how to display his/hers message
     private String userDisplayName;
     private String userColor;
     private Map<String, String> userBadges;
 
-    private TwitchChat twitchChat;
+    private ChatConnection.Subscription chatSubscription;
 
     public ChatManager(UserInfo aChannel, String aVodId, Integer vodOffset, ChatCallback aCallback) {
+        this(aChannel, aVodId, vodOffset, aCallback, Settings.getChatEnableSSL() ? TwitchChat.TWITCH_WEB_SOCKET_SERVER : "ws://irc-ws.chat.twitch.tv:80");
+        Timber.d("Use SSL Chat Server: %s", Settings.getChatEnableSSL());
+    }
+
+    /**
+     * @param chatServer The base URL of the IRC WebSocket server, the load tests point this at a local server
+     */
+    ChatManager(UserInfo aChannel, String aVodId, Integer vodOffset, ChatCallback aCallback, String chatServer) {
         instance = this;
         mEmoteManager = new ChatEmoteManager(aChannel);
 
@@ -100,28 +126,33 @@ public class ChatManager implements Runnable {
         vodId = aVodId;
         this.vodOffset = vodOffset;
         callback = aCallback;
-
-        twitchChatServer = Settings.getChatEnableSSL() ? TwitchChat.TWITCH_WEB_SOCKET_SERVER : "ws://irc-ws.chat.twitch.tv:80";
-        Timber.d("Use SSL Chat Server: %s", Settings.getChatEnableSSL());
-
-        nextCommentOffset = 0;
+        messageBatcher = new ChatMessageBatcher(Settings.getChatBatchLatency(), callback::onMessages, callback::onMessagesChanged);
+        spamFilter = new ChatSpamFilter(messageBatcher::update);
+        rules = ChatRules.fromSettings(null);
+        badgeAtlas = BadgeAtlas.getInstance(Settings.getContext());
+        emoteUsage = EmoteUsageStats.forChannel(aChannel.getUserId());
+        twitchChatServer = chatServer;
     }
 
-    public void updateVodProgress(long aCurrentProgress, boolean aSeek) {
-        currentProgress = aCurrentProgress / 1000f + vodOffset;
-        seek |= aSeek;
-
-        // Only notify the thread when there's work to do.
-        if (!aSeek && currentProgress < nextCommentOffset) return;
+    /**
+     * Tells VOD chat where the player is, called on the main thread whenever the position, speed or play state changes.
+     *
+     * @param seek If the user seeked, so the chat should start over
+     */
+    public static void updateVodPlayback(long positionMs, float speed, boolean playing, boolean seek) {
+        VodChatScheduler.setPlayback(positionMs, speed, playing);
 
-        synchronized (vodLock) {
-            vodLock.notify();
-        }
+        ChatManager manager = instance;
+        VodChatScheduler scheduler = manager != null ? manager.vodScheduler : null;
+        if (scheduler != null) scheduler.onPlaybackChanged(seek);
     }
 
+    /**
+     * Called on the main thread when the user leaves the VOD, comments from before this point won't be shown.
+     */
     public void setPreviousProgress() {
-        previousProgress = currentProgress;
-        cursor = "";
+        VodChatScheduler scheduler = vodScheduler;
+        if (scheduler != null) scheduler.restart();
     }
 
     @Override
@@ -134,9 +165,29 @@ public class ChatManager implements Runnable {
                 )
         );
 
-        globalBadges = readBadges(TwireApplication.helix.getGlobalChatBadges(null));
-        channelBadges = readBadges(TwireApplication.helix.getChannelChatBadges(null, channel.getUserId()));
-        readFFZBadges();
+        // The emotes the channel uses most are loaded before its chat shows them.
+        Execute.background(() -> {
+            emoteUsage.load();
+            EmotePrefetcher.prefetch(emoteUsage.getTop(PREFETCH_EMOTES));
+        });
+
+        // Badges are loaded next to the emotes and the connection, messages that arrive first are shown without them.
+        // Once known they are decoded into the badge atlas, so messages don't have to load them one by one.
+        CountDownLatch badgeLatch = new CountDownLatch(3);
+        badgesLoaded = badgeLatch;
+        List<Supplier<List<Badge>>> badgeLoads = Arrays.asList(this::loadGlobalBadges, this::loadChannelBadges, this::loadFFZBadges);
+        for (Supplier<List<Badge>> badgeLoad : badgeLoads) {
+            Execute.background(() -> {
+                List<Badge> badges;
+                try {
+                    badges = badgeLoad.get();
+                } finally {
+                    // Comments can be decoded with the catalog, the atlas only changes how the badges are drawn.
+                    badgeLatch.countDown();
+                }
+                badgeAtlas.preload(this, badges);
+            });
+        }
 
         if (vodId == null) {
             connect();
@@ -145,202 +196,142 @@ public class ChatManager implements Runnable {
         }
     }
 
-    private void onMessage(ChatMessage message) {
-        Execute.ui(() -> callback.onMessage(message));
-    }
-
-    private void onState(WebsocketConnectionState state) {
-        Execute.ui(() -> callback.onConnectionChanged(state));
-    }
-
     /**
-     * Connect to twitch with the users twitch name and oauth key.
-     * Joins the chat hashChannel.
-     * Sends request to retrieve emote id and positions as well as username color
-     * Handles parsing messages, pings and disconnects.
-     * Inserts emotes, subscriber, turbo and mod drawables into messages. Also Colors the message username by the user specified color.
-     * When a message has been parsed it is sent via the callback interface.
+     * @return The common global badges, to be decoded into the atlas
      */
-    private void connect() {
-        twitchChat = TwitchChatBuilder.builder()
-                .withChatAccount(account)
-                .withBaseUrl(twitchChatServer)
-                .build();
-
-        twitchChat.joinChannel(channel.getLogin());
-
-        EventManager eventManager = twitchChat.getEventManager();
-        eventManager.getEventHandler(SimpleEventHandler.class).registerListener(this);
+    private List<Badge> loadGlobalBadges() {
+        globalBadges = readBadges("helix:badges:global", () -> TwireApplication.helix.getGlobalChatBadges(null));
+        resolvedBadges = new ConcurrentHashMap<>();
+
+        List<Badge> common = new ArrayList<>();
+        for (String set : COMMON_GLOBAL_BADGES) {
+            Map<String, Badge> versions = globalBadges.get(set);
+            if (versions != null) common.addAll(versions.values());
+        }
+        return common;
     }
 
-    private static class VODComment {
-        public final double contentOffset;
-        public final JSONObject data;
+    private List<Badge> loadChannelBadges() {
+        channelBadges = readBadges("helix:badges:" + channel.getUserId(), () -> TwireApplication.helix.getChannelChatBadges(null, channel.getUserId()));
+        resolvedBadges = new ConcurrentHashMap<>();
 
-        private VODComment(double contentOffset, JSONObject data) {
-            this.contentOffset = contentOffset;
-            this.data = data;
+        List<Badge> badges = new ArrayList<>();
+        for (Map<String, Badge> versions : channelBadges.values()) {
+            badges.addAll(versions.values());
         }
+        return badges;
     }
 
-    private void processVodChat() {
-        try {
-            synchronized (vodLock) {
-                onState(WebsocketConnectionState.CONNECTED);
-            }
-
-            // Make sure that current progress has been set.
-            synchronized (vodLock) {
-                while (currentProgress == -1 && !isStopping) vodLock.wait();
-            }
-
-            Queue<VODComment> downloadedComments = new LinkedList<>();
-            boolean reconnecting = false;
-            boolean justSeeked = false;
-            while (!isStopping) {
-                if (seek) {
-                    seek = false;
-                    cursor = "";
-                    downloadedComments.clear();
-                    previousProgress = 0;
-                    justSeeked = true;
-                }
+    private List<Badge> loadFFZBadges() {
+        readFFZBadges();
+        resolvedBadges = new ConcurrentHashMap<>();
 
-                VODComment comment = downloadedComments.peek();
-                if (comment == null) {
-                    JSONObject dataObject = Service.graphQL("VideoCommentsByOffsetOrCursor", "b70a3591ff0f4e0313d126c6a1502d79a1c02baebb288227c582044aa76adf6a", new HashMap<>() {{
-                        put("videoID", vodId);
-                        if (cursor.isEmpty()) put("contentOffsetSeconds", (int) currentProgress);
-                        else put("cursor", cursor);
-                    }});
-
-                    if (dataObject == null) {
-                        reconnecting = true;
-                        onState(WebsocketConnectionState.RECONNECTING);
-                        SystemClock.sleep(2500);
-                        continue;
-                    } else if (reconnecting) {
-                        reconnecting = false;
-                        onState(WebsocketConnectionState.CONNECTED);
-                    }
-
-                    if (dataObject.getJSONObject("video").isNull("comments")) {
-                        cursor = "";
-                        continue;
-                    }
-
-                    JSONObject commentsObject = dataObject.getJSONObject("video").getJSONObject("comments");
-                    JSONArray comments = commentsObject.getJSONArray("edges");
-
-                    for (int i = 0; i < comments.length(); i++) {
-                        JSONObject commentJSON = comments.getJSONObject(i).getJSONObject("node");
-                        int contentOffset = commentJSON.getInt("contentOffsetSeconds");
-                        // Don't show previous comments and don't show comments that came before the current progress unless we just seeked.
-                        if (contentOffset < previousProgress || contentOffset < currentProgress && !justSeeked)
-                            continue;
-
-                        // Sometimes the commenter is null, Twitch doesn't show them so we won't either.
-                        if (commentJSON.isNull("commenter"))
-                            continue;
-
-                        downloadedComments.add(new VODComment(contentOffset, commentJSON));
-                    }
-
-                    justSeeked = false;
-
-                    JSONObject pageInfo = commentsObject.getJSONObject("pageInfo");
-                    boolean hasNextPage = pageInfo.getBoolean("hasNextPage");
-                    // Assumption: If the VOD has no comments and no previous or next comments, there are no comments on the VOD.
-                    if (comments.length() == 0 && !hasNextPage && !pageInfo.getBoolean("hasPreviousPage")) {
-                        break;
-                    }
-
-                    if (hasNextPage) {
-                        cursor = comments.getJSONObject(comments.length() - 1).getString("cursor");
-                    } else if (downloadedComments.isEmpty()) {
-                        // We've reached the end of the comments, nothing to do until the user seeks.
-                        synchronized (vodLock) {
-                            while (!seek && !isStopping) {
-                                vodLock.wait();
-                            }
-                        }
-                    }
-
-                    comment = downloadedComments.peek();
-                }
+        FfzBadgeIndex ffz = ffzBadges;
+        if (ffz == null) return Collections.emptyList();
 
-                if (seek || comment == null) {
-                    continue;
-                }
+        List<Badge> badges = new ArrayList<>();
+        for (int badgeIndex = 0; badgeIndex < ffz.getBadgeCount(); badgeIndex++) {
+            badges.add(ffz.getBadge(badgeIndex));
+        }
+        return badges;
+    }
 
-                nextCommentOffset = comment.contentOffset;
-                synchronized (vodLock) {
-                    while (currentProgress < nextCommentOffset && !seek && !isStopping)
-                        vodLock.wait();
-                }
+    /**
+     * @param privileged If the message is from a moderator or the broadcaster, so it's never collapsed
+     */
+    private void onMessage(ChatMessage message, boolean privileged) {
+        if (!spamFilter.accept(message, privileged)) return;
 
-                // If the user seeked, don't display this comment since it would now be an old comment.
-                if (seek) continue;
+        countEmotes(message);
+        callback.onPrepareMessage(message);
+        messageBatcher.add(message);
+    }
 
-                JSONObject commenter = comment.data.getJSONObject("commenter");
-                JSONObject message = comment.data.getJSONObject("message");
+    private void countEmotes(ChatMessage message) {
+        for (int i = 0; i < message.getEmoteCount(); i++) {
+            emoteUsage.count(message.getEmoteHandle(i));
+        }
+    }
 
-                Map<String, String> badges = new HashMap<>();
-                if (message.has("userBadges")) {
-                    JSONArray userBadgesArray = message.getJSONArray("userBadges");
-                    for (int j = 0; j < userBadgesArray.length(); j++) {
-                        JSONObject userBadge = userBadgesArray.getJSONObject(j);
-                        String setID = userBadge.getString("setID");
-                        String version = userBadge.getString("version");
-                        if (setID.isEmpty() || version.isEmpty()) continue;
+    private void onState(WebsocketConnectionState state) {
+        Execute.ui(() -> callback.onConnectionChanged(state));
+    }
 
-                        badges.put(setID, version);
-                    }
-                }
+    /**
+     * Subscribes to the channel on the shared chat connection of the account, which connects and joins it if needed.
+     * Sends request to retrieve emote id and positions as well as username color
+     * Handles parsing messages, pings and disconnects.
+     * Inserts emotes, subscriber, turbo and mod drawables into messages. Also Colors the message username by the user specified color.
+     * When a message has been parsed it is sent via the callback interface.
+     */
+    private void connect() {
+        chatSubscription = ChatConnection.subscribe(account, twitchChatServer, channel.getLogin(), this);
 
-                String color = !message.isNull("userColor") ? message.getString("userColor") : null;
-                String displayName = commenter.getString("displayName");
+        if (isStopping) chatSubscription.close();
+    }
 
-                StringBuilder bodyBuilder = new StringBuilder();
-                JSONArray fragments = message.getJSONArray("fragments");
-                // Some messages have no fragments, no idea why. Twitch skips them so we will too.
-                if (fragments.length() == 0) {
-                    downloadedComments.poll();
-                    continue;
-                }
+    private void processVodChat() {
+        onState(WebsocketConnectionState.CONNECTED);
 
-                Map<Integer, Emote> emotes = new HashMap<>();
-                for (int i = 0; i < fragments.length(); i++) {
-                    JSONObject fragment = fragments.getJSONObject(i);
-                    String text = fragment.getString("text");
+        // A downloaded chat is replayed from the archive, without the network.
+        VodChatArchive archive = VodChatArchive.open(vodId);
+        VodChatFetcher fetcher = new VodChatFetcher(vodId, archive, VOD_PAGES_AHEAD, this::decodeVodComment, this::onState, () -> vodScheduler.schedule());
+        vodScheduler = new VodChatScheduler(fetcher, vodOffset, messageBatcher::add);
+        vodFetcher = fetcher;
 
-                    JSONObject emote = fragment.optJSONObject("emote");
-                    if (emote != null) {
-                        emotes.put(bodyBuilder.length(), Emote.Twitch(text, emote.getString("emoteID")));
-                    }
+        // The scheduler tells the fetcher where to start once it knows where the player is.
+        Execute.background(fetcher);
+        vodScheduler.start();
 
-                    bodyBuilder.append(text);
-                }
+        if (isStopping) {
+            vodScheduler.stop();
+            fetcher.stop();
+        }
+    }
 
-                String body = bodyBuilder.toString();
-                emotes.putAll(mEmoteManager.findCustomEmotes(body));
+    /**
+     * Turns a VOD comment into a message and renders it, this runs on the fetching thread ahead of playback.
+     *
+     * @return The message, or null if the chat rules hide it
+     */
+    @Nullable
+    private ChatMessage decodeVodComment(VodComment comment) {
+        int tags = rules.match(comment.displayName, comment.body);
+        if ((tags & ChatRules.HIDDEN) != 0) return null;
 
-                //Pattern.compile(Pattern.quote(userDisplayName), Pattern.CASE_INSENSITIVE).matcher(message).find();
+        awaitCatalogs();
 
-                ChatMessage chatMessage = new ChatMessage(body, displayName, color, getBadges(badges), emotes, false);
-                onMessage(chatMessage);
+        Map<Integer, Emote> emotes = new HashMap<>();
+        for (VodComment.TwitchEmote emote : comment.emotes) {
+            emotes.put(emote.position, IrcTagDecoder.twitchEmote(emote.id, emote.keyword));
+        }
+        mEmoteManager.findCustomEmotes(comment.body, emotes);
+
+        ChatMessage chatMessage = new ChatMessage(comment.body, comment.displayName, comment.color, getBadges(comment.badges, comment.displayName), emotes, (tags & ChatRules.HIGHLIGHT) != 0);
+        chatMessage.isCollapsed = (tags & ChatRules.COLLAPSED) != 0;
+        countEmotes(chatMessage);
+        // Render it here, the scheduler releases it on the main thread.
+        callback.onPrepareMessage(chatMessage);
+        return chatMessage;
+    }
 
-                downloadedComments.poll();
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+    /**
+     * Waits for the emotes and badges before the first VOD comments are decoded, as they keep what they were decoded with.
+     * A catalog that takes too long is given up on, the comments after that are decoded with what has arrived.
+     */
+    private void awaitCatalogs() {
+        if (catalogsLoaded) return;
 
-            onState(WebsocketConnectionState.LOST);
-            SystemClock.sleep(2500);
-            processVodChat();
+        long deadline = SystemClock.elapsedRealtime() + CATALOG_TIMEOUT_MS;
+        try {
+            if (!badgesLoaded.await(CATALOG_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                    || !mEmoteManager.awaitLoaded(Math.max(0, deadline - SystemClock.elapsedRealtime()), TimeUnit.MILLISECONDS))
+                Timber.w("VOD chat starts before the emotes and badges have loaded");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
 
-        currentProgress = -1;
+        catalogsLoaded = true;
     }
 
     @EventSubscriber
@@ -367,6 +358,7 @@ public class ChatManager implements Runnable {
         userBadges = event.getMessageEvent().getBadges();
         userColor = event.getColor().orElse("");
         userDisplayName = event.getDisplayName().orElse("");
+        rules = ChatRules.fromSettings(userDisplayName);
         callback.onEmoteSetsFetched(event.getEmoteSets());
     }
 
@@ -376,25 +368,25 @@ public class ChatManager implements Runnable {
      */
     @EventSubscriber
     private void handleMessage(ChannelMessageEvent message) {
-        var messageEvent = message.getMessageEvent();
-        Map<String, String> badges = messageEvent.getBadges();
         String displayName = message.getUser().getName();
-        String color = messageEvent.getTagValue("color").orElse(randomColor(displayName));
         String content = message.getMessage();
-        Map<Integer, Emote> emotes = mEmoteManager.findTwitchEmotes(messageEvent.getTagValue("emotes").orElse(""), content);
-        emotes.putAll(mEmoteManager.findCustomEmotes(content));
-        //Pattern.compile(Pattern.quote(userDisplayName), Pattern.CASE_INSENSITIVE).matcher(message).find();
+        int tags = rules.match(displayName, content);
+        if ((tags & ChatRules.HIDDEN) != 0) return;
+
+        var messageEvent = message.getMessageEvent();
+        String badges = messageEvent.getTagValue("badges").orElse(null);
+        String color = messageEvent.getTagValue("color").orElse(randomColor(displayName));
+        Map<Integer, Emote> emotes = new HashMap<>();
+        IrcTagDecoder.decodeEmotes(messageEvent.getTagValue("emotes").orElse(null), content, emotes);
+        mEmoteManager.findCustomEmotes(content, emotes);
 
-        ChatMessage chatMessage = new ChatMessage(content, displayName, color, getBadges(badges), emotes, false);
+        ChatMessage chatMessage = new ChatMessage(content, displayName, color, getBadges(badges, displayName), emotes, (tags & ChatRules.HIGHLIGHT) != 0);
         chatMessage.setId(message.getEventId());
+        chatMessage.setUserId(message.getUser().getId());
         chatMessage.systemMessage = messageEvent.getTagValue("system-msg").orElse("");
+        chatMessage.isCollapsed = (tags & ChatRules.COLLAPSED) != 0;
 
-        if (content.contains("@" + getUserDisplayName())) {
-            Timber.d("Highlighting message with mention: %s", content);
-            chatMessage.isHighlight = true;
-        }
-
-        onMessage(chatMessage);
+        onMessage(chatMessage, IrcTagDecoder.hasBadge(badges, "moderator") || IrcTagDecoder.hasBadge(badges, "broadcaster") || IrcTagDecoder.hasBadge(badges, "staff"));
     }
 
     private String randomColor(String username) {
@@ -404,12 +396,22 @@ public class ChatManager implements Runnable {
 
     @EventSubscriber
     private void handleClearChat(ClearChatEvent event) {
-        callback.onClear(null);
+        Execute.ui(() -> callback.onClear(null));
     }
 
     @EventSubscriber
     private void handleClearMessage(DeleteMessageEvent event) {
-        callback.onClear(event.getMsgId());
+        Execute.ui(() -> callback.onClear(event.getMsgId()));
+    }
+
+    @EventSubscriber
+    private void handleUserBan(UserBanEvent event) {
+        Execute.ui(() -> callback.onClearUser(event.getUser().getId()));
+    }
+
+    @EventSubscriber
+    private void handleUserTimeout(UserTimeoutEvent event) {
+        Execute.ui(() -> callback.onClearUser(event.getUser().getId()));
     }
 
     /**
@@ -417,13 +419,20 @@ public class ChatManager implements Runnable {
      */
     public void stop() {
         isStopping = true;
+        messageBatcher.stop();
 
-        if (twitchChat != null)
-            twitchChat.close();
+        if (chatSubscription != null)
+            chatSubscription.close();
 
-        synchronized (vodLock) {
-            vodLock.notify();
-        }
+        if (vodScheduler != null)
+            vodScheduler.stop();
+
+        if (vodFetcher != null)
+            vodFetcher.stop();
+
+        mEmoteManager.release();
+        badgeAtlas.release(this);
+        Execute.background(emoteUsage::save);
     }
 
     /**
@@ -432,56 +441,66 @@ public class ChatManager implements Runnable {
      * @param message The message that will be sent
      */
     public void sendMessage(final String message) {
-        twitchChat.sendMessage(channel.getLogin(), message);
-    }
-
-    private Map<String, Map<String, Badge>> readBadges(HystrixCommand<ChatBadgeSetList> request) {
-        return new HashMap<>() {{
-            for (ChatBadgeSet badgeSet : request.execute().getBadgeSets()) {
-                put(badgeSet.getSetId(), new HashMap<>() {{
-                    for (ChatBadge badge : badgeSet.getVersions()) {
-                        put(badge.getId(), new Badge(
-                                badgeSet.getSetId(),
-                                new SparseArray<>() {{
-                                    put(1, badge.getSmallImageUrl());
-                                    put(2, badge.getMediumImageUrl());
-                                    put(4, badge.getLargeImageUrl());
-                                }})
-                        );
-                    }
-                }});
-            }
-        }};
+        chatSubscription.sendMessage(message);
     }
 
-    private void readFFZBadges() {
-        ImmutableSetMultimap.Builder<String, Badge> mapBuilder = ImmutableSetMultimap.builder();
-
-        try {
-            JSONObject topObject = new JSONObject(Service.urlToJSONString("https://api.frankerfacez.com/v1/badges"));
-            JSONArray badges = topObject.getJSONArray("badges");
-            JSONObject users = topObject.getJSONObject("users");
-            for (int badgeIndex = 0; badgeIndex < badges.length(); badgeIndex++) {
-                JSONObject badgeJSON = badges.getJSONObject(badgeIndex);
-
-                SparseArray<String> urls = new SparseArray<>();
-                JSONObject urlsObject = badgeJSON.getJSONObject("urls");
-                for (Iterator<String> iterator = urlsObject.keys(); iterator.hasNext(); ) {
-                    String size = iterator.next();
-                    urls.put(Integer.parseInt(size), urlsObject.getString(size));
+    /**
+     * Reads a set of Twitch badges through the {@link ChatCatalogCache}.
+     * The badge sets are stored as {"set": {"version": [url 1x, url 2x, url 4x]}}.
+     */
+    private Map<String, Map<String, Badge>> readBadges(String key, Supplier<HystrixCommand<ChatBadgeSetList>> request) {
+        Map<String, Map<String, Badge>> badges = ChatCatalogCache.get(key, BADGE_TTL, () -> {
+            JSONObject sets = new JSONObject();
+            for (ChatBadgeSet badgeSet : request.get().execute().getBadgeSets()) {
+                JSONObject versions = new JSONObject();
+                for (ChatBadge badge : badgeSet.getVersions()) {
+                    versions.put(badge.getId(), new JSONArray()
+                            .put(badge.getSmallImageUrl())
+                            .put(badge.getMediumImageUrl())
+                            .put(badge.getLargeImageUrl()));
                 }
+                sets.put(badgeSet.getSetId(), versions);
+            }
 
-                Badge badge = new Badge(badgeJSON.getString("name"), urls, badgeJSON.getString("color"), badgeJSON.isNull("replaces") ? null : badgeJSON.getString("replaces"));
-                JSONArray badgeUsers = users.getJSONArray(badgeJSON.getString("id"));
-                for (int userIndex = 0; userIndex < badgeUsers.length(); userIndex++) {
-                    mapBuilder.put(badgeUsers.getString(userIndex), badge);
+            return sets.toString();
+        }, body -> {
+            Map<String, Map<String, Badge>> badgeSets = new HashMap<>();
+            JSONObject sets = new JSONObject(CharStreams.toString(body));
+            for (Iterator<String> setIterator = sets.keys(); setIterator.hasNext(); ) {
+                String setId = setIterator.next();
+                JSONObject versions = sets.getJSONObject(setId);
+
+                Map<String, Badge> versionMap = new HashMap<>();
+                for (Iterator<String> versionIterator = versions.keys(); versionIterator.hasNext(); ) {
+                    String version = versionIterator.next();
+                    JSONArray urls = versions.getJSONArray(version);
+                    versionMap.put(version, new Badge(
+                            setId,
+                            new SparseArray<>() {{
+                                put(1, urls.getString(0));
+                                put(2, urls.getString(1));
+                                put(4, urls.getString(2));
+                            }})
+                    );
                 }
+                badgeSets.put(setId, versionMap);
             }
 
-            ffzBadgeMap = mapBuilder.build();
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
+            return badgeSets;
+        });
+
+        return badges != null ? badges : Collections.emptyMap();
+    }
+
+    private void readFFZBadges() {
+        ffzBadges = ChatCatalogCache.get("https://api.frankerfacez.com/v1/badges", BADGE_TTL, FfzBadgeIndex::parse);
+    }
+
+    /**
+     * Compiles the chat rules again, for when they may have changed in the settings.
+     */
+    void reloadRules() {
+        rules = ChatRules.fromSettings(userDisplayName);
     }
 
     public String getUserDisplayName() {
@@ -505,24 +524,91 @@ public class ChatManager implements Runnable {
         if (globalSet != null && globalSet.get(version) != null)
             return globalSet.get(version);
 
-        Timber.e("Badge failed to load: \"" + badgeSet + "\" \"" + version + "\"");
+        Timber.e("Badge failed to load: \"%s\" \"%s\"", badgeSet, version);
         return null;
     }
 
-    public List<Badge> getBadges(Map<String, String> badges) {
-        List<Badge> badgeObjects = new ArrayList<>();
-        for (Map.Entry<String, String> entry : badges.entrySet()) {
-            badgeObjects.add(getBadge(entry.getKey(), entry.getValue()));
+    /**
+     * Resolves the badges of a user, their FFZ badges included. A channel only has a few distinct badge tags,
+     * so the result is resolved once per tag and shared by every message with it, it can't be changed.
+     *
+     * @param badges The badges tag of a message
+     * @param name   The name of the user, for their FFZ badges
+     */
+    private List<Badge> getBadges(@Nullable String badges, String name) {
+        if (badges == null) badges = "";
+
+        FfzBadgeIndex ffz = ffzBadges;
+        int login = ffz != null ? ffz.find(name) : -1;
+        // Only users with FFZ badges need their own entry.
+        String key = login == -1 ? badges : badges + '\n' + login;
+
+        Map<String, List<Badge>> resolved = resolvedBadges;
+        List<Badge> badgeObjects = resolved.get(key);
+        if (badgeObjects == null) {
+            badgeObjects = Collections.unmodifiableList(resolveBadges(badges, ffz, login));
+            resolved.put(key, badgeObjects);
+
+            // A badge that wasn't preloaded, like a rare global one, is added to the atlas for the next messages.
+            List<Badge> newBadges = badgeObjects;
+            Execute.background(() -> badgeAtlas.preload(this, newBadges));
         }
 
         return badgeObjects;
     }
 
+    public List<Badge> getBadges(Map<String, String> badges, String name) {
+        StringBuilder tag = new StringBuilder();
+        for (Map.Entry<String, String> entry : badges.entrySet()) {
+            if (tag.length() > 0) tag.append(',');
+            tag.append(entry.getKey()).append('/').append(entry.getValue());
+        }
+
+        return getBadges(tag.toString(), name);
+    }
+
+    private List<Badge> resolveBadges(String tag, @Nullable FfzBadgeIndex ffz, int login) {
+        List<Badge> badges = IrcTagDecoder.decodeBadges(tag, this::getBadge);
+        if (login == -1) return badges;
+
+        // Load any special FFZ badges the user has
+        for (int badgeIndex = 0; badgeIndex < ffz.getBadgeCount(); badgeIndex++) {
+            if (!ffz.hasBadge(login, badgeIndex)) continue;
+
+            Badge badge = ffz.getBadge(badgeIndex);
+            if (badge.replaces == null) {
+                badges.add(badge);
+                continue;
+            }
+
+            for (int i = 0; i < badges.size(); i++) {
+                if (badges.get(i) != null && badges.get(i).name.equals(badge.replaces)) {
+                    badges.set(i, badge);
+                    break;
+                }
+            }
+        }
+
+        return badges;
+    }
+
     public interface ChatCallback {
-        void onMessage(ChatMessage message);
+        /**
+         * Called on the chat thread before a message is delivered, so it can be prepared for display off the main thread.
+         */
+        void onPrepareMessage(ChatMessage message);
+
+        void onMessages(List<ChatMessage> messages);
+
+        /**
+         * Called with messages that were delivered before and have to be shown again, like when their repeat count changes.
+         */
+        void onMessagesChanged(List<ChatMessage> messages);
 
         void onClear(String target);
 
+        void onClearUser(String userId);
+
         void onConnectionChanged(WebsocketConnectionState state);
 
         void onRoomStateChange(ChannelStatesEvent state);
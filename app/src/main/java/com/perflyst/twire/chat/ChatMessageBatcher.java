@@ -0,0 +1,118 @@
+package com.perflyst.twire.chat;
+
+import android.view.Choreographer;
+
+import com.perflyst.twire.model.ChatMessage;
+import com.perflyst.twire.utils.Execute;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Stages messages from the chat thread and hands them to the UI in batches, at most once per frame.
+ * The first message after a quiet period is delivered on the next frame. In a busy chat messages are held back
+ * until the oldest one has waited {@code maxLatencyMs}, so the UI isn't flooded and no message waits longer than that.
+ * Messages that were already delivered but have changed are batched the same way.
+ */
+class ChatMessageBatcher implements Choreographer.FrameCallback {
+    private final ConcurrentLinkedQueue<ChatMessage> pending = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<ChatMessage> changed = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    // When the oldest message that wasn't delivered yet was queued, in System.nanoTime() like the frame time, or 0.
+    private final AtomicLong oldestNanos = new AtomicLong();
+    private final Consumer<List<ChatMessage>> consumer;
+    private final Consumer<List<ChatMessage>> changedConsumer;
+    private final long maxLatencyNanos;
+
+    // Only touched on the UI thread.
+    private long lastDrainNanos = Long.MIN_VALUE;
+    private boolean stopped;
+
+    ChatMessageBatcher(long maxLatencyMs, Consumer<List<ChatMessage>> consumer, Consumer<List<ChatMessage>> changedConsumer) {
+        this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxLatencyMs));
+        this.consumer = consumer;
+        this.changedConsumer = changedConsumer;
+    }
+
+    /**
+     * Queues a message, can be called from any thread.
+     */
+    void add(ChatMessage message) {
+        pending.add(message);
+        schedule();
+    }
+
+    /**
+     * Queues a message that has been added before to be shown again, can be called from any thread.
+     */
+    void update(ChatMessage message) {
+        changed.add(message);
+        schedule();
+    }
+
+    private void schedule() {
+        oldestNanos.compareAndSet(0, System.nanoTime());
+        if (scheduled.compareAndSet(false, true)) {
+            Execute.ui(() -> {
+                if (!stopped) Choreographer.getInstance().postFrameCallback(this);
+            });
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (stopped) return;
+
+        // Chat is busy, wait until the oldest message has waited long enough.
+        long oldest = oldestNanos.get();
+        boolean quiet = lastDrainNanos == Long.MIN_VALUE || oldest - lastDrainNanos >= maxLatencyNanos;
+        long deadline = oldest + maxLatencyNanos;
+        if (oldest != 0 && !quiet && frameTimeNanos < deadline) {
+            // Rounded up, so the frame after the delay is past the deadline.
+            Choreographer.getInstance().postFrameCallbackDelayed(this, TimeUnit.NANOSECONDS.toMillis(deadline - frameTimeNanos + 999_999));
+            return;
+        }
+
+        // Reset before draining so a message added during the drain schedules the next frame.
+        oldestNanos.set(0);
+        scheduled.set(false);
+
+        List<ChatMessage> batch = new ArrayList<>();
+        ChatMessage message;
+        while ((message = pending.poll()) != null) {
+            batch.add(message);
+        }
+
+        // A message can change several times in a batch, it only has to be shown again once.
+        Set<ChatMessage> changedBatch = Collections.newSetFromMap(new IdentityHashMap<>());
+        while ((message = changed.poll()) != null) {
+            changedBatch.add(message);
+        }
+
+        if (batch.isEmpty() && changedBatch.isEmpty()) return;
+
+        lastDrainNanos = frameTimeNanos;
+        if (!batch.isEmpty()) consumer.accept(batch);
+        if (!changedBatch.isEmpty()) changedConsumer.accept(new ArrayList<>(changedBatch));
+    }
+
+    /**
+     * Drops any pending messages and stops delivering new ones.
+     */
+    void stop() {
+        pending.clear();
+        changed.clear();
+        Execute.ui(() -> {
+            stopped = true;
+            Choreographer.getInstance().removeFrameCallback(this);
+        });
+    }
+}
@@ -0,0 +1,189 @@
+package com.perflyst.twire.chat;
+
+import com.perflyst.twire.model.ChatMessage;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fixed capacity ring buffer of chat messages. Adding to a full buffer evicts the oldest message.
+ * The oldest messages can be kept for a while by letting the buffer grow, and evicted later with {@link #trim()}.
+ * Every message gets an increasing sequence number, so positions and slots are plain arithmetic
+ * and messages can be found by id or by user without scanning the buffer.
+ */
+public class ChatMessageBuffer {
+    // How many times its capacity the buffer can grow to while the oldest messages are kept.
+    private static final int MAX_GROWTH = 4;
+
+    private final int capacity;
+    private ChatMessage[] slots;
+    private final Map<String, Long> idToSequence = new HashMap<>();
+    private final Map<String, ArrayDeque<Long>> userToSequences = new HashMap<>();
+    private final ChatterIndex chatters = new ChatterIndex();
+
+    // Sequence number of the oldest message and of the next message to be added.
+    private long firstSequence = 0;
+    private long nextSequence = 0;
+
+    public ChatMessageBuffer(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        slots = new ChatMessage[this.capacity];
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return (int) (nextSequence - firstSequence);
+    }
+
+    public ChatMessage get(int position) {
+        if (position < 0 || position >= size())
+            throw new IndexOutOfBoundsException("Position " + position + " of " + size());
+
+        return slots[slot(firstSequence + position)];
+    }
+
+    /**
+     * Adds the messages, evicting the oldest messages when the buffer is full.
+     *
+     * @return The number of messages that were evicted from the front of the buffer
+     */
+    public int addAll(List<ChatMessage> messages) {
+        return addAll(messages, false);
+    }
+
+    /**
+     * Adds the messages.
+     *
+     * @param keepOldest If the buffer grows past its capacity instead of evicting, up to a limit
+     * @return The number of messages that were evicted from the front of the buffer
+     */
+    public int addAll(List<ChatMessage> messages, boolean keepOldest) {
+        int evicted = 0;
+        for (ChatMessage message : messages) {
+            if (size() == slots.length) {
+                if (keepOldest && slots.length < capacity * MAX_GROWTH) {
+                    resize(Math.min(slots.length * 2, capacity * MAX_GROWTH));
+                } else {
+                    evictOldest();
+                    evicted++;
+                }
+            }
+
+            long sequence = nextSequence++;
+            slots[slot(sequence)] = message;
+
+            if (message.getId() != null)
+                idToSequence.put(message.getId(), sequence);
+
+            if (message.getUserId() != null)
+                userToSequences.computeIfAbsent(message.getUserId(), key -> new ArrayDeque<>()).addLast(sequence);
+
+            chatters.add(message.name, sequence);
+        }
+
+        return evicted;
+    }
+
+    /**
+     * @return The position of the message with the id, or -1 if it isn't in the buffer
+     */
+    public int indexOf(String id) {
+        Long sequence = idToSequence.get(id);
+        return sequence == null ? -1 : (int) (sequence - firstSequence);
+    }
+
+    /**
+     * @return The positions of every buffered message sent by the user, oldest first
+     */
+    public int[] positionsOfUser(String userId) {
+        ArrayDeque<Long> sequences = userToSequences.get(userId);
+        if (sequences == null)
+            return new int[0];
+
+        int[] positions = new int[sequences.size()];
+        int i = 0;
+        for (long sequence : sequences) {
+            positions[i++] = (int) (sequence - firstSequence);
+        }
+
+        return positions;
+    }
+
+    /**
+     * Finds the chatters with a buffered message whose name starts with the prefix,
+     * ranked by how recently and how much they talked.
+     *
+     * @param prefix A lower case prefix, only names longer than it are added
+     * @param limit  The maximum number of names to add
+     */
+    public void findChatters(String prefix, int limit, List<String> names) {
+        chatters.find(prefix, limit, names);
+    }
+
+    /**
+     * Evicts the oldest messages the buffer kept past its capacity.
+     *
+     * @return The number of messages that were evicted from the front of the buffer
+     */
+    public int trim() {
+        int evicted = 0;
+        while (size() > capacity) {
+            evictOldest();
+            evicted++;
+        }
+
+        if (slots.length != capacity) resize(capacity);
+        return evicted;
+    }
+
+    public void clear() {
+        for (long sequence = firstSequence; sequence < nextSequence; sequence++) {
+            slots[slot(sequence)] = null;
+        }
+
+        idToSequence.clear();
+        userToSequences.clear();
+        chatters.clear();
+        firstSequence = nextSequence;
+    }
+
+    private void evictOldest() {
+        int slot = slot(firstSequence);
+        ChatMessage message = slots[slot];
+        slots[slot] = null;
+
+        if (message.getId() != null)
+            idToSequence.remove(message.getId());
+
+        if (message.getUserId() != null) {
+            // Messages are evicted in order, so this is always the user's oldest message.
+            ArrayDeque<Long> sequences = userToSequences.get(message.getUserId());
+            if (sequences != null) {
+                sequences.pollFirst();
+                if (sequences.isEmpty())
+                    userToSequences.remove(message.getUserId());
+            }
+        }
+
+        chatters.remove(message.name);
+        firstSequence++;
+    }
+
+    private void resize(int length) {
+        ChatMessage[] resized = new ChatMessage[length];
+        for (long sequence = firstSequence; sequence < nextSequence; sequence++) {
+            resized[(int) (sequence % length)] = slots[slot(sequence)];
+        }
+
+        slots = resized;
+    }
+
+    private int slot(long sequence) {
+        return (int) (sequence % slots.length);
+    }
+}
@@ -0,0 +1,265 @@
+package com.perflyst.twire.chat;
+
+import androidx.annotation.Nullable;
+
+import com.perflyst.twire.service.Settings;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import timber.log.Timber;
+
+/**
+ * The highlight words, ignored users and filtered phrases of chat, compiled once so a message is checked in a single pass.
+ * Every word and phrase is a keyword of one case folded Aho-Corasick automaton, so the cost of a message doesn't grow with the number of rules.
+ * Keywords only match whole words. Entries written as {@code /pattern/} are regular expressions,
+ * all the expressions of a kind are joined into one so there's at most one extra pass per kind.
+ */
+class ChatRules {
+    static final int HIGHLIGHT = 1;
+    static final int HIDDEN = 1 << 1;
+    static final int COLLAPSED = 1 << 2;
+
+    // Set on the tags of a state when the keyword that ends there has to be a whole word on that side.
+    private static final int WORD_START = 1 << 8;
+    private static final int WORD_END = 1 << 9;
+    private static final int TAG_MASK = 0xFF;
+
+    private final Set<String> ignoredUsers = new HashSet<>();
+    @Nullable
+    private final Pattern highlightPattern, collapsePattern;
+
+    // Open addressing table of transitions, keyed on the state in the high bits and the folded char in the low 16.
+    private final long[] transitionKeys;
+    private final int[] transitionTargets;
+    private final int[] fail;
+    // The tags of the keyword that ends at a state, and the next shorter suffix state that ends a keyword.
+    private final int[] tags;
+    private final int[] outputLink;
+    private final int[] depth;
+    private final int keywordTags;
+
+    /**
+     * @param userName The name of the user, messages that mention it are highlighted
+     */
+    static ChatRules fromSettings(@Nullable String userName) {
+        return new ChatRules(Settings.getChatHighlightWords(), Settings.getChatIgnoredUsers(), Settings.getChatFilteredPhrases(), userName);
+    }
+
+    /**
+     * Every argument holds one entry per line.
+     */
+    ChatRules(String highlightWords, String ignoredUsers, String filteredPhrases, @Nullable String userName) {
+        for (String user : entries(ignoredUsers)) {
+            this.ignoredUsers.add(user.toLowerCase(Locale.ROOT));
+        }
+
+        List<String> keywords = new ArrayList<>();
+        List<Integer> keywordTagList = new ArrayList<>();
+        if (userName != null && !userName.isEmpty()) {
+            keywords.add("@" + userName);
+            keywordTagList.add(HIGHLIGHT);
+        }
+
+        highlightPattern = split(entries(highlightWords), HIGHLIGHT, keywords, keywordTagList);
+        collapsePattern = split(entries(filteredPhrases), COLLAPSED, keywords, keywordTagList);
+
+        // Build the trie
+        List<Map<Character, Integer>> children = new ArrayList<>();
+        List<Integer> tagList = new ArrayList<>();
+        List<Integer> depthList = new ArrayList<>();
+        children.add(new TreeMap<>());
+        tagList.add(0);
+        depthList.add(0);
+
+        int allTags = 0;
+        for (int k = 0; k < keywords.size(); k++) {
+            String keyword = keywords.get(k);
+            int state = 0;
+            for (int i = 0; i < keyword.length(); i++) {
+                char c = Character.toLowerCase(keyword.charAt(i));
+                Integer next = children.get(state).get(c);
+                if (next == null) {
+                    next = children.size();
+                    children.get(state).put(c, next);
+                    children.add(new TreeMap<>());
+                    tagList.add(0);
+                    depthList.add(i + 1);
+                }
+                state = next;
+            }
+
+            int keywordTag = keywordTagList.get(k);
+            if (isWordChar(keyword.charAt(0))) keywordTag |= WORD_START;
+            if (isWordChar(keyword.charAt(keyword.length() - 1))) keywordTag |= WORD_END;
+            tagList.set(state, tagList.get(state) | keywordTag);
+            allTags |= keywordTag & TAG_MASK;
+        }
+        keywordTags = allTags;
+
+        int states = children.size();
+        tags = new int[states];
+        depth = new int[states];
+        for (int state = 0; state < states; state++) {
+            tags[state] = tagList.get(state);
+            depth[state] = depthList.get(state);
+        }
+
+        int capacity = Integer.highestOneBit(Math.max(2, states * 2 - 1)) << 1;
+        transitionKeys = new long[capacity];
+        transitionTargets = new int[capacity];
+        Arrays.fill(transitionKeys, -1);
+        for (int state = 0; state < states; state++) {
+            for (Map.Entry<Character, Integer> child : children.get(state).entrySet()) {
+                putTransition(state, child.getKey(), child.getValue());
+            }
+        }
+
+        // Failure links in breadth first order, so the links of shorter prefixes are known first.
+        fail = new int[states];
+        outputLink = new int[states];
+        Queue<Integer> queue = new ArrayDeque<>(children.get(0).values());
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (Map.Entry<Character, Integer> child : children.get(state).entrySet()) {
+                int next = child.getValue();
+                char c = child.getKey();
+
+                int link = fail[state];
+                int target;
+                while ((target = transition(link, c)) == -1 && link != 0) link = fail[link];
+                fail[next] = target != -1 && target != next ? target : 0;
+                outputLink[next] = tags[fail[next]] != 0 ? fail[next] : outputLink[fail[next]];
+
+                queue.add(next);
+            }
+        }
+    }
+
+    /**
+     * @param login The login of the sender
+     * @return The tags of the message, {@link #HIGHLIGHT}, {@link #HIDDEN} and {@link #COLLAPSED}
+     */
+    int match(String login, String message) {
+        int result = 0;
+        if (!ignoredUsers.isEmpty() && ignoredUsers.contains(login.toLowerCase(Locale.ROOT)))
+            result |= HIDDEN;
+
+        if (keywordTags != 0)
+            result |= scan(message);
+
+        if (highlightPattern != null && (result & HIGHLIGHT) == 0 && highlightPattern.matcher(message).find())
+            result |= HIGHLIGHT;
+
+        if (collapsePattern != null && (result & COLLAPSED) == 0 && collapsePattern.matcher(message).find())
+            result |= COLLAPSED;
+
+        return result;
+    }
+
+    private int scan(String message) {
+        int result = 0;
+        int length = message.length();
+        int state = 0;
+        for (int i = 0; i < length; i++) {
+            char c = Character.toLowerCase(message.charAt(i));
+
+            int next;
+            while ((next = transition(state, c)) == -1 && state != 0) state = fail[state];
+            state = next == -1 ? 0 : next;
+
+            for (int match = tags[state] != 0 ? state : outputLink[state]; match != 0; match = outputLink[match]) {
+                int tag = tags[match];
+                int start = i - depth[match] + 1;
+                if ((tag & WORD_START) != 0 && start > 0 && isWordChar(message.charAt(start - 1))) continue;
+                if ((tag & WORD_END) != 0 && i + 1 < length && isWordChar(message.charAt(i + 1))) continue;
+
+                result |= tag & TAG_MASK;
+            }
+
+            if (result == keywordTags) break;
+        }
+
+        return result;
+    }
+
+    private int transition(int state, char c) {
+        long key = (long) state << 16 | c;
+        int mask = transitionKeys.length - 1;
+        for (int slot = hash(key) & mask; transitionKeys[slot] != -1; slot = (slot + 1) & mask) {
+            if (transitionKeys[slot] == key) return transitionTargets[slot];
+        }
+
+        return -1;
+    }
+
+    private void putTransition(int state, char c, int target) {
+        long key = (long) state << 16 | c;
+        int mask = transitionKeys.length - 1;
+        int slot = hash(key) & mask;
+        while (transitionKeys[slot] != -1) slot = (slot + 1) & mask;
+
+        transitionKeys[slot] = key;
+        transitionTargets[slot] = target;
+    }
+
+    private static int hash(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ hash >>> 32);
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    private static List<String> entries(@Nullable String lines) {
+        List<String> entries = new ArrayList<>();
+        if (lines == null) return entries;
+
+        for (String line : lines.split("\n")) {
+            line = line.trim();
+            if (!line.isEmpty()) entries.add(line);
+        }
+
+        return entries;
+    }
+
+    /**
+     * Adds the keywords of the entries to the lists, and joins their regular expressions into one pattern.
+     */
+    @Nullable
+    private static Pattern split(List<String> entries, int tag, List<String> keywords, List<Integer> keywordTags) {
+        StringBuilder expressions = new StringBuilder();
+        for (String entry : entries) {
+            if (entry.length() > 2 && entry.startsWith("/") && entry.endsWith("/")) {
+                String expression = entry.substring(1, entry.length() - 1);
+                try {
+                    Pattern.compile(expression);
+                } catch (PatternSyntaxException e) {
+                    Timber.w(e, "Skipping invalid chat rule %s", entry);
+                    continue;
+                }
+
+                if (expressions.length() > 0) expressions.append('|');
+                expressions.append("(?:").append(expression).append(')');
+            } else {
+                keywords.add(entry);
+                keywordTags.add(tag);
+            }
+        }
+
+        if (expressions.length() == 0) return null;
+
+        return Pattern.compile(expressions.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+    }
+}
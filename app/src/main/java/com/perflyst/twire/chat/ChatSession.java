@@ -0,0 +1,214 @@
+package com.perflyst.twire.chat;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.github.twitch4j.chat.events.roomstate.ChannelStatesEvent;
+import com.github.twitch4j.client.websocket.domain.WebsocketConnectionState;
+import com.perflyst.twire.model.ChatMessage;
+import com.perflyst.twire.model.Emote;
+import com.perflyst.twire.model.UserInfo;
+import com.perflyst.twire.service.Settings;
+import com.perflyst.twire.utils.Execute;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * The live chat of a channel, kept running while the chat fragment is stopped so coming back to it,
+ * or recreating it, doesn't reconnect and load the emotes and badges again.
+ * The session keeps the scrollback and the state the fragment was last told about, and hands them to whatever attaches next.
+ * A detached session is stopped after a while if nothing attaches to it.
+ * <p>
+ * Everything except {@link ChatManager.ChatCallback#onPrepareMessage} and {@link ChatManager.ChatCallback#onEmoteSetsFetched}
+ * runs on the main thread.
+ */
+public class ChatSession implements ChatManager.ChatCallback {
+    private static final long RETAIN_MS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+    // The sessions by channel login
+    private static final Map<String, ChatSession> sessions = new HashMap<>();
+
+    private final String login;
+    private final ChatManager chatManager;
+    private final ChatMessageBuffer scrollback = new ChatMessageBuffer(Settings.getChatScrollback());
+    private final Runnable expire = this::expire;
+
+    private volatile ChatManager.ChatCallback callback;
+    private WebsocketConnectionState connectionState;
+    private final Map<Class<?>, ChannelStatesEvent> roomStates = new LinkedHashMap<>();
+    private List<Emote> channelEmotes, globalEmotes;
+    private List<String> emoteSets;
+
+    private ChatSession(UserInfo channel) {
+        login = channel.getLogin();
+        chatManager = new ChatManager(channel, null, 0, this);
+    }
+
+    /**
+     * Attaches to the session of the channel, starting it if there isn't one.
+     * The callback is given the retained scrollback and state right away.
+     */
+    public static ChatSession attach(UserInfo channel, ChatManager.ChatCallback callback) {
+        ChatSession session = sessions.get(channel.getLogin());
+        if (session == null) {
+            session = new ChatSession(channel);
+            sessions.put(channel.getLogin(), session);
+            Execute.background(session.chatManager);
+        } else {
+            Timber.d("Reattaching to the chat of %s", channel.getLogin());
+            handler.removeCallbacks(session.expire);
+            session.chatManager.reloadRules();
+        }
+
+        session.callback = callback;
+        session.replay(callback);
+        return session;
+    }
+
+    /**
+     * Detaches the callback, the session keeps collecting messages until something attaches again.
+     *
+     * @param retain If the session should be kept for a while, or stopped right away
+     */
+    public void detach(ChatManager.ChatCallback callback, boolean retain) {
+        // Another fragment attached in the meantime.
+        if (this.callback != callback) return;
+
+        this.callback = null;
+
+        // The rendered messages hold on to the activity they were rendered for.
+        for (int i = 0; i < scrollback.size(); i++) {
+            scrollback.get(i).rendered = null;
+        }
+
+        if (retain) {
+            handler.postDelayed(expire, RETAIN_MS);
+        } else {
+            expire();
+        }
+    }
+
+    public ChatManager getChatManager() {
+        return chatManager;
+    }
+
+    /**
+     * Adds a message the user sent, Twitch doesn't send it back.
+     */
+    public void add(ChatMessage message) {
+        onMessages(Collections.singletonList(message));
+    }
+
+    private void replay(ChatManager.ChatCallback callback) {
+        if (connectionState != null) callback.onConnectionChanged(connectionState);
+        for (ChannelStatesEvent roomState : roomStates.values()) callback.onRoomStateChange(roomState);
+        if (channelEmotes != null) callback.onCustomEmoteIdFetched(channelEmotes, globalEmotes);
+        if (emoteSets != null) callback.onEmoteSetsFetched(emoteSets);
+
+        List<ChatMessage> messages = new ArrayList<>(scrollback.size());
+        for (int i = 0; i < scrollback.size(); i++) {
+            messages.add(scrollback.get(i));
+        }
+        callback.onMessages(messages);
+    }
+
+    private void expire() {
+        if (callback != null) return;
+
+        Timber.d("Stopping the chat of %s", login);
+        sessions.remove(login);
+        chatManager.stop();
+    }
+
+    @Override
+    public void onPrepareMessage(ChatMessage message) {
+        ChatManager.ChatCallback callback = this.callback;
+        if (callback == null) return;
+
+        callback.onPrepareMessage(message);
+        // The callback detached while the message was rendered, the rendering is for the old activity.
+        if (this.callback != callback) message.rendered = null;
+    }
+
+    @Override
+    public void onMessages(List<ChatMessage> messages) {
+        if (callback == null) {
+            // Rendered just before the callback detached, after detach cleared the scrollback.
+            for (ChatMessage message : messages) {
+                message.rendered = null;
+            }
+        }
+
+        scrollback.addAll(messages);
+        if (callback != null) callback.onMessages(messages);
+    }
+
+    @Override
+    public void onMessagesChanged(List<ChatMessage> messages) {
+        if (callback != null) callback.onMessagesChanged(messages);
+    }
+
+    @Override
+    public void onClear(String target) {
+        if (target == null) {
+            scrollback.clear();
+        } else {
+            markDeleted(scrollback.indexOf(target));
+        }
+
+        if (callback != null) callback.onClear(target);
+    }
+
+    @Override
+    public void onClearUser(String userId) {
+        for (int position : scrollback.positionsOfUser(userId)) {
+            markDeleted(position);
+        }
+
+        if (callback != null) callback.onClearUser(userId);
+    }
+
+    private void markDeleted(int position) {
+        if (position == -1) return;
+
+        ChatMessage message = scrollback.get(position);
+        message.isDeleted = true;
+        message.rendered = null;
+    }
+
+    @Override
+    public void onConnectionChanged(WebsocketConnectionState state) {
+        connectionState = state;
+        if (callback != null) callback.onConnectionChanged(state);
+    }
+
+    @Override
+    public void onRoomStateChange(ChannelStatesEvent state) {
+        roomStates.put(state.getClass(), state);
+        if (callback != null) callback.onRoomStateChange(state);
+    }
+
+    @Override
+    public void onCustomEmoteIdFetched(List<Emote> channel, List<Emote> global) {
+        channelEmotes = channel;
+        globalEmotes = global;
+        if (callback != null) callback.onCustomEmoteIdFetched(channel, global);
+    }
+
+    @Override
+    public void onEmoteSetsFetched(List<String> emoteSets) {
+        Execute.ui(() -> {
+            this.emoteSets = emoteSets;
+            if (callback != null) callback.onEmoteSetsFetched(emoteSets);
+        });
+    }
+}
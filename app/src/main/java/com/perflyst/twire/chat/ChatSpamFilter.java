@@ -0,0 +1,118 @@
+package com.perflyst.twire.chat;
+
+import com.perflyst.twire.model.ChatMessage;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import timber.log.Timber;
+
+/**
+ * Keeps chat readable when it moves faster than anyone can read.
+ * Once the rate of messages passes a threshold, messages that repeat a recent message are counted on that message
+ * instead of getting their own row, and the rest are limited to a readable number per second.
+ * Mentions, system messages and messages from moderators are always shown. When chat slows down again it turns itself off.
+ */
+class ChatSpamFilter {
+    // Messages per second to turn on at, and to turn off below.
+    private static final double ENTER_RATE = 30;
+    private static final double EXIT_RATE = 15;
+    // How long the rate is averaged over
+    private static final double RATE_WINDOW_SECONDS = 2;
+    // Messages per second that are shown while on, bursts can use up to a second worth.
+    private static final double SHOWN_PER_SECOND = 12;
+    private static final long REPEAT_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final int MAX_TRACKED = 256;
+    // Twitch lets clients append this to get around the duplicate message check.
+    private static final String DUPLICATE_BYPASS = "\uDB40\uDC00";
+
+    private final Consumer<ChatMessage> onRepeated;
+    private final Map<String, Shown> recent = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Shown> eldest) {
+            return size() > MAX_TRACKED;
+        }
+    };
+
+    private double rate;
+    private double tokens = SHOWN_PER_SECOND;
+    private long lastNanos = Long.MIN_VALUE;
+    private boolean collapsing;
+
+    /**
+     * @param onRepeated Called with a message that was shown before when its repeat count changes
+     */
+    ChatSpamFilter(Consumer<ChatMessage> onRepeated) {
+        this.onRepeated = onRepeated;
+    }
+
+    /**
+     * @param privileged If the message is from a moderator or the broadcaster
+     * @return If the message should be shown in its own row
+     */
+    synchronized boolean accept(ChatMessage message, boolean privileged) {
+        long now = System.nanoTime();
+        double elapsedSeconds = lastNanos == Long.MIN_VALUE ? 0 : (now - lastNanos) / 1e9;
+        lastNanos = now;
+
+        // Exponentially weighted rate, every message adds to it and it decays with time.
+        rate = rate * Math.exp(-elapsedSeconds / RATE_WINDOW_SECONDS) + 1 / RATE_WINDOW_SECONDS;
+        tokens = Math.min(SHOWN_PER_SECOND, tokens + elapsedSeconds * SHOWN_PER_SECOND);
+
+        if (!collapsing && rate > ENTER_RATE) {
+            collapsing = true;
+            Timber.d("Collapsing chat at %.0f messages/s", rate);
+        } else if (collapsing && rate < EXIT_RATE) {
+            collapsing = false;
+            recent.clear();
+            Timber.d("Stopped collapsing chat");
+        }
+
+        if (!collapsing || privileged || message.isHighlight || !message.systemMessage.isEmpty())
+            return true;
+
+        String key = normalize(message.message);
+        Shown shown = recent.get(key);
+        if (shown != null && now - shown.lastNanos < REPEAT_WINDOW_NANOS) {
+            shown.lastNanos = now;
+            shown.message.repeats++;
+            onRepeated.accept(shown.message);
+            return false;
+        }
+
+        if (tokens < 1) return false;
+
+        tokens--;
+        recent.put(key, new Shown(message, now));
+        return true;
+    }
+
+    /**
+     * Reduces a message to what makes it different, so "LUL LUL  lul" and "LUL" are the same message.
+     */
+    private static String normalize(String message) {
+        StringBuilder builder = new StringBuilder(message.length());
+        String previous = null;
+        for (String word : message.replace(DUPLICATE_BYPASS, "").toLowerCase(Locale.ROOT).split("\\s+")) {
+            if (word.isEmpty() || word.equals(previous)) continue;
+
+            if (builder.length() > 0) builder.append(' ');
+            builder.append(word);
+            previous = word;
+        }
+        return builder.toString();
+    }
+
+    private static class Shown {
+        private final ChatMessage message;
+        private long lastNanos;
+
+        private Shown(ChatMessage message, long lastNanos) {
+            this.message = message;
+            this.lastNanos = lastNanos;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.perflyst.twire.chat;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The names of everyone who has a message in the scrollback, kept up to date as messages are added and evicted.
+ * Names are sorted by their case folded form, so the names starting with a prefix are a single range of the map.
+ * Chatters are ranked by how recently they talked and how many of their messages are still in the scrollback.
+ */
+class ChatterIndex {
+    // A buffered message counts as much as being this many messages more recent.
+    private static final int FREQUENCY_WEIGHT = 20;
+
+    private final TreeMap<String, Chatter> chatters = new TreeMap<>();
+    private Chatter[] ranked = new Chatter[0];
+
+    void add(String name, long sequence) {
+        String key = name.toLowerCase(Locale.ROOT);
+        Chatter chatter = chatters.get(key);
+        if (chatter == null) {
+            chatter = new Chatter();
+            chatters.put(key, chatter);
+        }
+
+        // The name is kept as it was last written.
+        chatter.name = name;
+        chatter.messages++;
+        chatter.lastSequence = sequence;
+    }
+
+    void remove(String name) {
+        String key = name.toLowerCase(Locale.ROOT);
+        Chatter chatter = chatters.get(key);
+        if (chatter != null && --chatter.messages == 0)
+            chatters.remove(key);
+    }
+
+    void clear() {
+        chatters.clear();
+    }
+
+    /**
+     * Adds the names that start with the prefix and are longer than it to the list, best ranked first.
+     *
+     * @param prefix A case folded prefix
+     */
+    void find(String prefix, int limit, List<String> names) {
+        if (limit <= 0) return;
+        if (ranked.length < limit)
+            ranked = new Chatter[limit];
+
+        int count = 0;
+        for (Map.Entry<String, Chatter> entry : chatters.tailMap(prefix, false).entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) break;
+
+            Chatter chatter = entry.getValue();
+            long score = chatter.getScore();
+            if (count == limit && ranked[count - 1].getScore() >= score) continue;
+
+            // Insert into the ranking, dropping the lowest if it's full.
+            int i = count < limit ? count++ : count - 1;
+            for (; i > 0 && ranked[i - 1].getScore() < score; i--) {
+                ranked[i] = ranked[i - 1];
+            }
+            ranked[i] = chatter;
+        }
+
+        for (int i = 0; i < count; i++) {
+            names.add(ranked[i].name);
+            ranked[i] = null;
+        }
+    }
+
+    private static class Chatter {
+        private String name;
+        // Number of the chatter's messages in the scrollback
+        private int messages;
+        private long lastSequence;
+
+        private long getScore() {
+            return lastSequence + (long) FREQUENCY_WEIGHT * messages;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.perflyst.twire.chat;
+
+import com.perflyst.twire.model.Emote;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Immutable trie of emote keywords flattened into arrays.
+ * A message is scanned in a single pass, only whole space separated words can match,
+ * which is the same rule {@link com.perflyst.twire.model.ChatMessage#getEmotesFromMessage} uses.
+ */
+public class EmoteMatcher {
+    public static final EmoteMatcher EMPTY = compile(Map.of());
+
+    // Node n has its outgoing edges in [edgeStart[n], edgeStart[n + 1]), sorted by edgeChar.
+    private final int[] edgeStart;
+    private final char[] edgeChar;
+    private final int[] edgeTarget;
+    private final Emote[] terminal;
+
+    private EmoteMatcher(int[] edgeStart, char[] edgeChar, int[] edgeTarget, Emote[] terminal) {
+        this.edgeStart = edgeStart;
+        this.edgeChar = edgeChar;
+        this.edgeTarget = edgeTarget;
+        this.terminal = terminal;
+    }
+
+    /**
+     * Builds a matcher from a keyword to emote map. Later entries of the same keyword are not possible in a map,
+     * so the map decides which emote wins.
+     */
+    public static EmoteMatcher compile(Map<String, Emote> keywordToEmote) {
+        BuildNode root = new BuildNode();
+        int nodeCount = 1;
+        for (Map.Entry<String, Emote> entry : keywordToEmote.entrySet()) {
+            String keyword = entry.getKey();
+            if (keyword == null || keyword.isEmpty() || keyword.indexOf(' ') != -1) continue;
+
+            BuildNode node = root;
+            for (int i = 0; i < keyword.length(); i++) {
+                BuildNode child = node.children.get(keyword.charAt(i));
+                if (child == null) {
+                    child = new BuildNode();
+                    node.children.put(keyword.charAt(i), child);
+                    nodeCount++;
+                }
+                node = child;
+            }
+            node.emote = entry.getValue();
+        }
+
+        // Number the nodes breadth first so every node's edges are contiguous.
+        int[] edgeStart = new int[nodeCount + 1];
+        char[] edgeChar = new char[nodeCount - 1];
+        int[] edgeTarget = new int[nodeCount - 1];
+        Emote[] terminal = new Emote[nodeCount];
+
+        ArrayDeque<BuildNode> queue = new ArrayDeque<>();
+        queue.add(root);
+        int nodeIndex = 0;
+        int nextId = 1;
+        int edge = 0;
+        while (!queue.isEmpty()) {
+            BuildNode node = queue.poll();
+            terminal[nodeIndex] = node.emote;
+            edgeStart[nodeIndex] = edge;
+            for (Map.Entry<Character, BuildNode> child : node.children.entrySet()) {
+                edgeChar[edge] = child.getKey();
+                edgeTarget[edge] = nextId++;
+                edge++;
+                queue.add(child.getValue());
+            }
+            nodeIndex++;
+        }
+        edgeStart[nodeCount] = edge;
+
+        return new EmoteMatcher(edgeStart, edgeChar, edgeTarget, terminal);
+    }
+
+    /**
+     * Scans the message and reports every word that is an emote keyword.
+     *
+     * @param message The message to scan
+     * @param consumer Receives the start position and emote of every match
+     */
+    public void scan(CharSequence message, EmoteConsumer consumer) {
+        int length = message.length();
+        int wordStart = 0;
+        while (wordStart <= length) {
+            int node = 0;
+            int i = wordStart;
+            for (; i < length; i++) {
+                char c = message.charAt(i);
+                if (c == ' ') break;
+                if (node >= 0) node = child(node, c);
+            }
+
+            if (node > 0 && terminal[node] != null) {
+                consumer.accept(wordStart, terminal[node]);
+            }
+
+            wordStart = i + 1;
+        }
+    }
+
+    /**
+     * Finds all emotes in a message and puts them in the map, keyed on their start position.
+     */
+    public void findEmotes(CharSequence message, Map<Integer, Emote> emotes) {
+        scan(message, emotes::put);
+    }
+
+    private int child(int node, char c) {
+        int low = edgeStart[node];
+        int high = edgeStart[node + 1] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            char midChar = edgeChar[mid];
+            if (midChar < c) {
+                low = mid + 1;
+            } else if (midChar > c) {
+                high = mid - 1;
+            } else {
+                return edgeTarget[mid];
+            }
+        }
+
+        return -1;
+    }
+
+    public interface EmoteConsumer {
+        void accept(int position, Emote emote);
+    }
+
+    private static class BuildNode {
+        private final TreeMap<Character, BuildNode> children = new TreeMap<>();
+        private Emote emote;
+    }
+}
@@ -0,0 +1,77 @@
+package com.perflyst.twire.chat;
+
+import android.graphics.drawable.Drawable;
+
+import androidx.annotation.Nullable;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.load.DataSource;
+import com.bumptech.glide.load.engine.GlideException;
+import com.bumptech.glide.request.RequestListener;
+import com.bumptech.glide.request.target.Target;
+import com.perflyst.twire.misc.EmoteDrawablePool;
+import com.perflyst.twire.model.Emote;
+import com.perflyst.twire.service.Settings;
+import com.perflyst.twire.utils.Execute;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Loads emote images into Glide's memory cache before chat shows them, so they don't start out as placeholders
+ * and their size is known by the time their message is laid out. The size is handed to the {@link EmoteDrawablePool}
+ * so the spans are measured with it.
+ * Urls that were prefetched recently aren't requested again.
+ */
+class EmotePrefetcher {
+    private static final int MAX_RECENT = 256;
+
+    // Only used on the main thread
+    private static final Set<String> recent = Collections.newSetFromMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_RECENT;
+        }
+    });
+
+    /**
+     * @return The url the emote is shown with in chat, which is the one that has to be prefetched
+     */
+    @Nullable
+    static String getUrl(Emote emote) {
+        return emote.getEmoteUrl(Settings.getEmoteSize(), Settings.isDarkTheme());
+    }
+
+    /**
+     * Can be called from any thread.
+     */
+    static void prefetch(Collection<String> urls) {
+        if (urls.isEmpty()) return;
+
+        Execute.ui(() -> {
+            for (String url : urls) {
+                if (!recent.add(url)) continue;
+
+                Glide.with(Settings.getContext())
+                        .load(url)
+                        .listener(new RequestListener<Drawable>() {
+                            @Override
+                            public boolean onLoadFailed(@Nullable GlideException e, Object model, Target<Drawable> target, boolean isFirstResource) {
+                                recent.remove(url);
+                                return false;
+                            }
+
+                            @Override
+                            public boolean onResourceReady(Drawable resource, Object model, Target<Drawable> target, DataSource dataSource, boolean isFirstResource) {
+                                EmoteDrawablePool.putLoadedSize(url, resource);
+                                return false;
+                            }
+                        })
+                        .preload();
+            }
+        });
+    }
+}
@@ -0,0 +1,182 @@
+package com.perflyst.twire.chat;
+
+import com.perflyst.twire.model.Emote;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Finds the emotes whose keyword contains what the user is typing, for the emote suggestions.
+ * Every keyword is split into the case folded trigrams it contains, so a search only has to check the keywords
+ * sharing the rarest trigram of the query instead of every loaded emote. Shorter queries match too much
+ * for that to help and check every keyword.
+ * Results are ranked by how often the user has sent the emote, then by matching the start of the keyword,
+ * then by being an emote of the channel. Searching doesn't allocate besides the results, but isn't thread safe.
+ */
+public class EmoteSearchIndex {
+    private static final int GRAM_LENGTH = 3;
+
+    // Sorted by folded keyword
+    private final String[] keywords;
+    private final String[] folded;
+    private final boolean[] channelEmotes;
+
+    // Open addressing table of trigram to the range of its entries in postings, kept at most half full.
+    private final long[] gramKeys;
+    private final int[] gramStarts;
+    private final int[] gramEnds;
+    private final int[] postings;
+
+    private int[] rankedEntries = new int[0];
+    private long[] rankedScores = new long[0];
+
+    /**
+     * @param emoteSets The emotes to search, a keyword in several sets is only suggested once
+     */
+    @SafeVarargs
+    public EmoteSearchIndex(List<Emote>... emoteSets) {
+        Map<String, Boolean> emotes = new LinkedHashMap<>();
+        for (List<Emote> emoteSet : emoteSets) {
+            if (emoteSet == null) continue;
+
+            for (Emote emote : emoteSet) {
+                Boolean channelEmote = emotes.get(emote.keyword);
+                emotes.put(emote.keyword, emote.isCustomChannelEmote || channelEmote != null && channelEmote);
+            }
+        }
+
+        List<String> sorted = new ArrayList<>(emotes.keySet());
+        Collections.sort(sorted, (a, b) -> {
+            int compare = a.toLowerCase(Locale.ROOT).compareTo(b.toLowerCase(Locale.ROOT));
+            return compare != 0 ? compare : a.compareTo(b);
+        });
+
+        int count = sorted.size();
+        keywords = sorted.toArray(new String[0]);
+        folded = new String[count];
+        channelEmotes = new boolean[count];
+
+        Map<Long, List<Integer>> grams = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            folded[i] = keywords[i].toLowerCase(Locale.ROOT);
+            channelEmotes[i] = emotes.get(keywords[i]);
+
+            for (int start = 0; start + GRAM_LENGTH <= folded[i].length(); start++) {
+                List<Integer> entries = grams.computeIfAbsent(gram(folded[i], start), key -> new ArrayList<>());
+                // A keyword can contain the same trigram more than once.
+                if (entries.isEmpty() || entries.get(entries.size() - 1) != i)
+                    entries.add(i);
+            }
+        }
+
+        int tableSize = Integer.highestOneBit(Math.max(1, grams.size()) * 2) * 2;
+        gramKeys = new long[tableSize];
+        gramStarts = new int[tableSize];
+        gramEnds = new int[tableSize];
+        Arrays.fill(gramEnds, -1);
+
+        int postingCount = 0;
+        for (List<Integer> entries : grams.values()) {
+            postingCount += entries.size();
+        }
+
+        postings = new int[postingCount];
+        int position = 0;
+        for (Map.Entry<Long, List<Integer>> gram : grams.entrySet()) {
+            int slot = findSlot(gram.getKey());
+            gramKeys[slot] = gram.getKey();
+            gramStarts[slot] = position;
+            for (int entry : gram.getValue()) {
+                postings[position++] = entry;
+            }
+            gramEnds[slot] = position;
+        }
+    }
+
+    public int size() {
+        return keywords.length;
+    }
+
+    /**
+     * Adds the best ranked keywords containing the query to the list, best first.
+     *
+     * @param query A lower case query
+     * @param usage The number of times the user has sent each keyword
+     */
+    public void search(String query, int limit, Map<String, Integer> usage, List<String> results) {
+        if (query.isEmpty() || limit <= 0) return;
+
+        if (rankedEntries.length < limit) {
+            rankedEntries = new int[limit];
+            rankedScores = new long[limit];
+        }
+
+        int count = 0;
+        if (query.length() < GRAM_LENGTH) {
+            for (int i = 0; i < keywords.length; i++) {
+                count = rank(i, query, usage, limit, count);
+            }
+        } else {
+            // Only the keywords with the rarest trigram of the query can contain it.
+            int bestSlot = -1;
+            for (int start = 0; start + GRAM_LENGTH <= query.length(); start++) {
+                int slot = findSlot(gram(query, start));
+                if (gramEnds[slot] == -1) return;
+
+                if (bestSlot == -1 || gramEnds[slot] - gramStarts[slot] < gramEnds[bestSlot] - gramStarts[bestSlot])
+                    bestSlot = slot;
+            }
+
+            for (int i = gramStarts[bestSlot]; i < gramEnds[bestSlot]; i++) {
+                count = rank(postings[i], query, usage, limit, count);
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            results.add(keywords[rankedEntries[i]]);
+        }
+    }
+
+    /**
+     * Inserts the entry into the ranking if it contains the query and ranks high enough.
+     *
+     * @return The new number of ranked entries
+     */
+    private int rank(int entry, String query, Map<String, Integer> usage, int limit, int count) {
+        int index = folded[entry].indexOf(query);
+        if (index == -1) return count;
+
+        Integer used = usage.get(keywords[entry]);
+        long score = (used != null ? (long) used << 2 : 0) | (index == 0 ? 2 : 0) | (channelEmotes[entry] ? 1 : 0);
+        // Entries are visited in keyword order, so on a tie the earlier keyword stays ahead.
+        if (count == limit && rankedScores[count - 1] >= score) return count;
+
+        int i = count < limit ? count++ : count - 1;
+        for (; i > 0 && rankedScores[i - 1] < score; i--) {
+            rankedEntries[i] = rankedEntries[i - 1];
+            rankedScores[i] = rankedScores[i - 1];
+        }
+        rankedEntries[i] = entry;
+        rankedScores[i] = score;
+        return count;
+    }
+
+    private int findSlot(long gram) {
+        int mask = gramKeys.length - 1;
+        int slot = Long.hashCode(gram * 0x9E3779B97F4A7C15L) & mask;
+        while (gramEnds[slot] != -1 && gramKeys[slot] != gram) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static long gram(String text, int start) {
+        return (long) text.charAt(start) << 32 | (long) text.charAt(start + 1) << 16 | text.charAt(start + 2);
+    }
+}
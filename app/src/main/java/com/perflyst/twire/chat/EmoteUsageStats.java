@@ -0,0 +1,144 @@
+package com.perflyst.twire.chat;
+
+import android.util.SparseIntArray;
+
+import com.perflyst.twire.model.Emote;
+import com.perflyst.twire.model.EmoteRegistry;
+import com.perflyst.twire.service.Settings;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * How often the emotes of a channel are used, kept on disk so the most used ones can be loaded before chat shows them.
+ * Chat counts emotes by their registry handle, they are only turned into the image url they are shown with,
+ * which is what is kept, when the most used ones are asked for or saved.
+ * Once there are too many emotes the least used ones are dropped, and once a count gets too high every count is halved.
+ * Can be used from any thread, loading and saving read and write the disk.
+ */
+class EmoteUsageStats {
+    private static final int FORMAT_VERSION = 1;
+    private static final int MAX_EMOTES = 500;
+    private static final int MAX_COUNT = 1 << 16;
+
+    private final File file;
+    private final Map<String, Integer> counts = new HashMap<>();
+    // The uses that haven't been added to the counts yet, by emote handle
+    private final SparseIntArray pending = new SparseIntArray();
+    private boolean dirty;
+
+    private EmoteUsageStats(File file) {
+        this.file = file;
+    }
+
+    static EmoteUsageStats forChannel(String channelId) {
+        return new EmoteUsageStats(new File(new File(Settings.getContext().getCacheDir(), "emote_usage"), channelId));
+    }
+
+    synchronized void load() {
+        if (!file.exists()) return;
+
+        try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            if (input.readInt() != FORMAT_VERSION) return;
+
+            int size = input.readInt();
+            for (int i = 0; i < size; i++) {
+                String url = input.readUTF();
+                int count = input.readInt();
+                counts.merge(url, count, Integer::sum);
+            }
+        } catch (IOException e) {
+            Timber.w(e, "Failed to read emote usage");
+        }
+    }
+
+    synchronized void count(int handle) {
+        if (handle == 0) return;
+
+        pending.put(handle, pending.get(handle) + 1);
+        dirty = true;
+    }
+
+    /**
+     * @return The urls of the most used emotes, most used first
+     */
+    synchronized List<String> getTop(int limit) {
+        resolvePending();
+
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>(counts.entrySet());
+        entries.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+
+        List<String> top = new ArrayList<>();
+        for (int i = 0; i < Math.min(limit, entries.size()); i++) {
+            top.add(entries.get(i).getKey());
+        }
+
+        return top;
+    }
+
+    synchronized void save() {
+        if (!dirty) return;
+
+        resolvePending();
+
+        File directory = file.getParentFile();
+        if (directory != null && !directory.exists() && !directory.mkdirs()) return;
+
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(temporaryFile))) {
+            output.writeInt(FORMAT_VERSION);
+            output.writeInt(counts.size());
+            for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+                output.writeUTF(entry.getKey());
+                output.writeInt(entry.getValue());
+            }
+        } catch (IOException e) {
+            Timber.w(e, "Failed to save emote usage");
+            return;
+        }
+
+        if (!temporaryFile.renameTo(file)) {
+            Timber.w("Failed to save emote usage");
+            return;
+        }
+
+        dirty = false;
+    }
+
+    private void resolvePending() {
+        boolean overflowed = false;
+        for (int i = 0; i < pending.size(); i++) {
+            // Emotes that were dropped from the registry since aren't counted.
+            Emote emote = EmoteRegistry.get(pending.keyAt(i));
+            String url = emote != null ? EmotePrefetcher.getUrl(emote) : null;
+            if (url == null) continue;
+
+            overflowed |= counts.merge(url, pending.valueAt(i), Integer::sum) >= MAX_COUNT;
+        }
+        pending.clear();
+
+        if (overflowed) {
+            for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+                entry.setValue(Math.max(1, entry.getValue() / 2));
+            }
+        }
+
+        if (counts.size() > MAX_EMOTES) {
+            List<Map.Entry<String, Integer>> entries = new ArrayList<>(counts.entrySet());
+            entries.sort((a, b) -> Integer.compare(a.getValue(), b.getValue()));
+            for (int i = 0; i < entries.size() - MAX_EMOTES; i++) {
+                counts.remove(entries.get(i).getKey());
+            }
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package com.perflyst.twire.chat;
+
+import android.util.SparseArray;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.perflyst.twire.model.Badge;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the FFZ badges every user has, read from the FFZ /v1/badges response.
+ * The response lists hundreds of thousands of logins, so they are kept in a single char array with an
+ * open addressing hash table on top, and the badges of a login are a bitset.
+ * Lookups are case insensitive and don't allocate.
+ */
+public class FfzBadgeIndex {
+    private final Badge[] badges;
+    private final int words;
+
+    private final char[] loginChars;
+    private final int[] loginOffsets; // loginOffsets[i] until loginOffsets[i + 1] are the chars of login i
+    private final int[] table; // Login index + 1 for every slot, 0 is an empty slot
+    private final long[] masks; // The badges of login i are masks[i * words] until masks[(i + 1) * words]
+
+    private FfzBadgeIndex(Badge[] badges, char[] loginChars, int[] loginOffsets, int[] table, long[] masks) {
+        this.badges = badges;
+        this.words = Math.max(1, (badges.length + 63) / 64);
+        this.loginChars = loginChars;
+        this.loginOffsets = loginOffsets;
+        this.table = table;
+        this.masks = masks;
+    }
+
+    public int getBadgeCount() {
+        return badges.length;
+    }
+
+    public Badge getBadge(int badge) {
+        return badges[badge];
+    }
+
+    /**
+     * @return The index of the login, or -1 if the login has no FFZ badges
+     */
+    public int find(CharSequence login) {
+        int mask = table.length - 1;
+        for (int slot = hash(login) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int index = table[slot] - 1;
+            if (loginEquals(index, login))
+                return index;
+        }
+
+        return -1;
+    }
+
+    public boolean hasBadge(int login, int badge) {
+        return (masks[login * words + badge / 64] & (1L << (badge % 64))) != 0;
+    }
+
+    private boolean loginEquals(int index, CharSequence login) {
+        int start = loginOffsets[index];
+        int length = loginOffsets[index + 1] - start;
+        if (length != login.length())
+            return false;
+
+        for (int i = 0; i < length; i++) {
+            if (loginChars[start + i] != Character.toLowerCase(login.charAt(i)))
+                return false;
+        }
+
+        return true;
+    }
+
+    private static int hash(CharSequence login) {
+        int hash = 0;
+        for (int i = 0; i < login.length(); i++) {
+            hash = 31 * hash + Character.toLowerCase(login.charAt(i));
+        }
+
+        // Spread the bits, the table is indexed with the low bits only.
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Parses the FFZ /v1/badges response without building it in memory.
+     */
+    static FfzBadgeIndex parse(Reader source) throws IOException {
+        Builder builder = new Builder();
+
+        try (JsonReader reader = new JsonReader(source)) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "badges":
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            readBadge(reader, builder);
+                        }
+                        reader.endArray();
+                        break;
+                    case "users":
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            int badge = builder.badgeIndex(reader.nextName());
+                            reader.beginArray();
+                            while (reader.hasNext()) {
+                                builder.addUser(reader.nextString(), badge);
+                            }
+                            reader.endArray();
+                        }
+                        reader.endObject();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+
+        return builder.build();
+    }
+
+    private static void readBadge(JsonReader reader, Builder builder) throws IOException {
+        String id = null, name = null, color = null, replaces = null;
+        SparseArray<String> urls = new SparseArray<>();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "id":
+                    id = reader.nextString();
+                    break;
+                case "name":
+                    name = reader.nextString();
+                    break;
+                case "color":
+                    color = nextNullableString(reader);
+                    break;
+                case "replaces":
+                    replaces = nextNullableString(reader);
+                    break;
+                case "urls":
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        int size = Integer.parseInt(reader.nextName());
+                        urls.put(size, reader.nextString());
+                    }
+                    reader.endObject();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (id != null && name != null)
+            builder.setBadge(builder.badgeIndex(id), new Badge(name, urls, color, replaces));
+    }
+
+    private static String nextNullableString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+
+        return reader.nextString();
+    }
+
+    private static class Builder {
+        private final Map<String, Integer> badgeIds = new HashMap<>();
+        private final List<Badge> badges = new ArrayList<>();
+
+        private char[] loginChars = new char[1 << 16];
+        private int loginCharCount = 0;
+        private int[] loginOffsets = new int[1 << 12];
+        private int loginCount = 0;
+        private int[] table = new int[1 << 13];
+
+        // Pairs of login index and badge index, turned into bitsets once the badge count is known.
+        private int[] assignments = new int[1 << 13];
+        private int assignmentCount = 0;
+
+        private int badgeIndex(String id) {
+            Integer index = badgeIds.get(id);
+            if (index == null) {
+                index = badges.size();
+                badgeIds.put(id, index);
+                badges.add(null);
+            }
+
+            return index;
+        }
+
+        private void setBadge(int index, Badge badge) {
+            badges.set(index, badge);
+        }
+
+        private void addUser(String login, int badge) {
+            if (assignmentCount + 2 > assignments.length)
+                assignments = Arrays.copyOf(assignments, assignments.length * 2);
+
+            assignments[assignmentCount++] = loginIndex(login);
+            assignments[assignmentCount++] = badge;
+        }
+
+        private int loginIndex(String login) {
+            int mask = table.length - 1;
+            int slot = hash(login) & mask;
+            for (; table[slot] != 0; slot = (slot + 1) & mask) {
+                int index = table[slot] - 1;
+                if (loginEquals(index, login))
+                    return index;
+            }
+
+            int index = loginCount++;
+            if (loginCount + 1 > loginOffsets.length)
+                loginOffsets = Arrays.copyOf(loginOffsets, loginOffsets.length * 2);
+
+            if (loginCharCount + login.length() > loginChars.length)
+                loginChars = Arrays.copyOf(loginChars, Math.max(loginChars.length * 2, loginCharCount + login.length()));
+
+            loginOffsets[index] = loginCharCount;
+            for (int i = 0; i < login.length(); i++) {
+                loginChars[loginCharCount++] = Character.toLowerCase(login.charAt(i));
+            }
+            loginOffsets[index + 1] = loginCharCount;
+
+            table[slot] = index + 1;
+            // Keep the table at most half full, so probe sequences stay short.
+            if (loginCount * 2 > table.length)
+                rehash();
+
+            return index;
+        }
+
+        private boolean loginEquals(int index, String login) {
+            int start = loginOffsets[index];
+            int length = loginOffsets[index + 1] - start;
+            if (length != login.length())
+                return false;
+
+            for (int i = 0; i < length; i++) {
+                if (loginChars[start + i] != Character.toLowerCase(login.charAt(i)))
+                    return false;
+            }
+
+            return true;
+        }
+
+        private void rehash() {
+            int[] newTable = new int[table.length * 2];
+            int mask = newTable.length - 1;
+            for (int index = 0; index < loginCount; index++) {
+                int slot = hash(CharBuffer.wrap(loginChars, loginOffsets[index], loginOffsets[index + 1] - loginOffsets[index])) & mask;
+                while (newTable[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                newTable[slot] = index + 1;
+            }
+
+            table = newTable;
+        }
+
+        private FfzBadgeIndex build() {
+            // A badge that users have but that isn't described can't be shown, it is left out of the masks.
+            Badge[] badgeArray = badges.toArray(new Badge[0]);
+            int words = Math.max(1, (badgeArray.length + 63) / 64);
+            long[] masks = new long[loginCount * words];
+            for (int i = 0; i < assignmentCount; i += 2) {
+                int login = assignments[i];
+                int badge = assignments[i + 1];
+                if (badgeArray[badge] == null) continue;
+
+                masks[login * words + badge / 64] |= 1L << (badge % 64);
+            }
+
+            return new FfzBadgeIndex(
+                    badgeArray,
+                    Arrays.copyOf(loginChars, loginCharCount),
+                    Arrays.copyOf(loginOffsets, loginCount + 1),
+                    table,
+                    masks
+            );
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.perflyst.twire.chat;
+
+import androidx.annotation.Nullable;
+
+import com.perflyst.twire.model.Badge;
+import com.perflyst.twire.model.Emote;
+import com.perflyst.twire.model.EmoteRegistry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes the emotes and badges tags of Twitch IRC messages in a single pass, without splitting them.
+ * Twitch emotes are interned by id and keyword, so an emote that was seen before doesn't allocate anything.
+ * The keyword is part of the key as one id can cover several texts, like {@code :)} and {@code :-)}.
+ */
+class IrcTagDecoder {
+    // The interned emotes are dropped once there are this many, chat rarely uses more than a few hundred.
+    private static final int MAX_INTERNED = 4096;
+
+    // Open addressing table of emote id and keyword to emote, kept at most half full. Guarded by the class.
+    private static final String[] internedIds = new String[MAX_INTERNED * 2];
+    private static final Emote[] internedEmotes = new Emote[MAX_INTERNED * 2];
+    private static int internedCount;
+
+    private IrcTagDecoder() {
+    }
+
+    /**
+     * Puts the emotes of an emotes tag, like {@code 25:0-4,12-16/1902:6-10}, into the map keyed on their position in the message.
+     * Twitch counts positions in code points, they're converted to positions in the string.
+     */
+    static void decodeEmotes(@Nullable String tag, String message, Map<Integer, Emote> emotes) {
+        if (tag == null || tag.isEmpty()) return;
+
+        int codePoints = message.codePointCount(0, message.length());
+        boolean hasSurrogates = codePoints != message.length();
+
+        int length = tag.length();
+        int i = 0;
+        while (i < length) {
+            int idStart = i;
+            while (i < length && tag.charAt(i) != ':') i++;
+            int idEnd = i++;
+            if (i >= length || idEnd == idStart) return;
+
+            Emote emote = null;
+            while (i < length && tag.charAt(i) != '/') {
+                int start = 0;
+                int digits = 0;
+                for (char c; i < length && (c = tag.charAt(i)) >= '0' && c <= '9'; i++, digits++) {
+                    start = start * 10 + c - '0';
+                }
+                if (digits == 0 || i >= length || tag.charAt(i++) != '-') return;
+
+                int end = 0;
+                digits = 0;
+                for (char c; i < length && (c = tag.charAt(i)) >= '0' && c <= '9'; i++, digits++) {
+                    end = end * 10 + c - '0';
+                }
+                if (digits == 0) return;
+                if (i < length && tag.charAt(i) == ',') i++;
+
+                if (end < start || end >= codePoints) continue;
+
+                if (hasSurrogates) {
+                    int charStart = message.offsetByCodePoints(0, start);
+                    end = message.offsetByCodePoints(charStart, end - start);
+                    start = charStart;
+                }
+                // End is where the last code point of the emote starts.
+                int keywordEnd = end + Character.charCount(message.codePointAt(end));
+
+                if (emote == null) emote = intern(tag, idStart, idEnd, message, start, keywordEnd);
+                emotes.put(start, emote);
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Decodes a badges tag, like {@code moderator/1,subscriber/12}, in order.
+     */
+    static List<Badge> decodeBadges(@Nullable String tag, BadgeResolver resolver) {
+        List<Badge> badges = new ArrayList<>();
+        if (tag == null) return badges;
+
+        int length = tag.length();
+        int start = 0;
+        while (start < length) {
+            int end = tag.indexOf(',', start);
+            if (end == -1) end = length;
+
+            int slash = tag.indexOf('/', start);
+            if (slash != -1 && slash < end)
+                badges.add(resolver.resolve(tag.substring(start, slash), tag.substring(slash + 1, end)));
+
+            start = end + 1;
+        }
+
+        return badges;
+    }
+
+    /**
+     * @return If the badges tag has a badge of the set
+     */
+    static boolean hasBadge(@Nullable String tag, String set) {
+        if (tag == null) return false;
+
+        int index = 0;
+        while ((index = tag.indexOf(set, index)) != -1) {
+            int end = index + set.length();
+            if ((index == 0 || tag.charAt(index - 1) == ',') && end < tag.length() && tag.charAt(end) == '/')
+                return true;
+
+            index = end;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return The shared emote for the Twitch emote id and keyword
+     */
+    static Emote twitchEmote(String id, String keyword) {
+        return intern(id, 0, id.length(), keyword, 0, keyword.length());
+    }
+
+    private static synchronized Emote intern(String source, int idStart, int idEnd, String message, int keywordStart, int keywordEnd) {
+        int idLength = idEnd - idStart;
+        int keywordLength = keywordEnd - keywordStart;
+        int hash = 0;
+        for (int i = idStart; i < idEnd; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+        for (int i = keywordStart; i < keywordEnd; i++) {
+            hash = 31 * hash + message.charAt(i);
+        }
+
+        int mask = internedIds.length - 1;
+        int slot = (hash ^ hash >>> 16) & mask;
+        for (String id; (id = internedIds[slot]) != null; slot = (slot + 1) & mask) {
+            String keyword = internedEmotes[slot].keyword;
+            if (id.length() == idLength && id.regionMatches(0, source, idStart, idLength)
+                    && keyword.length() == keywordLength && keyword.regionMatches(0, message, keywordStart, keywordLength))
+                return internedEmotes[slot];
+        }
+
+        if (internedCount == MAX_INTERNED) {
+            for (Emote emote : internedEmotes) {
+                if (emote != null) EmoteRegistry.release(emote);
+            }
+
+            Arrays.fill(internedIds, null);
+            Arrays.fill(internedEmotes, null);
+            internedCount = 0;
+            slot = (hash ^ hash >>> 16) & mask;
+        }
+
+        String id = source.substring(idStart, idEnd);
+        // The table holds on to its emotes until it's cleared.
+        Emote emote = EmoteRegistry.acquire(Emote.Twitch(message.substring(keywordStart, keywordEnd), id));
+        internedIds[slot] = id;
+        internedEmotes[slot] = emote;
+        internedCount++;
+        return emote;
+    }
+
+    interface BadgeResolver {
+        @Nullable
+        Badge resolve(String set, String version);
+    }
+}
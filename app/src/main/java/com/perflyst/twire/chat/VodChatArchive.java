@@ -0,0 +1,472 @@
+package com.perflyst.twire.chat;
+
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import com.perflyst.twire.service.Service;
+import com.perflyst.twire.service.Settings;
+import com.perflyst.twire.utils.Execute;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import timber.log.Timber;
+
+/**
+ * The complete chat of a VOD, downloaded for replay without the network.
+ * The archive is a memory mapped file of comments sorted by content offset. User names, colors, badges and emotes
+ * are stored once in tables the comments point into, and an index of content offsets makes a seek a binary search.
+ * <p>
+ * Layout, all integers are big endian:
+ * <pre>
+ * magic, string count, strings (length, UTF-8 bytes)
+ * user count, users (name, color or -1, badge count, badges (set, version))
+ * emote count, emotes (id, keyword)
+ * comment count, content offsets, comment positions
+ * comments (user, body length, UTF-8 body, emote count, emotes (position, emote))
+ * </pre>
+ */
+public class VodChatArchive {
+    private static final int MAGIC = 0x54564331; // TVC1
+    private static final long MAX_SIZE = 256L << 20;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_DELAY = 2500;
+
+    // The callbacks waiting on every running download, by VOD id. Guarded by itself.
+    private static final Map<String, List<Consumer<Boolean>>> downloading = new HashMap<>();
+
+    private final ByteBuffer buffer;
+    private final int[] stringPositions;
+    private final int[] userPositions;
+    private final int emotesPosition;
+    private final int commentCount;
+    private final int offsetsPosition;
+    private final int commentPositionsPosition;
+
+    private VodChatArchive(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+
+        if (buffer.getInt(0) != MAGIC)
+            throw new IOException("Not a VOD chat archive");
+
+        int position = 4;
+        stringPositions = new int[buffer.getInt(position)];
+        position += 4;
+        for (int i = 0; i < stringPositions.length; i++) {
+            stringPositions[i] = position;
+            position += 4 + buffer.getInt(position);
+        }
+
+        userPositions = new int[buffer.getInt(position)];
+        position += 4;
+        for (int i = 0; i < userPositions.length; i++) {
+            userPositions[i] = position;
+            position += 12 + 8 * buffer.getInt(position + 8);
+        }
+
+        int emoteCount = buffer.getInt(position);
+        emotesPosition = position + 4;
+        position = emotesPosition + 8 * emoteCount;
+
+        commentCount = buffer.getInt(position);
+        offsetsPosition = position + 4;
+        commentPositionsPosition = offsetsPosition + 4 * commentCount;
+    }
+
+    private static File getFile(String vodId) {
+        return new File(new File(Settings.getContext().getFilesDir(), "vod_chat"), vodId);
+    }
+
+    /**
+     * @return The archive of the VOD, or null if it hasn't been downloaded
+     */
+    @Nullable
+    static VodChatArchive open(String vodId) {
+        File file = getFile(vodId);
+        if (!file.exists()) return null;
+
+        // Archives that were opened recently are the last ones to be deleted when there are too many.
+        if (!file.setLastModified(System.currentTimeMillis()))
+            Timber.w("Failed to touch the chat archive of %s", vodId);
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            FileChannel channel = randomAccessFile.getChannel();
+            // The mapping stays valid after the channel is closed.
+            return new VodChatArchive(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException | RuntimeException e) {
+            Timber.e(e, "Failed to open the chat archive of %s", vodId);
+            return null;
+        }
+    }
+
+    public static boolean exists(String vodId) {
+        return getFile(vodId).exists();
+    }
+
+    int size() {
+        return commentCount;
+    }
+
+    /**
+     * @return The index of the first comment at or after the offset
+     */
+    int search(double offset) {
+        int low = 0, high = commentCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (getContentOffset(middle) < offset) low = middle + 1;
+            else high = middle;
+        }
+
+        return low;
+    }
+
+    int getContentOffset(int index) {
+        return buffer.getInt(offsetsPosition + 4 * index);
+    }
+
+    VodComment read(int index) {
+        int position = buffer.getInt(commentPositionsPosition + 4 * index);
+
+        int userPosition = userPositions[buffer.getInt(position)];
+        String name = getString(buffer.getInt(userPosition));
+        int colorIndex = buffer.getInt(userPosition + 4);
+        int badgeCount = buffer.getInt(userPosition + 8);
+        Map<String, String> badges = new LinkedHashMap<>();
+        for (int i = 0; i < badgeCount; i++) {
+            int badgePosition = userPosition + 12 + 8 * i;
+            badges.put(getString(buffer.getInt(badgePosition)), getString(buffer.getInt(badgePosition + 4)));
+        }
+
+        int bodyLength = buffer.getInt(position + 4);
+        String body = decode(position + 8, bodyLength);
+        position += 8 + bodyLength;
+
+        int emoteCount = buffer.getInt(position);
+        List<VodComment.TwitchEmote> emotes = new ArrayList<>(emoteCount);
+        for (int i = 0; i < emoteCount; i++) {
+            int emotePosition = emotesPosition + 8 * buffer.getInt(position + 8 + 8 * i);
+            emotes.add(new VodComment.TwitchEmote(buffer.getInt(position + 4 + 8 * i), getString(buffer.getInt(emotePosition + 4)), getString(buffer.getInt(emotePosition))));
+        }
+
+        return new VodComment(getContentOffset(index), name, colorIndex == -1 ? null : getString(colorIndex), badges, body, emotes);
+    }
+
+    private String getString(int index) {
+        int position = stringPositions[index];
+        return decode(position + 4, buffer.getInt(position));
+    }
+
+    private String decode(int position, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(position);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Downloads the chat of the VOD in the background, unless it's already downloaded or downloading.
+     * Once the archives take up too much space the ones that were opened least recently are deleted.
+     * Only for VODs that finished recording, an archive is never updated and is used instead of the network once it exists.
+     *
+     * @param callback Called on the main thread with whether the download succeeded,
+     *                 right away if the chat is already downloaded and once the running download is done if it's downloading
+     */
+    public static void download(String vodId, Consumer<Boolean> callback) {
+        if (exists(vodId)) {
+            Execute.ui(() -> callback.accept(true));
+            return;
+        }
+
+        synchronized (downloading) {
+            List<Consumer<Boolean>> callbacks = downloading.get(vodId);
+            if (callbacks != null) {
+                callbacks.add(callback);
+                return;
+            }
+
+            callbacks = new ArrayList<>();
+            callbacks.add(callback);
+            downloading.put(vodId, callbacks);
+        }
+
+        Execute.background(() -> {
+            File file = getFile(vodId);
+            boolean success = false;
+            try (Writer writer = new Writer(file)) {
+                String cursor = null;
+                do {
+                    JSONObject dataObject = fetchPage(vodId, cursor);
+                    if (dataObject.getJSONObject("video").isNull("comments")) break;
+
+                    JSONObject commentsObject = dataObject.getJSONObject("video").getJSONObject("comments");
+                    JSONArray comments = commentsObject.getJSONArray("edges");
+                    for (int i = 0; i < comments.length(); i++) {
+                        VodComment comment = VodComment.fromJson(comments.getJSONObject(i).getJSONObject("node"));
+                        if (comment != null) writer.add(comment);
+                    }
+
+                    cursor = commentsObject.getJSONObject("pageInfo").getBoolean("hasNextPage")
+                            ? comments.getJSONObject(comments.length() - 1).getString("cursor")
+                            : null;
+                } while (cursor != null);
+
+                writer.write();
+                success = true;
+            } catch (IOException | JSONException e) {
+                Timber.e(e, "Failed to download the chat of %s", vodId);
+            }
+
+            if (success) trim(file);
+
+            List<Consumer<Boolean>> callbacks;
+            synchronized (downloading) {
+                callbacks = downloading.remove(vodId);
+            }
+
+            final boolean result = success;
+            Execute.ui(() -> {
+                for (Consumer<Boolean> waiting : callbacks) {
+                    waiting.accept(result);
+                }
+            });
+        });
+    }
+
+    /**
+     * Fetches a page of comments, trying again a few times if the request fails.
+     */
+    private static JSONObject fetchPage(String vodId, @Nullable String cursor) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            JSONObject dataObject = Service.graphQL("VideoCommentsByOffsetOrCursor", "b70a3591ff0f4e0313d126c6a1502d79a1c02baebb288227c582044aa76adf6a", new HashMap<>() {{
+                put("videoID", vodId);
+                if (cursor == null) put("contentOffsetSeconds", 0);
+                else put("cursor", cursor);
+            }});
+
+            if (dataObject != null) return dataObject;
+            if (attempt == MAX_ATTEMPTS) throw new IOException("Failed to fetch comments");
+
+            SystemClock.sleep(RETRY_DELAY * attempt);
+        }
+    }
+
+    /**
+     * Deletes the archives that were opened least recently until the rest fit in the space archives may take up.
+     * The archive that was just downloaded is kept.
+     */
+    private static void trim(File keep) {
+        File[] files = keep.getParentFile() != null ? keep.getParentFile().listFiles() : null;
+        if (files == null) return;
+
+        long size = 0;
+        for (File file : files) size += file.length();
+        if (size <= MAX_SIZE) return;
+
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : files) {
+            if (size <= MAX_SIZE) break;
+            // Files that are still being written belong to a running download.
+            if (file.equals(keep) || file.getName().contains(".")) continue;
+
+            long length = file.length();
+            if (file.delete()) size -= length;
+        }
+    }
+
+    /**
+     * Writes an archive. The comments and the tables that grow with them go to temporary files as they are added,
+     * only the strings and what's needed to sort the index are kept in memory.
+     */
+    private static class Writer implements Closeable {
+        private final File file;
+        private final File userFile;
+        private final File emoteFile;
+        private final File commentFile;
+        private final Map<String, Integer> strings = new LinkedHashMap<>();
+        private final Map<String, Integer> users = new HashMap<>();
+        private final Map<String, Integer> emotes = new HashMap<>();
+        private final DataOutputStream userOutput;
+        private final DataOutputStream emoteOutput;
+        private final DataOutputStream commentOutput;
+
+        private int[] contentOffsets = new int[1024];
+        private int[] commentPositions = new int[1024];
+        private int commentCount = 0;
+
+        Writer(File file) throws IOException {
+            this.file = file;
+
+            File directory = file.getParentFile();
+            if (directory != null && !directory.exists() && !directory.mkdirs())
+                throw new IOException("Failed to create " + directory);
+
+            userFile = new File(file.getPath() + ".users");
+            emoteFile = new File(file.getPath() + ".emotes");
+            commentFile = new File(file.getPath() + ".comments");
+            userOutput = open(userFile);
+            emoteOutput = open(emoteFile);
+            commentOutput = open(commentFile);
+        }
+
+        private static DataOutputStream open(File file) throws FileNotFoundException {
+            return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        }
+
+        private int intern(String string) {
+            Integer index = strings.get(string);
+            if (index == null) {
+                index = strings.size();
+                strings.put(string, index);
+            }
+
+            return index;
+        }
+
+        private int user(VodComment comment) throws IOException {
+            StringBuilder key = new StringBuilder(comment.displayName).append('\0').append(comment.color);
+            for (Map.Entry<String, String> badge : comment.badges.entrySet()) {
+                key.append('\0').append(badge.getKey()).append('/').append(badge.getValue());
+            }
+
+            Integer index = users.get(key.toString());
+            if (index == null) {
+                index = users.size();
+                users.put(key.toString(), index);
+
+                userOutput.writeInt(intern(comment.displayName));
+                userOutput.writeInt(comment.color == null ? -1 : intern(comment.color));
+                userOutput.writeInt(comment.badges.size());
+                for (Map.Entry<String, String> badge : comment.badges.entrySet()) {
+                    userOutput.writeInt(intern(badge.getKey()));
+                    userOutput.writeInt(intern(badge.getValue()));
+                }
+            }
+
+            return index;
+        }
+
+        private int emote(VodComment.TwitchEmote emote) throws IOException {
+            String key = emote.id + '\0' + emote.keyword;
+            Integer index = emotes.get(key);
+            if (index == null) {
+                index = emotes.size();
+                emotes.put(key, index);
+
+                emoteOutput.writeInt(intern(emote.id));
+                emoteOutput.writeInt(intern(emote.keyword));
+            }
+
+            return index;
+        }
+
+        void add(VodComment comment) throws IOException {
+            if (commentCount == contentOffsets.length) {
+                contentOffsets = Arrays.copyOf(contentOffsets, commentCount * 2);
+                commentPositions = Arrays.copyOf(commentPositions, commentCount * 2);
+            }
+
+            contentOffsets[commentCount] = comment.contentOffset;
+            commentPositions[commentCount] = commentOutput.size();
+            commentCount++;
+
+            byte[] body = comment.body.getBytes(StandardCharsets.UTF_8);
+            commentOutput.writeInt(user(comment));
+            commentOutput.writeInt(body.length);
+            commentOutput.write(body);
+            commentOutput.writeInt(comment.emotes.size());
+            for (VodComment.TwitchEmote emote : comment.emotes) {
+                commentOutput.writeInt(emote.position);
+                commentOutput.writeInt(emote(emote));
+            }
+        }
+
+        void write() throws IOException {
+            userOutput.close();
+            emoteOutput.close();
+            commentOutput.close();
+
+            // Pages come in order, but keep the index sorted even if a comment doesn't.
+            // The offset and the index of a comment are sorted together as one number.
+            long[] order = new long[commentCount];
+            for (int i = 0; i < commentCount; i++) order[i] = (long) contentOffsets[i] << 32 | i;
+            Arrays.sort(order);
+
+            File temporaryFile = new File(file.getPath() + ".tmp");
+            try (DataOutputStream output = open(temporaryFile)) {
+                output.writeInt(MAGIC);
+                output.writeInt(strings.size());
+                for (String string : strings.keySet()) {
+                    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                    output.writeInt(bytes.length);
+                    output.write(bytes);
+                }
+                output.writeInt(users.size());
+                copy(userFile, output);
+                output.writeInt(emotes.size());
+                copy(emoteFile, output);
+                output.writeInt(commentCount);
+
+                int commentsStart = output.size() + 8 * commentCount;
+                for (long key : order) output.writeInt((int) (key >> 32));
+                for (long key : order) output.writeInt(commentsStart + commentPositions[(int) key]);
+                copy(commentFile, output);
+            }
+
+            if (!temporaryFile.renameTo(file))
+                throw new IOException("Failed to move " + temporaryFile);
+        }
+
+        private static void copy(File source, OutputStream output) throws IOException {
+            byte[] buffer = new byte[8192];
+            try (InputStream input = new FileInputStream(source)) {
+                for (int read; (read = input.read(buffer)) != -1; ) {
+                    output.write(buffer, 0, read);
+                }
+            }
+        }
+
+        /**
+         * Deletes the temporary files, and the unfinished archive if it wasn't written.
+         */
+        @Override
+        public void close() {
+            for (DataOutputStream output : new DataOutputStream[]{userOutput, emoteOutput, commentOutput}) {
+                try {
+                    output.close();
+                } catch (IOException ignored) {
+                }
+            }
+
+            for (File temporaryFile : new File[]{userFile, emoteFile, commentFile, new File(file.getPath() + ".tmp")}) {
+                if (temporaryFile.exists() && !temporaryFile.delete())
+                    Timber.w("Failed to delete %s", temporaryFile);
+            }
+        }
+    }
+}
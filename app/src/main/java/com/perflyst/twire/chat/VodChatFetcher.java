@@ -0,0 +1,287 @@
+package com.perflyst.twire.chat;
+
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import com.github.twitch4j.client.websocket.domain.WebsocketConnectionState;
+import com.perflyst.twire.model.ChatMessage;
+import com.perflyst.twire.service.Service;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Consumer;
+
+import timber.log.Timber;
+
+/**
+ * Fetches the comments of a VOD ahead of playback on its own thread.
+ * Pages are fetched with the cursor until a number of pages are buffered, and every comment is decoded into a
+ * {@link ChatMessage} before it's handed out, so the thread pacing the replay only has to wait for the player.
+ * Fetched pages are kept in the {@link VodCommentCache}, so seeking back doesn't fetch them again.
+ * If the chat of the VOD has been downloaded the comments are read from the {@link VodChatArchive} instead.
+ */
+class VodChatFetcher implements Runnable {
+    private static final int ARCHIVE_PAGE_SIZE = 100;
+
+    private final String vodId;
+    @Nullable
+    private final VodChatArchive archive;
+    private final VodCommentCache cache;
+    private final int pagesAhead;
+    private final Decoder decoder;
+    private final Consumer<WebsocketConnectionState> stateListener;
+    private final Runnable onPageReady;
+
+    // Guarded by this
+    private final ArrayDeque<Page> pages = new ArrayDeque<>();
+    private long generation = 0;
+    private double startOffset = 0;
+    // Nothing is fetched until the first seek.
+    private boolean finished = true;
+    private boolean stopped;
+
+    // Only used by the fetching thread
+    private double offset;
+    private VodCommentCache.Page previousPage;
+    private int archivePosition;
+    private boolean reconnecting;
+
+    /**
+     * @param archive     The downloaded chat of the VOD, which is read instead of fetching the comments
+     * @param pagesAhead  How many decoded pages to keep ready
+     * @param onPageReady Called on the fetching thread every time a page is ready
+     */
+    VodChatFetcher(String vodId, @Nullable VodChatArchive archive, int pagesAhead, Decoder decoder, Consumer<WebsocketConnectionState> stateListener, Runnable onPageReady) {
+        this.vodId = vodId;
+        this.archive = archive;
+        this.cache = VodCommentCache.forVod(vodId);
+        this.pagesAhead = pagesAhead;
+        this.decoder = decoder;
+        this.stateListener = stateListener;
+        this.onPageReady = onPageReady;
+    }
+
+    /**
+     * Throws away the buffered comments and starts fetching from the offset.
+     */
+    synchronized void seek(double offsetSeconds) {
+        generation++;
+        startOffset = offsetSeconds;
+        finished = false;
+        pages.clear();
+        notifyAll();
+    }
+
+    synchronized void stop() {
+        stopped = true;
+        pages.clear();
+        notifyAll();
+    }
+
+    /**
+     * @return The next comment to show, or null if none is ready
+     */
+    @Nullable
+    synchronized VodMessage peek() {
+        Page page = pages.peek();
+        return page == null ? null : page.messages.get(page.position);
+    }
+
+    /**
+     * Adds the comments that are ready after the offset and up to the other one to the list, without removing them.
+     */
+    synchronized void peek(double afterOffset, double untilOffset, List<VodMessage> messages) {
+        for (Page page : pages) {
+            for (int i = page.position; i < page.messages.size(); i++) {
+                VodMessage message = page.messages.get(i);
+                if (message.contentOffset > untilOffset) return;
+                if (message.contentOffset > afterOffset) messages.add(message);
+            }
+        }
+    }
+
+    /**
+     * Removes the comment if it's still the next one, a seek could have replaced it after it was peeked.
+     *
+     * @return If the comment was removed
+     */
+    synchronized boolean remove(VodMessage message) {
+        Page page = pages.peek();
+        if (page == null || page.messages.get(page.position) != message)
+            return false;
+
+        if (++page.position == page.messages.size()) {
+            pages.poll();
+            notifyAll();
+        }
+
+        return true;
+    }
+
+    @Override
+    public void run() {
+        long fetchedGeneration = 0;
+
+        while (true) {
+            long requestGeneration;
+            synchronized (this) {
+                try {
+                    while (!stopped && generation == fetchedGeneration && (finished || pages.size() >= pagesAhead))
+                        wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                if (stopped) return;
+
+                if (generation != fetchedGeneration) {
+                    fetchedGeneration = generation;
+                    offset = startOffset;
+                    previousPage = null;
+                    archivePosition = -1;
+                }
+
+                requestGeneration = fetchedGeneration;
+            }
+
+            List<VodMessage> messages = new ArrayList<>();
+            Boolean lastPage;
+            try {
+                lastPage = archive != null ? readArchivePage(messages) : fetchPage(messages);
+            } catch (JSONException e) {
+                Timber.e(e, "Failed to read VOD comments");
+
+                stateListener.accept(WebsocketConnectionState.LOST);
+                SystemClock.sleep(2500);
+                continue;
+            }
+
+            // The page has to be read again.
+            if (lastPage == null) continue;
+
+            synchronized (this) {
+                // The user seeked while the page was fetched, it belongs to the old position.
+                if (requestGeneration != generation) continue;
+
+                if (!messages.isEmpty()) pages.add(new Page(messages));
+                // We've reached the end of the comments, nothing to do until the user seeks.
+                finished = lastPage;
+            }
+
+            onPageReady.run();
+        }
+    }
+
+    /**
+     * Reads the next comments from the downloaded archive.
+     *
+     * @return If these were the last comments
+     */
+    private Boolean readArchivePage(List<VodMessage> messages) {
+        if (archivePosition == -1)
+            archivePosition = archive.search((int) offset);
+
+        int end = Math.min(archivePosition + ARCHIVE_PAGE_SIZE, archive.size());
+        for (; archivePosition < end; archivePosition++) {
+            VodComment comment = archive.read(archivePosition);
+            ChatMessage message = decoder.decode(comment);
+            if (message != null)
+                messages.add(new VodMessage(comment.contentOffset, message));
+        }
+
+        return archivePosition == archive.size();
+    }
+
+    /**
+     * Fetches the next page of comments, from the cache if it has been fetched before.
+     *
+     * @return If this was the last page, or null if it has to be fetched again
+     */
+    @Nullable
+    private Boolean fetchPage(List<VodMessage> messages) throws JSONException {
+        // Pages that were fetched before, for example before a seek, don't have to be fetched again.
+        VodCommentCache.Page page = previousPage == null ? cache.find(offset) : cache.findNext(previousPage);
+        JSONArray comments = page != null ? page.getComments() : null;
+
+        if (comments == null) {
+            final String requestCursor = previousPage == null ? null : previousPage.nextCursor;
+            final int requestOffset = (int) offset;
+            JSONObject dataObject = Service.graphQL("VideoCommentsByOffsetOrCursor", "b70a3591ff0f4e0313d126c6a1502d79a1c02baebb288227c582044aa76adf6a", new HashMap<>() {{
+                put("videoID", vodId);
+                if (requestCursor == null) put("contentOffsetSeconds", requestOffset);
+                else put("cursor", requestCursor);
+            }});
+
+            if (dataObject == null) {
+                reconnecting = true;
+                stateListener.accept(WebsocketConnectionState.RECONNECTING);
+                SystemClock.sleep(2500);
+                return null;
+            } else if (reconnecting) {
+                reconnecting = false;
+                stateListener.accept(WebsocketConnectionState.CONNECTED);
+            }
+
+            if (dataObject.getJSONObject("video").isNull("comments")) {
+                previousPage = null;
+                return null;
+            }
+
+            JSONObject commentsObject = dataObject.getJSONObject("video").getJSONObject("comments");
+            comments = commentsObject.getJSONArray("edges");
+
+            String nextCursor = null;
+            if (commentsObject.getJSONObject("pageInfo").getBoolean("hasNextPage"))
+                nextCursor = comments.getJSONObject(comments.length() - 1).getString("cursor");
+
+            page = cache.add(previousPage, offset, comments, nextCursor);
+        }
+
+        for (int i = 0; i < comments.length(); i++) {
+            VodComment comment = VodComment.fromJson(comments.getJSONObject(i).getJSONObject("node"));
+            // A cached page can start before the offset that was seeked to.
+            if (comment == null || previousPage == null && comment.contentOffset < (int) offset) continue;
+
+            ChatMessage message = decoder.decode(comment);
+            if (message != null)
+                messages.add(new VodMessage(comment.contentOffset, message));
+        }
+
+        previousPage = page;
+        return page.nextCursor == null;
+    }
+
+    interface Decoder {
+        /**
+         * @return The message for the comment, or null if it shouldn't be shown
+         */
+        @Nullable
+        ChatMessage decode(VodComment comment);
+    }
+
+    static class VodMessage {
+        final double contentOffset;
+        final ChatMessage message;
+
+        private VodMessage(double contentOffset, ChatMessage message) {
+            this.contentOffset = contentOffset;
+            this.message = message;
+        }
+    }
+
+    private static class Page {
+        private final List<VodMessage> messages;
+        private int position = 0;
+
+        private Page(List<VodMessage> messages) {
+            this.messages = messages;
+        }
+    }
+}
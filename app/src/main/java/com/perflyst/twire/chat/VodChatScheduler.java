@@ -0,0 +1,176 @@
+package com.perflyst.twire.chat;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import com.perflyst.twire.model.ChatMessage;
+import com.perflyst.twire.model.Emote;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Releases the comments of a VOD at the moment the player reaches them.
+ * The player reports its position, speed and whether it's playing whenever one of them changes,
+ * the media time in between is extrapolated from that. Instead of polling, the next release is posted for
+ * the exact time the player will reach the next comment, which follows the playback speed.
+ * The emotes of the comments that are due in the next few seconds are prefetched, so they are loaded when their comment shows.
+ * Comments that fell further behind the player than a few seconds, because their page arrived late, are dropped
+ * instead of being shown all at once.
+ * Everything except {@link #schedule()} runs on the main thread.
+ */
+class VodChatScheduler {
+    // A position that's further from the extrapolated one than this is treated as a seek.
+    private static final double MAX_DRIFT_SECONDS = 2;
+    private static final double PREFETCH_SECONDS = 5;
+    // Comments that are due longer ago than this, times the playback speed, aren't shown anymore.
+    private static final double MAX_LATE_SECONDS = 3;
+
+    private static volatile Playback lastPlayback;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable releaseRunnable = this::release;
+    private final VodChatFetcher fetcher;
+    private final int vodOffset;
+    private final Consumer<ChatMessage> consumer;
+    private final List<VodChatFetcher.VodMessage> upcoming = new ArrayList<>();
+
+    private Playback playback;
+    // Comments before this are from before the user left the VOD and aren't shown.
+    private double minimumOffset = 0;
+    // The offset of the last comment that had its emotes prefetched.
+    private double prefetchedOffset = -1;
+    private boolean stopped;
+
+    VodChatScheduler(VodChatFetcher fetcher, int vodOffset, Consumer<ChatMessage> consumer) {
+        this.fetcher = fetcher;
+        this.vodOffset = vodOffset;
+        this.consumer = consumer;
+    }
+
+    /**
+     * Records the state of the player, it's kept for schedulers that are started later.
+     */
+    static void setPlayback(long positionMs, float speed, boolean playing) {
+        lastPlayback = new Playback(positionMs, speed, playing, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Starts following the last state of the player.
+     */
+    void start() {
+        handler.post(() -> onPlaybackChanged(false));
+    }
+
+    /**
+     * Reads the new state of the player.
+     *
+     * @param seek If the user seeked, the comments that are ready are thrown away
+     */
+    void onPlaybackChanged(boolean seek) {
+        Playback newPlayback = lastPlayback;
+        if (stopped || newPlayback == null) return;
+
+        double position = newPlayback.getSeconds(vodOffset);
+        // The first position, or a jump that isn't playback, means the fetched comments are for the wrong time.
+        if (playback == null || Math.abs(playback.getSeconds(vodOffset) - position) > MAX_DRIFT_SECONDS) seek = true;
+
+        playback = newPlayback;
+        if (seek) {
+            minimumOffset = 0;
+            prefetchedOffset = -1;
+            fetcher.seek(position);
+        }
+
+        schedule();
+    }
+
+    /**
+     * Fetches again from the current position, without showing anything from before it.
+     */
+    void restart() {
+        if (playback == null) return;
+
+        minimumOffset = playback.getSeconds(vodOffset);
+        prefetchedOffset = -1;
+        fetcher.seek(minimumOffset);
+    }
+
+    /**
+     * Checks for comments to release, called from any thread when new comments are ready.
+     */
+    void schedule() {
+        handler.removeCallbacks(releaseRunnable);
+        handler.post(releaseRunnable);
+    }
+
+    void stop() {
+        stopped = true;
+        handler.removeCallbacks(releaseRunnable);
+    }
+
+    private void release() {
+        if (stopped || playback == null) return;
+
+        double now = playback.getSeconds(vodOffset);
+        double oldestOffset = Math.max(minimumOffset, now - MAX_LATE_SECONDS * Math.max(1, playback.speed));
+        VodChatFetcher.VodMessage comment;
+        while ((comment = fetcher.peek()) != null && comment.contentOffset <= now) {
+            if (fetcher.remove(comment) && comment.contentOffset >= oldestOffset)
+                consumer.accept(comment.message);
+        }
+
+        // The next comment is always prefetched, even if it's further away, as it may be a while until this runs again.
+        prefetch(Math.max(now + PREFETCH_SECONDS * Math.max(1, playback.speed), comment != null ? comment.contentOffset : 0));
+
+        if (comment != null && playback.playing && playback.speed > 0) {
+            long delay = (long) Math.ceil((comment.contentOffset - now) * 1000 / playback.speed);
+            handler.postDelayed(releaseRunnable, delay);
+        }
+    }
+
+    private void prefetch(double untilOffset) {
+        if (untilOffset <= prefetchedOffset) return;
+
+        fetcher.peek(prefetchedOffset, untilOffset, upcoming);
+        if (upcoming.isEmpty()) return;
+
+        List<String> urls = new ArrayList<>();
+        for (VodChatFetcher.VodMessage message : upcoming) {
+            for (int i = 0; i < message.message.getEmoteCount(); i++) {
+                Emote emote = message.message.getEmote(i);
+                String url = emote != null ? EmotePrefetcher.getUrl(emote) : null;
+                if (url != null) urls.add(url);
+            }
+        }
+
+        // Comments that aren't fetched yet are picked up next time.
+        prefetchedOffset = upcoming.get(upcoming.size() - 1).contentOffset;
+        upcoming.clear();
+        EmotePrefetcher.prefetch(urls);
+    }
+
+    private static class Playback {
+        private final long positionMs;
+        private final float speed;
+        private final boolean playing;
+        private final long realtime;
+
+        private Playback(long positionMs, float speed, boolean playing, long realtime) {
+            this.positionMs = positionMs;
+            this.speed = speed;
+            this.playing = playing;
+            this.realtime = realtime;
+        }
+
+        /**
+         * @return Where the player is now in the VOD, in seconds
+         */
+        private double getSeconds(int vodOffset) {
+            double elapsed = playing ? (SystemClock.elapsedRealtime() - realtime) * (double) speed : 0;
+            return (positionMs + elapsed) / 1000 + vodOffset;
+        }
+    }
+}
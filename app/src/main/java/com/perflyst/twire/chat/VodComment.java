@@ -0,0 +1,98 @@
+package com.perflyst.twire.chat;
+
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A VOD comment with only the parts chat shows, read from GraphQL or from a {@link VodChatArchive}.
+ */
+class VodComment {
+    final int contentOffset;
+    final String displayName;
+    @Nullable
+    final String color;
+    final Map<String, String> badges;
+    final String body;
+    final List<TwitchEmote> emotes;
+
+    VodComment(int contentOffset, String displayName, @Nullable String color, Map<String, String> badges, String body, List<TwitchEmote> emotes) {
+        this.contentOffset = contentOffset;
+        this.displayName = displayName;
+        this.color = color;
+        this.badges = badges;
+        this.body = body;
+        this.emotes = emotes;
+    }
+
+    /**
+     * Reads a comment node of the VideoCommentsByOffsetOrCursor query.
+     *
+     * @return The comment, or null if it shouldn't be shown
+     */
+    @Nullable
+    static VodComment fromJson(JSONObject commentJSON) throws JSONException {
+        // Sometimes the commenter is null, Twitch doesn't show them so we won't either.
+        if (commentJSON.isNull("commenter"))
+            return null;
+
+        JSONObject commenter = commentJSON.getJSONObject("commenter");
+        JSONObject message = commentJSON.getJSONObject("message");
+
+        Map<String, String> badges = new LinkedHashMap<>();
+        if (message.has("userBadges")) {
+            JSONArray userBadgesArray = message.getJSONArray("userBadges");
+            for (int j = 0; j < userBadgesArray.length(); j++) {
+                JSONObject userBadge = userBadgesArray.getJSONObject(j);
+                String setID = userBadge.getString("setID");
+                String version = userBadge.getString("version");
+                if (setID.isEmpty() || version.isEmpty()) continue;
+
+                badges.put(setID, version);
+            }
+        }
+
+        String color = !message.isNull("userColor") ? message.getString("userColor") : null;
+        String displayName = commenter.getString("displayName");
+
+        StringBuilder bodyBuilder = new StringBuilder();
+        JSONArray fragments = message.getJSONArray("fragments");
+        // Some messages have no fragments, no idea why. Twitch skips them so we will too.
+        if (fragments.length() == 0)
+            return null;
+
+        List<TwitchEmote> emotes = new ArrayList<>();
+        for (int i = 0; i < fragments.length(); i++) {
+            JSONObject fragment = fragments.getJSONObject(i);
+            String text = fragment.getString("text");
+
+            JSONObject emote = fragment.optJSONObject("emote");
+            if (emote != null) {
+                emotes.add(new TwitchEmote(bodyBuilder.length(), text, emote.getString("emoteID")));
+            }
+
+            bodyBuilder.append(text);
+        }
+
+        return new VodComment(commentJSON.getInt("contentOffsetSeconds"), displayName, color, badges, bodyBuilder.toString(), emotes);
+    }
+
+    static class TwitchEmote {
+        final int position;
+        final String keyword;
+        final String id;
+
+        TwitchEmote(int position, String keyword, String id) {
+            this.position = position;
+            this.keyword = keyword;
+            this.id = id;
+        }
+    }
+}
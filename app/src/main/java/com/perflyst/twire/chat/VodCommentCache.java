@@ -0,0 +1,141 @@
+package com.perflyst.twire.chat;
+
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The comment pages of a VOD that have been fetched, indexed by the range of content offsets they cover.
+ * A seek into a covered range and pages that follow cached pages are served from memory,
+ * only the gaps have to be fetched. Pages are evicted least recently used first once the size limit is reached.
+ */
+class VodCommentCache {
+    private static final int MAX_CHARS = 2 * 1024 * 1024;
+
+    private static VodCommentCache instance;
+
+    private final String vodId;
+    private final TreeMap<Double, Page> pagesByStart = new TreeMap<>();
+    private final LinkedHashMap<Page, Page> recentPages = new LinkedHashMap<>(16, 0.75f, true);
+    private int chars = 0;
+
+    private VodCommentCache(String vodId) {
+        this.vodId = vodId;
+    }
+
+    /**
+     * Gets the cache of a VOD. Only the VOD that was opened last is kept.
+     */
+    static synchronized VodCommentCache forVod(String vodId) {
+        if (instance == null || !instance.vodId.equals(vodId))
+            instance = new VodCommentCache(vodId);
+
+        return instance;
+    }
+
+    /**
+     * @return The page that covers the offset, or null if it hasn't been fetched
+     */
+    @Nullable
+    synchronized Page find(double offset) {
+        Map.Entry<Double, Page> entry = pagesByStart.floorEntry(offset);
+        if (entry == null || offset >= entry.getValue().end)
+            return null;
+
+        return touch(entry.getValue());
+    }
+
+    /**
+     * @return The page that comes after the page, or null if it hasn't been fetched
+     */
+    @Nullable
+    synchronized Page findNext(Page previous) {
+        Page next = previous.next;
+        if (next == null || next.evicted)
+            return null;
+
+        return touch(next);
+    }
+
+    /**
+     * Adds a fetched page.
+     *
+     * @param previous The page whose cursor was used to fetch this page, or null if it was fetched by offset
+     * @param offset   The offset the page was fetched with, if it wasn't fetched with a cursor
+     */
+    synchronized Page add(@Nullable Page previous, double offset, JSONArray comments, @Nullable String nextCursor) throws JSONException {
+        double start = previous != null ? previous.end : offset;
+        double end;
+        if (nextCursor == null) {
+            // The last page covers the rest of the VOD.
+            end = Double.MAX_VALUE;
+        } else if (comments.length() > 0) {
+            end = comments.getJSONObject(comments.length() - 1).getJSONObject("node").getInt("contentOffsetSeconds");
+        } else {
+            end = start;
+        }
+
+        Page page = new Page(start, end, comments.toString(), nextCursor);
+        if (previous != null) previous.next = page;
+
+        // An empty range can't be found by offset, it's only reachable from the page before it.
+        if (end > start) pagesByStart.put(start, page);
+        recentPages.put(page, page);
+        chars += page.comments.length();
+        trim();
+
+        return page;
+    }
+
+    private Page touch(Page page) {
+        recentPages.get(page);
+        return page;
+    }
+
+    private void trim() {
+        Iterator<Page> iterator = recentPages.keySet().iterator();
+        while (chars > MAX_CHARS && iterator.hasNext()) {
+            Page page = iterator.next();
+            iterator.remove();
+
+            // Older pages can still point to the page, so drop its comments rather than waiting for them.
+            page.evicted = true;
+            chars -= page.comments.length();
+            page.comments = null;
+            if (pagesByStart.get(page.start) == page)
+                pagesByStart.remove(page.start);
+        }
+    }
+
+    static class Page {
+        final double start, end;
+        @Nullable
+        final String nextCursor;
+
+        private volatile String comments;
+        private Page next;
+        private boolean evicted;
+
+        private Page(double start, double end, String comments, @Nullable String nextCursor) {
+            this.start = start;
+            this.end = end;
+            this.comments = comments;
+            this.nextCursor = nextCursor;
+        }
+
+        /**
+         * @return The comment edges of the page, or null if the page has been evicted
+         */
+        @Nullable
+        JSONArray getComments() throws JSONException {
+            String comments = this.comments;
+            return comments == null ? null : new JSONArray(comments);
+        }
+    }
+}
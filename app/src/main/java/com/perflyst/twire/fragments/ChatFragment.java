@@ -55,10 +55,13 @@ import com.perflyst.twire.R;
 import com.perflyst.twire.activities.stream.LiveStreamActivity;
 import com.perflyst.twire.adapters.ChatAdapter;
 import com.perflyst.twire.chat.ChatManager;
+import com.perflyst.twire.chat.ChatSession;
+import com.perflyst.twire.chat.EmoteSearchIndex;
 import com.perflyst.twire.databinding.FragmentEmoteGridBinding;
 import com.perflyst.twire.misc.ResizeHeightAnimation;
 import com.perflyst.twire.model.ChatMessage;
 import com.perflyst.twire.model.Emote;
+import com.perflyst.twire.model.EmoteRegistry;
 import com.perflyst.twire.model.UserInfo;
 import com.perflyst.twire.service.Service;
 import com.perflyst.twire.service.Settings;
@@ -75,12 +78,12 @@ import org.parceler.Parcels;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import timber.log.Timber;
 
@@ -90,6 +93,7 @@ interface EmoteKeyboardDelegate {
 }
 
 public class ChatFragment extends Fragment implements EmoteKeyboardDelegate, ChatAdapter.ChatAdapterCallback {
+    private static final int MAX_SUGGESTIONS = 10;
     private static final Integer[] supportedUnicodeEmotes = {
             0x1F600, 0x1F601, 0x1F602, 0x1F603, 0x1F604, 0x1F605, 0x1F606, 0x1F607, 0x1F608, 0x1F609, 0x1F60A, 0x1F60B, 0x1F60C, 0x1F60D, 0x1F60E, 0x1F60F,
             0x1F610, 0x1F611, 0x1F612, 0x1F613, 0x1F614, 0x1F615, 0x1F616, 0x1F617, 0x1F618, 0x1F619, 0x1F61A, 0x1F61B, 0x1F61C, 0x1F61D, 0x1F61E, 0x1F61F,
@@ -100,6 +104,9 @@ public class ChatFragment extends Fragment implements EmoteKeyboardDelegate, Cha
 
     private static ArrayList<Emote> supportedTextEmotes, customEmotes, customChannelEmotes, twitchEmotes, subscriberEmotes;
     private static ArrayList<Emote> recentEmotes, emotesToHide;
+    private static HashMap<String, Integer> emoteUsage;
+    private static EmoteSearchIndex emoteIndex;
+    private static int emoteIndexGeneration;
 
     private final int VIBRATION_FEEDBACK = HapticFeedbackConstants.KEYBOARD_TAP;
 
@@ -107,6 +114,9 @@ public class ChatFragment extends Fragment implements EmoteKeyboardDelegate, Cha
 
     private ChatAdapter mChatAdapter;
     private ChatManager chatManager;
+    private ChatManager.ChatCallback chatCallback;
+    // The retained live chat, VODs and clips follow the player and aren't retained.
+    private ChatSession chatSession;
     private UserInfo mUserInfo;
     private String vodID;
 
@@ -233,15 +243,26 @@ public class ChatFragment extends Fragment implements EmoteKeyboardDelegate, Cha
             }
         }
 
-        chatManager = new ChatManager(mUserInfo, vodID, vodOffset, new ChatManager.ChatCallback() {
+        chatCallback = new ChatManager.ChatCallback() {
             private boolean isFragmentActive() {
                 return !isDetached() && isAdded();
             }
 
             @Override
-            public void onMessage(ChatMessage message) {
+            public void onPrepareMessage(ChatMessage message) {
+                mChatAdapter.prerender(message);
+            }
+
+            @Override
+            public void onMessages(List<ChatMessage> messages) {
+                if (isFragmentActive())
+                    mChatAdapter.addAll(messages);
+            }
+
+            @Override
+            public void onMessagesChanged(List<ChatMessage> messages) {
                 if (isFragmentActive())
-                    addMessage(message);
+                    mChatAdapter.refresh(messages);
             }
 
             @Override
@@ -255,6 +276,12 @@ public class ChatFragment extends Fragment implements EmoteKeyboardDelegate, Cha
                 }
             }
 
+            @Override
+            public void onClearUser(String userId) {
+                if (isFragmentActive())
+                    mChatAdapter.clearUser(userId);
+            }
+
             @Override
             public void onConnectionChanged(WebsocketConnectionState state) {
                 if (!isFragmentActive())
@@ -305,9 +332,17 @@ public class ChatFragment extends Fragment implements EmoteKeyboardDelegate, Cha
                 });
                 Execute.background(getTwitchEmotesTask);
             }
-        });
+        };
 
-        if (vodOffset != null) Execute.background(chatManager);
+        if (vodID == null) {
+            // The session hands back its whole scrollback.
+            mChatAdapter.clear();
+            chatSession = ChatSession.attach(mUserInfo, chatCallback);
+            chatManager = chatSession.getChatManager();
+        } else {
+            chatManager = new ChatManager(mUserInfo, vodID, vodOffset, chatCallback);
+            if (vodOffset != null) Execute.background(chatManager);
+        }
 
         if (supportedTextEmotes == null) {
             supportedTextEmotes = new ArrayList<>();
@@ -330,7 +365,14 @@ public class ChatFragment extends Fragment implements EmoteKeyboardDelegate, Cha
     @Override
     public void onStop() {
         super.onStop();
-        chatManager.stop();
+
+        if (chatSession != null) {
+            // Keep the chat going unless the user is leaving it.
+            chatSession.detach(chatCallback, !requireActivity().isFinishing());
+            chatSession = null;
+        } else {
+            chatManager.stop();
+        }
     }
 
     @Override
@@ -409,6 +451,10 @@ public class ChatFragment extends Fragment implements EmoteKeyboardDelegate, Cha
         if (recentEmotes != null && !recentEmotes.isEmpty()) {
             Settings.setRecentEmotes(recentEmotes);
         }
+
+        if (emoteUsage != null && !emoteUsage.isEmpty()) {
+            Settings.setEmoteUsage(emoteUsage);
+        }
     }
 
     /**
@@ -419,11 +465,19 @@ public class ChatFragment extends Fragment implements EmoteKeyboardDelegate, Cha
             recentEmotes = new ArrayList<>();
             ArrayList<Emote> emotesFromSettings = Settings.getRecentEmotes();
             if (emotesFromSettings != null) {
-                recentEmotes.addAll(emotesFromSettings);
+                // Share the emotes of the keyboard instead of keeping copies of them.
+                for (Emote emote : emotesFromSettings) {
+                    recentEmotes.add(EmoteRegistry.intern(emote));
+                }
             } else {
                 Timber.e("Failed to load recent emotes");
             }
         }
+
+        if (emoteUsage == null) {
+            HashMap<String, Integer> usageFromSettings = Settings.getEmoteUsage();
+            emoteUsage = usageFromSettings != null ? usageFromSettings : new HashMap<>();
+        }
     }
 
     /**
@@ -481,6 +535,8 @@ public class ChatFragment extends Fragment implements EmoteKeyboardDelegate, Cha
         if (Settings.isLoggedIn() && twitchEmotesFragment != null) {
             twitchEmotesFragment.addTwitchEmotes();
         }
+
+        updateEmoteIndex();
     }
 
     private void subscriberEmotesLoaded(List<Emote> subscriberEmotesLoaded, EmotesPagerAdapter adapter) {
@@ -501,6 +557,8 @@ public class ChatFragment extends Fragment implements EmoteKeyboardDelegate, Cha
             if (Settings.isLoggedIn() && subscriberEmotesFragment != null) {
                 subscriberEmotesFragment.addSubscriberEmotes();
             }
+
+            updateEmoteIndex();
         }
         checkRecentEmotes();
     }
@@ -520,6 +578,20 @@ public class ChatFragment extends Fragment implements EmoteKeyboardDelegate, Cha
         if (Settings.isLoggedIn() && customEmotesFragment != null) {
             customEmotesFragment.addCustomEmotes();
         }
+
+        updateEmoteIndex();
+    }
+
+    /**
+     * Rebuilds the index of the emote suggestions in the background after an emote set has loaded.
+     */
+    private void updateEmoteIndex() {
+        final int generation = ++emoteIndexGeneration;
+        final List<Emote> custom = customEmotes, twitch = twitchEmotes, subscriber = subscriberEmotes;
+        Execute.background(() -> new EmoteSearchIndex(custom, twitch, subscriber), index -> {
+            // A newer set loaded while this one was built.
+            if (generation == emoteIndexGeneration) emoteIndex = index;
+        });
     }
 
     private void setInitialKeyboardHeight() {
@@ -701,16 +773,9 @@ public class ChatFragment extends Fragment implements EmoteKeyboardDelegate, Cha
                     String firstCharacter = matcher.group(1);
                     String lastWord = matcher.group(2).toLowerCase();
                     if (firstCharacter.equals("@")) {
-                        mChatAdapter.getNamesThatMatches(lastWord, suggestions);
-                    } else if (firstCharacter.equals(":") && customEmotes != null) {
-                        suggestions = Stream.of(customEmotes, customEmotes, twitchEmotes, subscriberEmotes)
-                                .flatMap(Collection::stream)
-                                .map(emote -> emote.keyword)
-                                .filter(keyword -> keyword.toLowerCase().contains(lastWord))
-                                .distinct()
-                                .limit(10)
-                                .sorted()
-                                .collect(Collectors.toList());
+                        mChatAdapter.getNamesThatMatches(lastWord, MAX_SUGGESTIONS, suggestions);
+                    } else if (firstCharacter.equals(":") && emoteIndex != null && emoteUsage != null) {
+                        emoteIndex.search(lastWord, MAX_SUGGESTIONS, emoteUsage, suggestions);
                     }
                 }
 
@@ -823,10 +888,18 @@ public class ChatFragment extends Fragment implements EmoteKeyboardDelegate, Cha
                 message,
                 chatManager.getUserDisplayName(),
                 chatManager.getUserColor(),
-                chatManager.getBadges(chatManager.getUserBadges()),
+                chatManager.getBadges(chatManager.getUserBadges(), chatManager.getUserDisplayName()),
                 ChatMessage.getEmotesFromMessage(message, emotes),
                 false
         );
+
+        if (emoteUsage != null) {
+            for (int i = 0; i < chatMessage.getEmoteCount(); i++) {
+                Emote emote = chatMessage.getEmote(i);
+                if (emote != null) emoteUsage.merge(emote.keyword, 1, Integer::sum);
+            }
+        }
+
         try {
             addMessage(chatMessage);
             Timber.d("Message added");
@@ -844,7 +917,11 @@ public class ChatFragment extends Fragment implements EmoteKeyboardDelegate, Cha
      * Adds a Twitch-message to the recyclerview
      */
     private void addMessage(ChatMessage message) {
-        mChatAdapter.add(message);
+        if (chatSession != null) {
+            chatSession.add(message);
+        } else {
+            mChatAdapter.add(message);
+        }
     }
 
     public void clearMessages() {
@@ -1005,8 +1082,9 @@ public class ChatFragment extends Fragment implements EmoteKeyboardDelegate, Cha
         }
 
         private void addCustomEmotes() {
-            if (customEmotes != null && mAdapter != null && mAdapter.getItemCount() == 0) {
-                mAdapter.addEmotes(customEmotes);
+            // Custom emotes arrive one provider at a time, so the list is replaced every time.
+            if (customEmotes != null && mAdapter != null) {
+                mAdapter.setEmotes(customEmotes);
             }
         }
 
@@ -1154,6 +1232,11 @@ public class ChatFragment extends Fragment implements EmoteKeyboardDelegate, Cha
                 }
             }
 
+            void setEmotes(List<Emote> emoteList) {
+                emotes.clear();
+                addEmotes(emoteList);
+            }
+
             void addEmotes(List<Emote> emoteList) {
                 emotes.addAll(emoteList);
                 if (fragmentType == EmoteFragmentType.ALL && emotesToHide != null) {
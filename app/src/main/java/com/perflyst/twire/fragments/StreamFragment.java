@@ -13,6 +13,7 @@ import android.animation.AnimatorListenerAdapter;
 import android.app.Activity;
 import android.app.PictureInPictureParams;
 import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ActivityInfo;
 import android.content.res.Configuration;
@@ -68,7 +69,9 @@ import androidx.fragment.app.Fragment;
 import androidx.media3.common.MediaItem;
 import androidx.media3.common.MediaMetadata;
 import androidx.media3.common.PlaybackException;
+import androidx.media3.common.PlaybackParameters;
 import androidx.media3.common.Player;
+import androidx.media3.common.Timeline;
 import androidx.media3.common.util.UnstableApi;
 import androidx.media3.common.util.Util;
 import androidx.media3.session.MediaController;
@@ -96,6 +99,7 @@ import com.perflyst.twire.activities.ChannelActivity;
 import com.perflyst.twire.activities.stream.StreamActivity;
 import com.perflyst.twire.adapters.PanelAdapter;
 import com.perflyst.twire.chat.ChatManager;
+import com.perflyst.twire.chat.VodChatArchive;
 import com.perflyst.twire.misc.FollowHandler;
 import com.perflyst.twire.misc.OnlineSince;
 import com.perflyst.twire.misc.ResizeHeightAnimation;
@@ -132,8 +136,7 @@ public class StreamFragment extends Fragment implements Player.Listener {
     private static int totalVerticalInset;
     private static boolean pipDisabling; // Tracks the PIP disabling animation.
     private final Handler fetchViewCountHandler = new Handler(),
-            fetchChattersHandler = new Handler(),
-            vodHandler = new Handler();
+            fetchChattersHandler = new Handler();
     private final HashMap<String, TextView> QualityOptions = new HashMap<>();
     private final int fetchViewCountDelay = 1000 * 60, // A minute
             fetchChattersDelay = 1000 * 60; // 30 seco... Nah just kidding. Also a minute.
@@ -181,17 +184,6 @@ public class StreamFragment extends Fragment implements Player.Listener {
     private PlayerControlView controlView;
     private OrientationEventListener orientationListener;
 
-    private final Runnable vodRunnable = new Runnable() {
-        @Override
-        public void run() {
-            if (player == null) return;
-
-            ChatManager.instance.updateVodProgress(player.getCurrentPosition(), false);
-
-            if (player.isPlaying()) vodHandler.postDelayed(this, 1000);
-        }
-    };
-
     private int originalCtrlToolbarPadding;
     private int originalMainToolbarPadding;
     private int videoHeightBeforeChatOnly;
@@ -455,6 +447,8 @@ public class StreamFragment extends Fragment implements Player.Listener {
                     if (vodId != null) {
                         player.setPlaybackSpeed(Settings.getPlaybackSpeed());
                         PlaybackService.sendSkipSilenceUpdate(player);
+                        // The player might already be playing, in which case there won't be an event for it.
+                        updateVodPlayback(false);
                     }
 
                     if (currentMediaItem != null) {
@@ -532,7 +526,14 @@ public class StreamFragment extends Fragment implements Player.Listener {
         // A seek is when we've gone backwards or we go more than 10 seconds forward.
         boolean seek = oldMs > newMs || newMs - oldMs > 10000;
         if (seek) streamFragmentCallback.onSeek();
-        ChatManager.instance.updateVodProgress(newMs, seek);
+        ChatManager.updateVodPlayback(newMs, player.getPlaybackParameters().speed, player.isPlaying(), seek);
+    }
+
+    @Override
+    public void onTimelineChanged(@NonNull Timeline timeline, int reason) {
+        // Whether the VOD is still recording is only known once its playlist loaded.
+        Activity activity = getActivity();
+        if (vodId != null && activity != null) activity.invalidateOptionsMenu();
     }
 
     @Override
@@ -542,7 +543,21 @@ public class StreamFragment extends Fragment implements Player.Listener {
 
     @Override
     public void onIsPlayingChanged(boolean isPlaying) {
-        if (vodId != null && isPlaying) vodRunnable.run();
+        updateVodPlayback(false);
+    }
+
+    @Override
+    public void onPlaybackParametersChanged(@NonNull PlaybackParameters playbackParameters) {
+        updateVodPlayback(false);
+    }
+
+    /**
+     * Tells VOD chat where the player is, chat extrapolates the position from this until the next change.
+     */
+    private void updateVodPlayback(boolean seek) {
+        if (vodId == null || player == null) return;
+
+        ChatManager.updateVodPlayback(player.getCurrentPosition(), player.getPlaybackParameters().speed, player.isPlaying(), seek);
     }
 
     public void updatePIPParameters() {
@@ -777,6 +792,22 @@ public class StreamFragment extends Fragment implements Player.Listener {
         sleepTimer.show(getActivity());
     }
 
+    /**
+     * @return If the VOD finished recording, the playlist of a VOD that is still recording keeps growing
+     */
+    private boolean isVodComplete() {
+        return player != null && !player.getCurrentTimeline().isEmpty() && !player.isCurrentMediaItemDynamic();
+    }
+
+    private void downloadChatClicked() {
+        // The archive would end where the VOD was when it was downloaded, and is never updated.
+        if (!isVodComplete()) return;
+
+        Context context = requireContext().getApplicationContext();
+        Toast.makeText(context, R.string.vod_chat_download_started, Toast.LENGTH_SHORT).show();
+        VodChatArchive.download(vodId, success -> Toast.makeText(context, success ? R.string.vod_chat_download_finished : R.string.vod_chat_download_failed, Toast.LENGTH_SHORT).show());
+    }
+
     private void playbackButtonClicked() {
         DialogService.getPlaybackDialog(getActivity(), player).show();
     }
@@ -798,6 +829,7 @@ public class StreamFragment extends Fragment implements Player.Listener {
         });
 
         menu.findItem(R.id.menu_item_playback).setVisible(vodId != null);
+        menu.findItem(R.id.menu_item_download_chat).setVisible(vodId != null && isVodComplete() && !VodChatArchive.exists(vodId));
     }
 
     @Override
@@ -823,6 +855,9 @@ public class StreamFragment extends Fragment implements Player.Listener {
         } else if (itemId == R.id.menu_item_playback) {
             playbackButtonClicked();
             return true;
+        } else if (itemId == R.id.menu_item_download_chat) {
+            downloadChatClicked();
+            return true;
         }
 
         return super.onOptionsItemSelected(item);
@@ -0,0 +1,52 @@
+package com.perflyst.twire.misc;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.text.style.ReplacementSpan;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A badge drawn from the {@link BadgeAtlas}, centered on the line like {@link VerticalImageSpan}.
+ * The badge is already in the atlas when the span is created, so it never waits on an image.
+ * Once the atlas gives up the cell of the badge the span draws nothing.
+ * The span can be created on any thread.
+ */
+public class AtlasBadgeSpan extends ReplacementSpan {
+    private final BadgeAtlas atlas;
+    private final int handle;
+    private final int size;
+
+    private int yOffset;
+
+    /**
+     * @param handle The handle {@link BadgeAtlas#find} returned for the badge
+     */
+    public AtlasBadgeSpan(BadgeAtlas atlas, int handle) {
+        this.atlas = atlas;
+        this.handle = handle;
+        this.size = atlas.getCellSize();
+    }
+
+    @Override
+    public int getSize(@NonNull Paint paint, CharSequence text, int start, int end, Paint.FontMetricsInt fm) {
+        if (fm != null) {
+            int middle = fm.ascent + (fm.descent - fm.ascent) / 2;
+            int halfHeight = size / 2;
+
+            yOffset = middle - halfHeight;
+
+            fm.ascent = middle - halfHeight;
+            fm.top = fm.ascent;
+            fm.bottom = middle + halfHeight;
+            fm.descent = fm.bottom;
+        }
+
+        return size;
+    }
+
+    @Override
+    public void draw(@NonNull Canvas canvas, CharSequence text, int start, int end, float x, int top, int y, int bottom, @NonNull Paint paint) {
+        atlas.draw(canvas, handle, x, y + yOffset);
+    }
+}
@@ -0,0 +1,48 @@
+package com.perflyst.twire.misc;
+
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.text.style.ReplacementSpan;
+
+import androidx.annotation.NonNull;
+
+/**
+ * An emote drawn from the {@link EmoteAtlas}, centered on the line like {@link VerticalImageSpan}.
+ * The span always has the size of an atlas cell, so the text never has to be measured again when the image loads.
+ * The span can be created on any thread.
+ */
+public class AtlasEmoteSpan extends ReplacementSpan {
+    private final EmoteAtlas atlas;
+    private final String url;
+    private final int size;
+
+    private int yOffset;
+
+    public AtlasEmoteSpan(EmoteAtlas atlas, String url) {
+        this.atlas = atlas;
+        this.url = url;
+        this.size = atlas.getCellSize();
+    }
+
+    @Override
+    public int getSize(@NonNull Paint paint, CharSequence text, int start, int end, Paint.FontMetricsInt fm) {
+        if (fm != null) {
+            int middle = fm.ascent + (fm.descent - fm.ascent) / 2;
+            int halfHeight = size / 2;
+
+            yOffset = middle - halfHeight;
+
+            fm.ascent = middle - halfHeight;
+            fm.top = fm.ascent;
+            fm.bottom = middle + halfHeight;
+            fm.descent = fm.bottom;
+        }
+
+        return size;
+    }
+
+    @Override
+    public void draw(@NonNull Canvas canvas, CharSequence text, int start, int end, float x, int top, int y, int bottom, @NonNull Paint paint) {
+        atlas.draw(canvas, url, x, y + yOffset);
+    }
+}
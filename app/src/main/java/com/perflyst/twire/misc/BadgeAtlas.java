@@ -0,0 +1,278 @@
+package com.perflyst.twire.misc;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.request.FutureTarget;
+import com.perflyst.twire.model.Badge;
+import com.perflyst.twire.utils.Execute;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import timber.log.Timber;
+
+/**
+ * Chat badges decoded once into a few shared bitmaps at the size they are shown, with their FFZ background color already drawn in.
+ * A chat only shows a few dozen distinct badges, so a badge keeps its cell while a chat that preloaded it is running
+ * and spans can refer to it directly. Once every chat that uses a badge is released its cell is reused,
+ * spans that still refer to it draw nothing instead of another badge.
+ * Badges are decoded on a background thread and only copied into their cell on the main thread,
+ * once a badge can be found it can be drawn. When the atlas is full, further badges aren't added.
+ */
+public class BadgeAtlas {
+    private static final int BADGE_DP = 18;
+    private static final int PAGE_SIZE = 1024;
+    private static final int MAX_PAGES = 2;
+    // A handle is the cell in the low bits and how often the cell was used in the high bits.
+    private static final int CELL_BITS = 16;
+    private static final int CELL_MASK = (1 << CELL_BITS) - 1;
+
+    private static BadgeAtlas instance;
+
+    private final Context context;
+    private final int cellSize;
+    private final int urlSize;
+    private final int cellsPerRow;
+    private final int cellsPerPage;
+    private final Bitmap[] pages = new Bitmap[MAX_PAGES];
+    // The handle of every badge that has been copied in, by url and background color.
+    private final Map<String, Integer> cells = new ConcurrentHashMap<>();
+    // How many chats use every badge and which badges every chat uses, guarded by owners.
+    private final Map<String, Integer> owners = new HashMap<>();
+    private final Map<Object, Set<String>> ownedKeys = new HashMap<>();
+    // Chats that were released, badges they preload afterwards aren't added.
+    private final Set<Object> releasedOwners = Collections.newSetFromMap(new WeakHashMap<>());
+    // The badges that are decoded or in the atlas, guarded by owners.
+    private final Set<String> requested = new HashSet<>();
+    // Only used on the main thread
+    private final int[] cellHandles;
+    private final int[] cellUses;
+    private final List<Integer> freeCells = new ArrayList<>();
+    private final Paint backgroundPaint = new Paint();
+    private final Paint clearPaint = new Paint();
+    private final Rect source = new Rect();
+    private final RectF destination = new RectF();
+    private int usedCells;
+
+    private BadgeAtlas(Context context) {
+        this.context = context;
+
+        float density = context.getResources().getDisplayMetrics().density;
+        cellSize = Math.round(BADGE_DP * density);
+        urlSize = density <= 1 ? 1 : density <= 2 ? 2 : 4;
+        cellsPerRow = PAGE_SIZE / cellSize;
+        cellsPerPage = cellsPerRow * cellsPerRow;
+        clearPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
+        cellHandles = new int[cellsPerPage * MAX_PAGES];
+        cellUses = new int[cellHandles.length];
+    }
+
+    /**
+     * Can be called from any thread.
+     */
+    public static synchronized BadgeAtlas getInstance(Context context) {
+        if (instance == null)
+            instance = new BadgeAtlas(context.getApplicationContext());
+
+        return instance;
+    }
+
+    public int getCellSize() {
+        return cellSize;
+    }
+
+    /**
+     * Can be called from any thread.
+     *
+     * @return The handle of the badge, or -1 if it isn't in the atlas yet
+     */
+    public int find(Badge badge) {
+        Integer handle = cells.get(getKey(badge));
+        return handle != null ? handle : -1;
+    }
+
+    /**
+     * Decodes the badges that haven't been requested before and adds them to the atlas.
+     * The badges keep their cells until the owner is released.
+     * Blocks until they are decoded, so it has to be called on a background thread.
+     *
+     * @param owner The chat that uses the badges
+     */
+    public void preload(Object owner, Iterable<Badge> badges) {
+        List<Badge> pending = new ArrayList<>();
+        List<FutureTarget<Bitmap>> futures = new ArrayList<>();
+        for (Badge badge : badges) {
+            if (badge == null) continue;
+
+            String key = getKey(badge);
+            synchronized (owners) {
+                if (releasedOwners.contains(owner)) break;
+
+                Set<String> keys = ownedKeys.get(owner);
+                if (keys == null) {
+                    keys = new HashSet<>();
+                    ownedKeys.put(owner, keys);
+                }
+
+                if (!keys.add(key)) continue;
+
+                owners.merge(key, 1, Integer::sum);
+                if (!requested.add(key)) continue;
+            }
+
+            pending.add(badge);
+            // Start every request before waiting on any, so Glide can fetch them side by side.
+            futures.add(Glide.with(context)
+                    .asBitmap()
+                    .load(badge.getUrl(urlSize))
+                    .fitCenter()
+                    .submit(cellSize, cellSize));
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+            Badge badge = pending.get(i);
+            FutureTarget<Bitmap> future = futures.get(i);
+            try {
+                Bitmap bitmap = future.get();
+                Execute.ui(() -> {
+                    put(badge, bitmap);
+                    // The bitmap has been copied, Glide can have it back.
+                    Glide.with(context).clear(future);
+                });
+            } catch (Exception e) {
+                Timber.w(e, "Failed to decode badge %s", badge.name);
+                synchronized (owners) {
+                    requested.remove(getKey(badge));
+                }
+                Execute.ui(() -> Glide.with(context).clear(future));
+            }
+        }
+    }
+
+    /**
+     * Lets go of the badges the owner preloaded, the ones no other chat uses give up their cells.
+     * Can be called from any thread.
+     */
+    public void release(Object owner) {
+        List<String> unused = new ArrayList<>();
+        synchronized (owners) {
+            releasedOwners.add(owner);
+            Set<String> keys = ownedKeys.remove(owner);
+            if (keys == null) return;
+
+            for (String key : keys) {
+                if (owners.merge(key, -1, Integer::sum) > 0) continue;
+
+                owners.remove(key);
+                requested.remove(key);
+                unused.add(key);
+            }
+        }
+
+        Execute.ui(() -> {
+            for (String key : unused) {
+                synchronized (owners) {
+                    // A chat preloaded the badge again in the meantime.
+                    if (owners.containsKey(key)) continue;
+                }
+
+                Integer handle = cells.remove(key);
+                if (handle == null) continue;
+
+                int cell = handle & CELL_MASK;
+                cellHandles[cell] = -1;
+                freeCells.add(cell);
+            }
+        });
+    }
+
+    /**
+     * Draws the badge with the handle at left, top, or nothing if its cell was given up. Must be called on the main thread.
+     */
+    public void draw(Canvas canvas, int handle, float left, float top) {
+        int cell = handle & CELL_MASK;
+        if (cellHandles[cell] != handle) return;
+
+        setCellBounds(cell, source);
+        destination.set(left, top, left + cellSize, top + cellSize);
+        canvas.drawBitmap(pages[cell / cellsPerPage], source, destination, null);
+    }
+
+    private void put(Badge badge, Bitmap bitmap) {
+        String key = getKey(badge);
+        synchronized (owners) {
+            // Every chat that uses the badge was released while it was decoded.
+            if (!owners.containsKey(key)) return;
+        }
+
+        // The badge was released and preloaded again before its cell was given up, it keeps that cell.
+        if (cells.containsKey(key)) return;
+
+        int cell;
+        if (!freeCells.isEmpty()) {
+            cell = freeCells.remove(freeCells.size() - 1);
+        } else if (usedCells < cellsPerPage * MAX_PAGES) {
+            cell = usedCells++;
+        } else {
+            Timber.w("Badge atlas is full, %s is shown without it", badge.name);
+            synchronized (owners) {
+                requested.remove(key);
+            }
+            return;
+        }
+
+        int pageIndex = cell / cellsPerPage;
+        if (pages[pageIndex] == null)
+            pages[pageIndex] = Bitmap.createBitmap(PAGE_SIZE, PAGE_SIZE, Bitmap.Config.ARGB_8888);
+
+        setCellBounds(cell, source);
+        Canvas canvas = new Canvas(pages[pageIndex]);
+        canvas.drawRect(source, clearPaint);
+        if (badge.color != null) {
+            backgroundPaint.setColor(Color.parseColor(badge.color));
+            canvas.drawRect(source, backgroundPaint);
+        }
+
+        // Center the badge in its cell, it's at most the cell size on either side.
+        float scale = Math.min(1, (float) cellSize / Math.max(bitmap.getWidth(), bitmap.getHeight()));
+        float width = bitmap.getWidth() * scale;
+        float height = bitmap.getHeight() * scale;
+        destination.left = source.left + (cellSize - width) / 2;
+        destination.top = source.top + (cellSize - height) / 2;
+        destination.right = destination.left + width;
+        destination.bottom = destination.top + height;
+        canvas.drawBitmap(bitmap, null, destination, null);
+
+        // A reused cell gets a new handle, so spans made for its previous badge don't draw this one.
+        cellUses[cell] = (cellUses[cell] + 1) & (Integer.MAX_VALUE >>> CELL_BITS);
+        cellHandles[cell] = cellUses[cell] << CELL_BITS | cell;
+        cells.put(key, cellHandles[cell]);
+    }
+
+    private void setCellBounds(int cell, Rect bounds) {
+        int index = cell % cellsPerPage;
+        int left = index % cellsPerRow * cellSize;
+        int top = index / cellsPerRow * cellSize;
+        bounds.set(left, top, left + cellSize, top + cellSize);
+    }
+
+    private String getKey(Badge badge) {
+        return badge.getUrl(urlSize) + '#' + badge.color;
+    }
+}
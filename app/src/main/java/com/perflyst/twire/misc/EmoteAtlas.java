@@ -0,0 +1,209 @@
+package com.perflyst.twire.misc;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.View;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.request.target.CustomTarget;
+import com.bumptech.glide.request.transition.Transition;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Still images packed into a few shared bitmaps, for the lite chat.
+ * An image is requested from Glide once, decoded to its first frame at the cell size and copied into a free cell,
+ * after that drawing it is a bitmap copy without a drawable or request per use.
+ * When the atlas is full the least recently drawn image gives up its cell. An image that failed to load is tried again after a while.
+ * All methods must be called on the main thread.
+ */
+public class EmoteAtlas {
+    private static final int PAGE_SIZE = 1024;
+    private static final int MAX_PAGES = 2;
+    private static final long RETRY_DELAY = 60_000;
+
+    private static EmoteAtlas instance;
+
+    private final Context context;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final int cellSize;
+    private final int cellsPerRow;
+    private final int cellsPerPage;
+    private final Bitmap[] pages = new Bitmap[MAX_PAGES];
+    // The cell of every image, in the order they were last drawn.
+    private final LinkedHashMap<String, Integer> cells = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CustomTarget<Bitmap>> loading = new HashMap<>();
+    // When every image that failed to load failed, in uptime milliseconds.
+    private final Map<String, Long> failed = new HashMap<>();
+    private final Set<View> waitingViews = Collections.newSetFromMap(new WeakHashMap<>());
+    private final Paint placeholderPaint = new Paint();
+    private final Paint clearPaint = new Paint();
+    private final Rect source = new Rect();
+    private final RectF destination = new RectF();
+    private int usedCells;
+    private View drawingView;
+
+    private EmoteAtlas(Context context, int cellSize) {
+        this.context = context;
+        this.cellSize = cellSize;
+        cellsPerRow = PAGE_SIZE / cellSize;
+        cellsPerPage = cellsPerRow * cellsPerRow;
+
+        placeholderPaint.setColor(Color.LTGRAY);
+        clearPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
+    }
+
+    /**
+     * @param cellSize The size in pixels of the square every image is fit into
+     */
+    public static EmoteAtlas getInstance(Context context, int cellSize) {
+        if (instance == null || instance.cellSize != cellSize) {
+            if (instance != null) instance.release();
+
+            instance = new EmoteAtlas(context.getApplicationContext(), Math.min(cellSize, PAGE_SIZE));
+        }
+
+        return instance;
+    }
+
+    public int getCellSize() {
+        return cellSize;
+    }
+
+    /**
+     * Sets the view that is drawing, it's redrawn when an image it drew a placeholder for has loaded.
+     */
+    public void setDrawingView(@Nullable View view) {
+        drawingView = view;
+    }
+
+    /**
+     * Draws the image into the cell sized square at left, top, or a placeholder until it has loaded.
+     */
+    public void draw(Canvas canvas, String url, float left, float top) {
+        destination.set(left, top, left + cellSize, top + cellSize);
+
+        Integer cell = cells.get(url);
+        if (cell == null) {
+            canvas.drawRect(destination, placeholderPaint);
+            Long failedAt = failed.get(url);
+            if (failedAt != null) {
+                if (SystemClock.uptimeMillis() - failedAt < RETRY_DELAY) return;
+
+                failed.remove(url);
+            }
+
+            if (drawingView != null) waitingViews.add(drawingView);
+            load(url);
+            return;
+        }
+
+        setCellBounds(cell, source);
+        canvas.drawBitmap(pages[cell / cellsPerPage], source, destination, null);
+    }
+
+    private void load(String url) {
+        if (loading.containsKey(url)) return;
+
+        CustomTarget<Bitmap> target = new CustomTarget<>(cellSize, cellSize) {
+            @Override
+            public void onResourceReady(@NonNull Bitmap resource, @Nullable Transition<? super Bitmap> transition) {
+                if (loading.remove(url) != this) return;
+
+                put(url, resource);
+                // The bitmap has been copied, Glide can have it back. Requests can't be cleared from their own callback.
+                handler.post(() -> Glide.with(context).clear(this));
+            }
+
+            @Override
+            public void onLoadFailed(@Nullable Drawable errorDrawable) {
+                if (loading.remove(url) != this) return;
+
+                failed.put(url, SystemClock.uptimeMillis());
+            }
+
+            @Override
+            public void onLoadCleared(@Nullable Drawable placeholder) {
+            }
+        };
+
+        loading.put(url, target);
+        Glide.with(context)
+                .asBitmap()
+                .load(url)
+                .fitCenter()
+                .into(target);
+    }
+
+    private void put(String url, Bitmap bitmap) {
+        int cell;
+        if (usedCells < cellsPerPage * MAX_PAGES) {
+            cell = usedCells++;
+        } else {
+            Iterator<Map.Entry<String, Integer>> eldest = cells.entrySet().iterator();
+            cell = eldest.next().getValue();
+            eldest.remove();
+        }
+
+        int pageIndex = cell / cellsPerPage;
+        if (pages[pageIndex] == null)
+            pages[pageIndex] = Bitmap.createBitmap(PAGE_SIZE, PAGE_SIZE, Bitmap.Config.ARGB_8888);
+
+        setCellBounds(cell, source);
+        Canvas canvas = new Canvas(pages[pageIndex]);
+        canvas.drawRect(source, clearPaint);
+
+        // Center the image in its cell, it's at most the cell size on either side.
+        float scale = Math.min(1, (float) cellSize / Math.max(bitmap.getWidth(), bitmap.getHeight()));
+        float width = bitmap.getWidth() * scale;
+        float height = bitmap.getHeight() * scale;
+        destination.set(source.left + (cellSize - width) / 2, source.top + (cellSize - height) / 2, 0, 0);
+        destination.right = destination.left + width;
+        destination.bottom = destination.top + height;
+        canvas.drawBitmap(bitmap, null, destination, null);
+
+        cells.put(url, cell);
+
+        for (View view : waitingViews) {
+            view.invalidate();
+        }
+        waitingViews.clear();
+    }
+
+    private void setCellBounds(int cell, Rect bounds) {
+        int index = cell % cellsPerPage;
+        int left = index % cellsPerRow * cellSize;
+        int top = index / cellsPerRow * cellSize;
+        bounds.set(left, top, left + cellSize, top + cellSize);
+    }
+
+    private void release() {
+        for (CustomTarget<Bitmap> target : loading.values()) {
+            Glide.with(context).clear(target);
+        }
+        loading.clear();
+        cells.clear();
+        failed.clear();
+        waitingViews.clear();
+    }
+}
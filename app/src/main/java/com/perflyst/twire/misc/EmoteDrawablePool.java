@@ -0,0 +1,425 @@
+package com.perflyst.twire.misc;
+
+import android.content.Context;
+import android.graphics.Color;
+import android.graphics.Rect;
+import android.graphics.drawable.Animatable;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.text.PrecomputedText;
+import android.text.SpannableString;
+import android.text.Spanned;
+import android.util.LruCache;
+import android.view.Choreographer;
+import android.view.View;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.request.target.CustomTarget;
+import com.bumptech.glide.request.transition.Transition;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import timber.log.Timber;
+
+/**
+ * Process wide pool of emote and badge drawables, keyed by url and scale.
+ * Every occurrence of an image shares one Glide request and one drawable, so an animated emote is decoded once
+ * no matter how often it is spammed.
+ * Animations are driven by a single frame clock: the frames the drawables schedule run from it, and it redraws
+ * the views showing them at most once per frame. An animation is stopped while none of its views are attached.
+ * All methods must be called on the main thread.
+ */
+public class EmoteDrawablePool implements Choreographer.FrameCallback {
+    private static final int MAX_ENTRIES = 256;
+    private static final int MAX_LOADED_SIZES = 2048;
+
+    private static EmoteDrawablePool instance;
+    // The size the last images loaded with, by url, so later spans of an image are measured right from the start.
+    private static final LruCache<String, Rect> loadedSizes = new LruCache<>(MAX_LOADED_SIZES);
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final LruCache<String, Entry> entries = new LruCache<>(MAX_ENTRIES) {
+        @Override
+        protected void entryRemoved(boolean evicted, String key, Entry oldValue, Entry newValue) {
+            oldValue.release();
+        }
+    };
+    private final WeakHashMap<TextView, Set<Entry>> viewToEntries = new WeakHashMap<>();
+    private final Set<Entry> dirtyEntries = new HashSet<>();
+    // The frames the animations scheduled, run by the frame clock once they are due.
+    private final List<ScheduledFrame> scheduledFrames = new ArrayList<>();
+    private boolean frameScheduled;
+    // When the frame callback that is posted runs, in uptime milliseconds.
+    private long frameTime;
+
+    public static EmoteDrawablePool getInstance() {
+        if (instance == null)
+            instance = new EmoteDrawablePool();
+
+        return instance;
+    }
+
+    /**
+     * Can be called from any thread.
+     *
+     * @return The bounds the image had when it loaded before, or null if it hasn't
+     */
+    @Nullable
+    static Rect getLoadedBounds(String url, float scale) {
+        Rect size = loadedSizes.get(url);
+        return size != null ? new Rect(0, 0, Math.round(size.width() / scale), Math.round(size.height() / scale)) : null;
+    }
+
+    /**
+     * Remembers the size of an image that was loaded, also when it was loaded outside the pool.
+     * Can be called from any thread.
+     */
+    public static void putLoadedSize(String url, Drawable drawable) {
+        loadedSizes.put(url, new Rect(0, 0, drawable.getIntrinsicWidth(), drawable.getIntrinsicHeight()));
+    }
+
+    private static String getKey(String url, float scale) {
+        return url + "#" + scale;
+    }
+
+    /**
+     * Gets the shared entry for an image, starting the request if it isn't in the pool.
+     */
+    Entry obtain(Context context, String url, int assumedSize, float scale) {
+        String key = getKey(url, scale);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(context.getApplicationContext(), url, assumedSize, scale);
+            entries.put(key, entry);
+            entry.load();
+        }
+
+        return entry;
+    }
+
+    /**
+     * Forgets which images a view showed, called before the view is bound to new text.
+     */
+    void unregisterView(TextView textView) {
+        Set<Entry> viewEntries = viewToEntries.get(textView);
+        if (viewEntries == null)
+            return;
+
+        for (Entry entry : viewEntries) {
+            entry.views.remove(textView);
+        }
+        viewEntries.clear();
+    }
+
+    void registerView(TextView textView, Entry entry) {
+        Set<Entry> viewEntries = viewToEntries.get(textView);
+        if (viewEntries == null) {
+            viewEntries = new HashSet<>();
+            viewToEntries.put(textView, viewEntries);
+
+            textView.addOnAttachStateChangeListener(new View.OnAttachStateChangeListener() {
+                @Override
+                public void onViewAttachedToWindow(@NonNull View view) {
+                    Set<Entry> attachedEntries = viewToEntries.get(textView);
+                    if (attachedEntries == null) return;
+
+                    for (Entry attachedEntry : attachedEntries) {
+                        attachedEntry.resume();
+                    }
+                }
+
+                @Override
+                public void onViewDetachedFromWindow(@NonNull View view) {
+                }
+            });
+        }
+
+        viewEntries.add(entry);
+        entry.views.add(textView);
+        if (textView.isAttachedToWindow())
+            entry.resume();
+    }
+
+    private void markDirty(Entry entry) {
+        dirtyEntries.add(entry);
+        scheduleFrame(SystemClock.uptimeMillis());
+    }
+
+    /**
+     * Makes sure the frame callback runs on the first frame at or after the time.
+     */
+    private void scheduleFrame(long time) {
+        if (frameScheduled && frameTime <= time) return;
+
+        Choreographer choreographer = Choreographer.getInstance();
+        if (frameScheduled) choreographer.removeFrameCallback(this);
+
+        frameScheduled = true;
+        frameTime = time;
+        choreographer.postFrameCallbackDelayed(this, Math.max(0, time - SystemClock.uptimeMillis()));
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        // Frames and invalidations that come in while this runs are handled by it, the callback counts as scheduled until the end.
+        long now = SystemClock.uptimeMillis();
+        frameTime = now;
+
+        List<ScheduledFrame> dueFrames = new ArrayList<>();
+        for (Iterator<ScheduledFrame> iterator = scheduledFrames.iterator(); iterator.hasNext(); ) {
+            ScheduledFrame frame = iterator.next();
+            if (frame.time > now) continue;
+
+            iterator.remove();
+            dueFrames.add(frame);
+        }
+        // Advancing an animation invalidates its drawable, which marks its entry dirty for this frame.
+        for (ScheduledFrame frame : dueFrames) {
+            frame.action.run();
+        }
+
+        List<Entry> frameEntries = new ArrayList<>(dirtyEntries);
+        dirtyEntries.clear();
+
+        Set<TextView> invalidated = new HashSet<>();
+        for (Entry entry : frameEntries) {
+            boolean visible = false;
+            for (TextView view : entry.views) {
+                if (!view.isAttachedToWindow()) continue;
+
+                visible = true;
+                if (invalidated.add(view)) view.invalidate();
+            }
+
+            // Nobody can see the animation, stop it until a view showing it is attached again.
+            if (!visible) entry.pause();
+        }
+
+        frameScheduled = false;
+        long nextFrameTime = Long.MAX_VALUE;
+        for (ScheduledFrame frame : scheduledFrames) {
+            nextFrameTime = Math.min(nextFrameTime, frame.time);
+        }
+        if (nextFrameTime != Long.MAX_VALUE) scheduleFrame(nextFrameTime);
+    }
+
+    private void unschedule(Drawable drawable, @Nullable Runnable action) {
+        for (Iterator<ScheduledFrame> iterator = scheduledFrames.iterator(); iterator.hasNext(); ) {
+            ScheduledFrame frame = iterator.next();
+            if (frame.drawable == drawable && (action == null || frame.action == action)) iterator.remove();
+        }
+    }
+
+    /**
+     * Attaches the image spans of the text the view shows again, so images whose entry was released get a new one.
+     */
+    private static void reattach(TextView textView) {
+        CharSequence text = textView.getText();
+        if (!(text instanceof Spanned)) return;
+
+        GlideImageSpan.attachAll(textView, ((Spanned) text).getSpans(0, text.length(), GlideImageSpan.class));
+        textView.invalidate();
+    }
+
+    /**
+     * @return If the text of the view was measured with a different size than one of its images has
+     */
+    private static boolean hasSizeChanged(TextView textView) {
+        CharSequence text = textView.getText();
+        if (!(text instanceof Spanned)) return false;
+
+        for (GlideImageSpan span : ((Spanned) text).getSpans(0, text.length(), GlideImageSpan.class)) {
+            if (span.hasSizeChanged()) return true;
+        }
+
+        return false;
+    }
+
+    private static void relayout(TextView textView) {
+        CharSequence text = textView.getText();
+        // Precomputed text has the old size baked in, so it has to be measured again.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P && text instanceof PrecomputedText) {
+            text = new SpannableString(text);
+        }
+
+        textView.setText(text);
+    }
+
+    class Entry implements Drawable.Callback {
+        private final Context context;
+        private final String url;
+        private final int assumedSize;
+        private final float scale;
+        private final Set<TextView> views = Collections.newSetFromMap(new WeakHashMap<>());
+
+        private Drawable drawable;
+        private Animatable animatable;
+        private boolean released;
+        private CustomTarget<Drawable> target;
+
+        private Entry(Context context, String url, int assumedSize, float scale) {
+            this.context = context;
+            this.url = url;
+            this.assumedSize = assumedSize;
+            this.scale = scale;
+
+            drawable = createPlaceholder(Color.LTGRAY);
+        }
+
+        private Drawable createPlaceholder(int color) {
+            int scaledAssumedSize = Math.round(assumedSize / scale);
+
+            final Drawable placeholder = new ColorDrawable(color);
+            placeholder.setBounds(0, 0, scaledAssumedSize, scaledAssumedSize);
+            return placeholder;
+        }
+
+        private void load() {
+            final Drawable errorDrawable = createPlaceholder(0xFFFFCCCC); // Reddish light gray
+
+            target = Glide
+                    .with(context)
+                    .load(url)
+                    .error(errorDrawable)
+                    .placeholder(drawable)
+                    .into(new CustomTarget<Drawable>() {
+                        @Override
+                        public void onLoadStarted(Drawable resource) {
+                            drawable = resource;
+                        }
+
+                        @Override
+                        public void onResourceReady(@NonNull Drawable resource, @Nullable Transition<? super Drawable> transition) {
+                            resource.setBounds(0, 0, Math.round(resource.getIntrinsicWidth() / scale), Math.round(resource.getIntrinsicHeight() / scale));
+
+                            if (resource instanceof Animatable) {
+                                animatable = (Animatable) resource;
+                                resource.setCallback(Entry.this);
+
+                                animatable.start();
+                            }
+
+                            drawable = resource;
+                            putLoadedSize(url, resource);
+
+                            // Spans made after the image loaded or was prefetched before were measured with its real size,
+                            // only the views with spans that were measured before have to be laid out again.
+                            for (TextView view : new ArrayList<>(views)) {
+                                if (hasSizeChanged(view)) {
+                                    Timber.tag("EmoteShift").d("Got " + resource.getIntrinsicWidth() + " but assumed " + assumedSize + " (" + url + ")");
+                                    relayout(view);
+                                } else {
+                                    view.invalidate();
+                                }
+                            }
+                        }
+
+                        @Override
+                        public void onLoadFailed(Drawable resource) {
+                            drawable = resource;
+                            invalidateViews();
+                        }
+
+                        @Override
+                        public void onLoadCleared(@Nullable Drawable placeholder) {
+                            if (animatable != null) {
+                                animatable.stop();
+                                animatable = null;
+                            }
+
+                            drawable = placeholder;
+                            invalidateViews();
+                        }
+                    });
+        }
+
+        private void invalidateViews() {
+            for (TextView view : views) {
+                view.invalidate();
+            }
+        }
+
+        private void resume() {
+            if (animatable != null && !animatable.isRunning())
+                animatable.start();
+        }
+
+        private void pause() {
+            if (animatable != null && animatable.isRunning())
+                animatable.stop();
+        }
+
+        private void release() {
+            released = true;
+            pause();
+            dirtyEntries.remove(this);
+            if (drawable != null) unschedule(drawable, null);
+
+            // Clearing the request swaps in the placeholder and redraws the views, so it happens while they are known.
+            List<TextView> shownViews = new ArrayList<>(views);
+            if (target != null)
+                Glide.with(context).clear(target);
+            views.clear();
+
+            // Views that still show the image get a new entry for it instead of keeping the placeholder.
+            handler.post(() -> {
+                for (TextView view : shownViews) {
+                    if (view.isAttachedToWindow()) reattach(view);
+                }
+            });
+        }
+
+        Drawable getDrawable() {
+            return drawable;
+        }
+
+        boolean isReleased() {
+            return released;
+        }
+
+        @Override
+        public void invalidateDrawable(@NonNull Drawable who) {
+            markDirty(this);
+        }
+
+        @Override
+        public void scheduleDrawable(@NonNull Drawable who, @NonNull Runnable what, long when) {
+            if (released) return;
+
+            scheduledFrames.add(new ScheduledFrame(who, what, when));
+            scheduleFrame(when);
+        }
+
+        @Override
+        public void unscheduleDrawable(@NonNull Drawable who, @NonNull Runnable what) {
+            unschedule(who, what);
+        }
+    }
+
+    private static class ScheduledFrame {
+        private final Drawable drawable;
+        private final Runnable action;
+        // In uptime milliseconds
+        private final long time;
+
+        private ScheduledFrame(Drawable drawable, Runnable action, long time) {
+            this.drawable = drawable;
+            this.action = action;
+            this.time = time;
+        }
+    }
+}
@@ -1,135 +1,97 @@
 package com.perflyst.twire.misc;
 
 import android.content.Context;
+import android.graphics.Canvas;
 import android.graphics.Color;
-import android.graphics.drawable.Animatable;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
-import android.graphics.drawable.LayerDrawable;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
-import androidx.annotation.Nullable;
 
-import com.bumptech.glide.Glide;
-import com.bumptech.glide.request.target.CustomTarget;
-import com.bumptech.glide.request.transition.Transition;
 import com.rey.material.drawable.BlankDrawable;
 
-import timber.log.Timber;
+/**
+ * An image span that shows an image from the {@link EmoteDrawablePool}.
+ * The span can be created on any thread, the image is only requested once the span is attached to a {@link TextView}.
+ */
+public class GlideImageSpan extends VerticalImageSpan {
+    private final Context context;
+    private final String url;
+    private final int assumedSize;
+    private final float scale;
+    private final Drawable placeholder;
 
-public class GlideImageSpan extends VerticalImageSpan implements Drawable.Callback {
-    private final TextView textView;
-    private LayerDrawable layerDrawable;
+    private Paint backgroundPaint;
+    private EmoteDrawablePool.Entry entry;
 
-    private Drawable mDrawable;
-    private Animatable animatable;
-
-    public GlideImageSpan(Context context, String url, TextView textView, int assumedSize, float scale, String backgroundColor) {
-        this(context, url, textView, assumedSize, scale);
+    public GlideImageSpan(Context context, String url, int assumedSize, float scale, String backgroundColor) {
+        this(context, url, assumedSize, scale);
 
         if (backgroundColor == null)
             return;
 
-        ColorDrawable backgroundDrawable = new ColorDrawable(Color.parseColor(backgroundColor));
-
-        this.layerDrawable = new LayerDrawable(new Drawable[] {backgroundDrawable, new BlankDrawable()});
-        layerDrawable.setId(0, 0);
-        layerDrawable.setId(1, 1);
+        backgroundPaint = new Paint();
+        backgroundPaint.setColor(Color.parseColor(backgroundColor));
     }
 
-    public GlideImageSpan(Context context, String url, TextView textView, int assumedSize, float scale) {
+    public GlideImageSpan(Context context, String url, int assumedSize, float scale) {
         super(new BlankDrawable());
 
-        this.textView = textView;
-        final GlideImageSpan instance = this;
-
-        int scaledAssumedSize = Math.round(assumedSize / scale);
-
-        final Drawable placeHolderDrawable = new ColorDrawable(Color.LTGRAY);
-        placeHolderDrawable.setBounds(0, 0, scaledAssumedSize, scaledAssumedSize);
-
-        final Drawable errorDrawable = new ColorDrawable(0xFFFFCCCC); // Reddish light gray
-        errorDrawable.setBounds(0, 0, scaledAssumedSize, scaledAssumedSize);
-
-        Glide
-                .with(context)
-                .load(url)
-                .error(errorDrawable)
-                .placeholder(placeHolderDrawable)
-                .into(new CustomTarget<Drawable>() {
-                    @Override
-                    public void onLoadStarted(Drawable resource) {
-                        mDrawable = resource;
-                    }
-
-                    @Override
-                    public void onResourceReady(@NonNull Drawable resource, @Nullable Transition<? super Drawable> transition) {
-                        resource.setBounds(0, 0, Math.round(resource.getIntrinsicWidth() / scale), Math.round(resource.getIntrinsicHeight() / scale));
-
-                        if (resource instanceof Animatable) {
-                            animatable = (Animatable) resource;
-                            resource.setCallback(instance);
-
-                            animatable.start();
-                        }
-
-                        mDrawable = resource;
-
-                        if (resource.getIntrinsicWidth() != assumedSize) {
-                            textView.setText(textView.getText());
-                            Timber.tag("EmoteShift").d("Got " + resource.getIntrinsicWidth() + " but assumed " + assumedSize + " (" + url + ")");
-                        } else {
-                            textView.invalidate();
-                        }
-                    }
-
-
-                    @Override
-                    public void onLoadFailed(Drawable resource) {
-                        mDrawable = resource;
-                        textView.invalidate();
-                    }
-
-                    @Override
-                    public void onLoadCleared(@Nullable Drawable placeholder) {
-                        if (animatable != null) {
-                            animatable.stop();
-                        }
-
-                        mDrawable = placeholder;
-                        textView.invalidate();
-                    }
-                });
+        this.context = context;
+        this.url = url;
+        this.assumedSize = assumedSize;
+        this.scale = scale;
+
+        // Measure with the placeholder size until the span is attached, so the text can be laid out ahead of time.
+        // If the image loaded before, its size is already known and the text won't have to be measured again.
+        placeholder = new ColorDrawable(Color.LTGRAY);
+        Rect loadedBounds = EmoteDrawablePool.getLoadedBounds(url, scale);
+        if (loadedBounds != null) {
+            placeholder.setBounds(loadedBounds);
+        } else {
+            int scaledAssumedSize = Math.round(assumedSize / scale);
+            placeholder.setBounds(0, 0, scaledAssumedSize, scaledAssumedSize);
+        }
     }
 
-    @Override
-    public void invalidateDrawable(@NonNull Drawable drawable) {
-        textView.invalidate();
+    /**
+     * Attaches the spans to the view that displays them, replacing the spans the view showed before.
+     * Must be called on the main thread.
+     */
+    public static void attachAll(TextView textView, GlideImageSpan[] spans) {
+        EmoteDrawablePool pool = EmoteDrawablePool.getInstance();
+        pool.unregisterView(textView);
+
+        for (GlideImageSpan span : spans) {
+            if (span.entry == null || span.entry.isReleased())
+                span.entry = pool.obtain(span.context, span.url, span.assumedSize, span.scale);
+
+            pool.registerView(textView, span.entry);
+        }
     }
 
-    @Override
-    public void scheduleDrawable(@NonNull Drawable who, @NonNull Runnable what, long when) {
-        textView.postDelayed(what, when);
+    /**
+     * @return If the image has a different size than the one the text was measured with
+     */
+    public boolean hasSizeChanged() {
+        return entry != null && !entry.getDrawable().getBounds().equals(placeholder.getBounds());
     }
 
     @Override
-    public void unscheduleDrawable(@NonNull Drawable who, @NonNull Runnable what) {
-        textView.removeCallbacks(what);
+    protected void drawBackground(@NonNull Canvas canvas, @NonNull Rect bounds) {
+        if (backgroundPaint != null)
+            canvas.drawRect(bounds, backgroundPaint);
     }
 
     @Override
     public Drawable getDrawable() {
-        Drawable drawable = this.mDrawable != null ? this.mDrawable : super.getDrawable();
-
-        if (layerDrawable != null) {
-            layerDrawable.getDrawable(0).setBounds(drawable.getBounds());
-            layerDrawable.setBounds(drawable.getBounds());
-            layerDrawable.setDrawableByLayerId(1, drawable);
-
-            return layerDrawable;
-        }
+        if (entry == null)
+            return placeholder;
 
-        return drawable;
+        Drawable drawable = entry.getDrawable();
+        return drawable != null ? drawable : placeholder;
     }
 }
@@ -45,7 +45,14 @@ public class VerticalImageSpan extends ImageSpan {
         Drawable drawable = getDrawable();
         canvas.save();
         canvas.translate(x, y + yOffset);
+        drawBackground(canvas, drawable.getBounds());
         drawable.draw(canvas);
         canvas.restore();
     }
+
+    /**
+     * Draws behind the drawable, the canvas is already translated to the drawable's position.
+     */
+    protected void drawBackground(@NonNull Canvas canvas, @NonNull Rect bounds) {
+    }
 }
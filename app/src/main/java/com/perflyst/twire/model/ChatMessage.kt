@@ -1,38 +1,82 @@
 package com.perflyst.twire.model
 
-import com.perflyst.twire.chat.ChatManager
-import java.util.Locale
-
 
 data class ChatMessage(
     @JvmField val message: String,
     @JvmField val name: String,
     @JvmField val color: String?,
-    @JvmField val badges: MutableList<Badge?>,
-    @JvmField val emotes: Map<Int, Emote>,
+    @JvmField val badges: List<Badge?>,
+    /**
+     * Pairs of the position of an emote and its handle in the [EmoteRegistry], ordered by position.
+     */
+    @JvmField val emotes: IntArray,
     @JvmField var isHighlight: Boolean
 ) {
+    constructor(
+        message: String,
+        name: String,
+        color: String?,
+        badges: List<Badge?>,
+        emotes: Map<Int, Emote>,
+        isHighlight: Boolean
+    ) : this(message, name, color, badges, EmoteRegistry.pack(emotes), isHighlight)
+
     var id: String? = null
 
+    var userId: String? = null
+
+    @JvmField
+    var isDeleted: Boolean = false
+
+    /**
+     * If the message has a filtered phrase, it's shown without its text.
+     */
+    @JvmField
+    var isCollapsed: Boolean = false
+
+    /**
+     * The message as shown in chat, rendered once by the chat adapter.
+     */
+    @Volatile
+    @JvmField
+    var rendered: CharSequence? = null
+
+    /**
+     * If [rendered] was rendered for the lite chat, it's written before [rendered].
+     */
+    @Volatile
+    @JvmField
+    var renderedLite: Boolean = false
+
     @JvmField
     var systemMessage: String = ""
 
-    init {
-        if (ChatManager.ffzBadgeMap != null) {
-            // Load any special FFZ badges the user has
-            for (badge in ChatManager.ffzBadgeMap[name.lowercase(Locale.getDefault())]) {
-                if (badge.replaces != null) {
-                    for (i in badges.indices) {
-                        if (badges[i] != null && badges[i]!!.name == badge.replaces) {
-                            badges[i] = badge
-                            break
-                        }
-                    }
-                } else {
-                    badges.add(badge)
-                }
-            }
-        }
+    /**
+     * How many times the message was sent while chat was collapsing repeated messages.
+     */
+    @Volatile
+    @JvmField
+    var repeats: Int = 1
+
+    val emoteCount: Int
+        get() = emotes.size / 2
+
+    fun getEmotePosition(index: Int): Int {
+        return emotes[index * 2]
+    }
+
+    /**
+     * @return The [EmoteRegistry] handle of the emote
+     */
+    fun getEmoteHandle(index: Int): Int {
+        return emotes[index * 2 + 1]
+    }
+
+    /**
+     * @return The emote, or null if it was dropped from the [EmoteRegistry]
+     */
+    fun getEmote(index: Int): Emote? {
+        return EmoteRegistry.get(getEmoteHandle(index))
     }
 
     companion object {
@@ -6,9 +6,25 @@ import java.io.Serializable
  * Created by Sebastian Rask Jepsen on 28/07/16.
  */
 data class Emote(@JvmField val keyword: String) : Comparable<Emote>, Serializable {
+    // The url with "@id", "@size" and "@theme" placeholders. Emotes of a provider share one template, only the id is their own.
     private var urlParts: Array<out String>? = null
+    private var id: String? = null
+
+    // The sizes the template has urls for, bit n - 1 is set for size n. None means every size.
+    private var sizes: Int = 0
+
+    // Urls that don't follow a template, and the recent emotes saved before there were templates
     private var urlMap: HashMap<Int, String>? = null
 
+    /**
+     * The handle of the emote in the [EmoteRegistry], or 0 if it isn't registered.
+     * Emotes read back by Gson skip initializers, so 0 is the one value they can be trusted to have.
+     */
+    @Transient
+    @Volatile
+    @JvmField
+    var handle: Int = 0
+
     @JvmField
     var isSubscriberEmote: Boolean = false
 
@@ -31,15 +47,9 @@ data class Emote(@JvmField val keyword: String) : Comparable<Emote>, Serializabl
                 }
             }
         } else if (urlParts != null) {
-            return buildString {
-                for (part in urlParts!!) {
-                    when (part) {
-                        "@size" -> append(size)
-                        "@theme" -> append(if (isDarkTheme) "dark" else "light")
-                        else -> append(part)
-                    }
-                }
-            }
+            if (sizes != 0 && sizes and ((1 shl size) - 1) == 0) return null
+
+            return buildUrl(urlParts!!, id, getBestAvailableSize(size), isDarkTheme)
         }
 
         return null
@@ -56,9 +66,34 @@ data class Emote(@JvmField val keyword: String) : Comparable<Emote>, Serializabl
             return 1
         }
 
+        if (sizes != 0) {
+            for (i in size downTo 1) {
+                if (sizes and (1 shl (i - 1)) != 0) {
+                    return i
+                }
+            }
+
+            return 1
+        }
+
         return size
     }
 
+    /**
+     * The key the [EmoteRegistry] tells emotes apart by: the provider, the id, the flags and the keyword,
+     * since a Twitch emote id can be shown for more than one text. No url is built for it.
+     * The flags have to be set before the emote is interned.
+     */
+    fun getInternKey(): Any {
+        val flags = (if (isCustomChannelEmote) 1 else 0) or (if (isSubscriberEmote) 2 else 0)
+        // Emotes without a template are told apart by their smallest url, which they already have.
+        val provider = urlParts?.get(0)
+        val emoteId = if (urlParts != null) id else urlMap?.let { it[it.keys.minOrNull()] }
+        return InternKey(provider, emoteId, flags, keyword)
+    }
+
+    private data class InternKey(val provider: String?, val id: String?, val flags: Int, val keyword: String)
+
     override fun compareTo(other: Emote): Int {
         return if (this.isCustomChannelEmote && !other.isCustomChannelEmote) {
             -1
@@ -70,24 +105,76 @@ data class Emote(@JvmField val keyword: String) : Comparable<Emote>, Serializabl
     }
 
     companion object {
+        private val TWITCH_URL = arrayOf("https://static-cdn.jtvnw.net/emoticons/v2/", "@id", "/default/", "@theme", "/", "@size", ".0")
+        private val BTTV_URL = arrayOf("https://cdn.betterttv.net/emote/", "@id", "/", "@size", "x")
+
+        @JvmField
+        val FFZ_URL = arrayOf("https://cdn.frankerfacez.com/emote/", "@id", "/", "@size")
+
+        @JvmField
+        val SEVENTV_URL = arrayOf("https://cdn.7tv.app/emote/", "@id", "/", "@size", "x.webp")
+
         @JvmStatic
         fun Twitch(keyword: String, id: String): Emote {
-            return Emote(
-                keyword,
-                "https://static-cdn.jtvnw.net/emoticons/v2/$id/default/",
-                "@theme",
-                "/",
-                "@size",
-                ".0"
-            )
+            return Emote(keyword).apply {
+                urlParts = TWITCH_URL
+                this.id = id
+            }
         }
 
         @JvmStatic
         fun BTTV(keyword: String, id: String): Emote {
-            return Emote(
-                keyword,
-                "https://cdn.betterttv.net/emote/$id/", "@size", "x"
-            )
+            return Emote(keyword).apply {
+                urlParts = BTTV_URL
+                this.id = id
+            }
+        }
+
+        /**
+         * Creates an emote from the url of every size it has. If the urls follow the template only the id and the sizes are kept,
+         * otherwise the urls are.
+         */
+        @JvmStatic
+        fun fromUrls(keyword: String, urlParts: Array<out String>, id: String, urls: Map<Int, String>): Emote {
+            val emote = Emote(keyword)
+
+            var sizes = 0
+            var followsTemplate = true
+            for ((size, url) in urls) {
+                if (size !in 1..31) {
+                    followsTemplate = false
+                    break
+                }
+
+                sizes = sizes or (1 shl (size - 1))
+                if (url != buildUrl(urlParts, id, size, false)) {
+                    followsTemplate = false
+                    break
+                }
+            }
+
+            if (followsTemplate && sizes != 0) {
+                emote.urlParts = urlParts
+                emote.id = id
+                emote.sizes = sizes
+            } else {
+                emote.urlMap = HashMap(urls)
+            }
+
+            return emote
+        }
+
+        private fun buildUrl(urlParts: Array<out String>, id: String?, size: Int, isDarkTheme: Boolean): String {
+            return buildString {
+                for (part in urlParts) {
+                    when (part) {
+                        "@id" -> append(id)
+                        "@size" -> append(size)
+                        "@theme" -> append(if (isDarkTheme) "dark" else "light")
+                        else -> append(part)
+                    }
+                }
+            }
         }
     }
 }
@@ -0,0 +1,194 @@
+package com.perflyst.twire.model;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * The emotes chat uses, each kept once and known by a small integer handle.
+ * The emote sets of a provider are parsed again whenever they're refreshed, interning them drops the copies,
+ * and messages store the handles of their emotes instead of a map of emote objects.
+ * <p>
+ * The emote sets that are in use hold on to their emotes with {@link #acquire(List)} until they {@link #release(List)} them.
+ * Emotes nothing holds on to are kept for a while longer, as messages may still show them,
+ * and are dropped oldest first when there are too many. The handle of a dropped emote is never handed out again.
+ * Can be used from any thread.
+ */
+public final class EmoteRegistry {
+    private static final int[] EMPTY = new int[0];
+    // A handle is the slot in the low bits and how often the slot was used in the high bits.
+    private static final int SLOT_BITS = 16;
+    private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+    private static final int MAX_UNUSED = 2048;
+
+    // Guarded by the class
+    private static final Map<Object, Emote> emotesByKey = new HashMap<>();
+    private static final LinkedHashSet<Integer> unused = new LinkedHashSet<>();
+    private static int[] references = new int[256];
+    private static int[] uses = new int[256];
+    private static int[] freeSlots = new int[16];
+    private static int freeCount;
+    private static int slotCount = 1;
+    // Slot 0 is never used, so 0 is never a handle.
+    // A handle is checked against the emote in its slot, so reading doesn't need the lock.
+    private static volatile Emote[] emotes = new Emote[256];
+
+    private EmoteRegistry() {
+    }
+
+    /**
+     * Gets the registered emote that is the same as this one, registering it if there's none.
+     * The emote is kept for a while, unless it's acquired it can be dropped once enough other emotes are unused.
+     *
+     * @return The registered emote, the emote itself if it's new
+     */
+    public static Emote intern(Emote emote) {
+        if (emote.handle != 0) return emote;
+
+        Object key = emote.getInternKey();
+        synchronized (EmoteRegistry.class) {
+            return register(emote, key);
+        }
+    }
+
+    /**
+     * Interns the emotes of a set and holds on to them until they are released.
+     *
+     * @return The registered emotes, in the same order
+     */
+    public static List<Emote> acquire(List<Emote> emotes) {
+        List<Emote> registered = new ArrayList<>(emotes.size());
+        synchronized (EmoteRegistry.class) {
+            for (Emote emote : emotes) {
+                registered.add(acquire(emote));
+            }
+        }
+
+        return registered;
+    }
+
+    public static synchronized Emote acquire(Emote emote) {
+        Emote registered = emote.handle != 0 ? emote : register(emote, emote.getInternKey());
+        int slot = registered.handle & SLOT_MASK;
+        if (slot != 0 && references[slot]++ == 0) unused.remove(slot);
+
+        return registered;
+    }
+
+    /**
+     * Lets go of emotes returned by {@link #acquire(List)}.
+     */
+    public static synchronized void release(List<Emote> emotes) {
+        for (Emote emote : emotes) {
+            release(emote);
+        }
+    }
+
+    public static synchronized void release(Emote emote) {
+        int slot = emote.handle & SLOT_MASK;
+        if (slot == 0 || references[slot] == 0 || --references[slot] > 0) return;
+
+        unused.add(slot);
+        trimUnused();
+    }
+
+    /**
+     * @return The emote with the handle, or null if it was dropped
+     */
+    @Nullable
+    public static Emote get(int handle) {
+        Emote emote = emotes[handle & SLOT_MASK];
+        return emote != null && emote.handle == handle ? emote : null;
+    }
+
+    /**
+     * Packs the emotes of a message into pairs of their position and handle, ordered by position.
+     */
+    public static int[] pack(Map<Integer, Emote> emotes) {
+        if (emotes.isEmpty()) return EMPTY;
+
+        int[] packed = new int[emotes.size() * 2];
+        int count = 0;
+        for (Entry<Integer, Emote> entry : emotes.entrySet()) {
+            int handle = intern(entry.getValue()).handle;
+            if (handle == 0) continue;
+
+            // Insertion sort on the positions, a message only has a few emotes.
+            int position = entry.getKey();
+            int i = count;
+            while (i > 0 && packed[(i - 1) * 2] > position) {
+                packed[i * 2] = packed[(i - 1) * 2];
+                packed[i * 2 + 1] = packed[(i - 1) * 2 + 1];
+                i--;
+            }
+            packed[i * 2] = position;
+            packed[i * 2 + 1] = handle;
+            count++;
+        }
+
+        return count * 2 == packed.length ? packed : Arrays.copyOf(packed, count * 2);
+    }
+
+    private static Emote register(Emote emote, Object key) {
+        Emote registered = emotesByKey.get(key);
+        if (registered != null) return registered;
+
+        int slot = takeSlot();
+        // Every slot is held on to, the emote is used without a handle.
+        if (slot == 0) return emote;
+
+        uses[slot] = (uses[slot] + 1) & (Integer.MAX_VALUE >>> SLOT_BITS);
+        emote.handle = uses[slot] << SLOT_BITS | slot;
+        emotes[slot] = emote;
+        emotesByKey.put(key, emote);
+
+        unused.add(slot);
+        trimUnused();
+        return emote;
+    }
+
+    private static int takeSlot() {
+        if (freeCount > 0) return freeSlots[--freeCount];
+
+        if (slotCount <= SLOT_MASK) {
+            if (slotCount == emotes.length) {
+                int capacity = Math.min(emotes.length * 2, SLOT_MASK + 1);
+                references = Arrays.copyOf(references, capacity);
+                uses = Arrays.copyOf(uses, capacity);
+                emotes = Arrays.copyOf(emotes, capacity);
+            }
+
+            return slotCount++;
+        }
+
+        if (unused.isEmpty()) return 0;
+
+        int slot = unused.iterator().next();
+        drop(slot);
+        return freeSlots[--freeCount];
+    }
+
+    private static void trimUnused() {
+        while (unused.size() > MAX_UNUSED) {
+            drop(unused.iterator().next());
+        }
+    }
+
+    private static void drop(int slot) {
+        unused.remove(slot);
+
+        Emote emote = emotes[slot];
+        emotesByKey.remove(emote.getInternKey());
+        emotes[slot] = null;
+        emote.handle = 0;
+
+        if (freeCount == freeSlots.length) freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+        freeSlots[freeCount++] = slot;
+    }
+}
@@ -72,10 +72,17 @@ object Settings {
     private const val CHAT_ENABLE_SSL = "chatEnableSSL"
     private const val CHAT_ACCOUNT_CONNECT = "chatAccountConnect"
     private const val CHAT_RECENT_EMOTES = "chatRecentEmotes"
+    private const val CHAT_EMOTE_USAGE = "chatEmoteUsage"
     private const val CHAT_KEYBOARD_HEIGHT = "chatKeyboardHeight"
     private const val CHAT_EMOTE_BTTV = "chatEmoteBTTV"
     private const val CHAT_EMOTE_FFZ = "chatEmoteFFZ"
     private const val CHAT_EMOTE_SEVENTV = "chatEmoteSEVENTV"
+    private const val CHAT_BATCH_LATENCY = "chatBatchLatency"
+    private const val CHAT_SCROLLBACK = "chatScrollback"
+    private const val CHAT_HIGHLIGHT_WORDS = "chatHighlightWords"
+    private const val CHAT_IGNORED_USERS = "chatIgnoredUsers"
+    private const val CHAT_FILTERED_PHRASES = "chatFilteredPhrases"
+    private const val CHAT_LITE_MODE = "chatLiteMode"
     private const val NOTIFY_LIVE = "notifyUserLive"
     private const val LAST_START_UP_VERSION_CODE = "lastStartUpVersionCode"
     private const val SHOW_CHANGELOGS = "showChangelogs"
@@ -196,6 +203,22 @@ object Settings {
         )
         set(value) = preferences.edit { putString(CHAT_RECENT_EMOTES, Gson().toJson(value)) }
 
+    /**
+     * Emotes - how many times the user has sent each emote keyword
+     */
+    @JvmStatic
+    var emoteUsage: HashMap<String, Int>?
+        get() = Gson().fromJson(
+            preferences.getString(
+                CHAT_EMOTE_USAGE,
+                ""
+            ),
+            object :
+                TypeToken<HashMap<String, Int>?>() {
+            }.type
+        )
+        set(value) = preferences.edit { putString(CHAT_EMOTE_USAGE, Gson().toJson(value)) }
+
     /**
      * Appearance - The size of the Game Card.
      */
@@ -522,6 +545,42 @@ object Settings {
     @JvmStatic
     var chatEmoteSEVENTV by Pref(CHAT_EMOTE_SEVENTV, false)
 
+    /**
+     * Chat - The longest time in milliseconds incoming messages are held back to be shown together
+     */
+    @JvmStatic
+    var chatBatchLatency by Pref(CHAT_BATCH_LATENCY, 100)
+
+    /**
+     * Chat - The amount of messages kept in the chat
+     */
+    @JvmStatic
+    var chatScrollback by Pref(CHAT_SCROLLBACK, 500)
+
+    /**
+     * Chat - Words that highlight a message, one per line
+     */
+    @JvmStatic
+    var chatHighlightWords by Pref(CHAT_HIGHLIGHT_WORDS, "")
+
+    /**
+     * Chat - Users whose messages aren't shown, one per line
+     */
+    @JvmStatic
+    var chatIgnoredUsers by Pref(CHAT_IGNORED_USERS, "")
+
+    /**
+     * Chat - Phrases that hide the text of a message, one per line
+     */
+    @JvmStatic
+    var chatFilteredPhrases by Pref(CHAT_FILTERED_PHRASES, "")
+
+    /**
+     * Chat - When to use the lite chat: automatically when chat drops frames, always or never
+     */
+    @JvmStatic
+    var chatLiteMode by Pref(CHAT_LITE_MODE, 0)
+
     /**
      * Chat - Connect with Account
      */
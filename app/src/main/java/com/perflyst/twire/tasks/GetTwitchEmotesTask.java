@@ -2,6 +2,7 @@ package com.perflyst.twire.tasks;
 
 import com.perflyst.twire.TwireApplication;
 import com.perflyst.twire.model.Emote;
+import com.perflyst.twire.model.EmoteRegistry;
 import com.perflyst.twire.utils.Execute;
 
 import java.util.ArrayList;
@@ -31,10 +32,10 @@ public class GetTwitchEmotesTask implements Runnable {
         for (var emoteData : emotes) {
             Emote emote = Emote.Twitch(emoteData.getName(), emoteData.getId());
             if (Objects.equals(emoteData.getEmoteSetId(), "0")) {
-                twitchEmotes.add(emote);
+                twitchEmotes.add(EmoteRegistry.intern(emote));
             } else {
                 emote.isSubscriberEmote = true;
-                subscriberEmotes.add(emote);
+                subscriberEmotes.add(EmoteRegistry.intern(emote));
             }
         }
         Collections.sort(twitchEmotes);
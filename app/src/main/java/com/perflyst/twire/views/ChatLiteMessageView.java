@@ -0,0 +1,115 @@
+package com.perflyst.twire.views;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.os.Build;
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.view.MotionEvent;
+import android.view.View;
+
+import androidx.annotation.NonNull;
+
+import com.perflyst.twire.misc.EmoteAtlas;
+
+/**
+ * A chat row for the lite chat, which lays out and draws its text itself instead of being a TextView.
+ * Emotes are drawn from the {@link EmoteAtlas}. Links aren't tappable spans,
+ * instead the row remembers where it was touched so a tap can be resolved to the text under it.
+ */
+public class ChatLiteMessageView extends View {
+    private final TextPaint paint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+    private EmoteAtlas atlas;
+    private CharSequence text = "";
+    private Layout layout;
+    private float touchX, touchY;
+
+    public ChatLiteMessageView(Context context) {
+        super(context);
+    }
+
+    public void setTextSize(float size) {
+        paint.setTextSize(size);
+        layout = null;
+    }
+
+    public void setTextColor(int color) {
+        paint.setColor(color);
+    }
+
+    public void setAtlas(EmoteAtlas atlas) {
+        this.atlas = atlas;
+    }
+
+    public void setText(CharSequence text) {
+        this.text = text;
+        layout = null;
+        requestLayout();
+        invalidate();
+    }
+
+    public CharSequence getText() {
+        return text;
+    }
+
+    /**
+     * @return The offset in the text that was last touched, or -1 if there is none
+     */
+    public int getTouchedOffset() {
+        if (layout == null) return -1;
+
+        int line = layout.getLineForVertical(Math.round(touchY) - getPaddingTop());
+        float x = touchX - getPaddingLeft();
+        if (x < layout.getLineLeft(line) || x > layout.getLineRight(line)) return -1;
+
+        return layout.getOffsetForHorizontal(line, x);
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int width = MeasureSpec.getSize(widthMeasureSpec);
+        int textWidth = Math.max(0, width - getPaddingLeft() - getPaddingRight());
+        if (layout == null || layout.getWidth() != textWidth) {
+            layout = createLayout(textWidth);
+        }
+
+        setMeasuredDimension(width, layout.getHeight() + getPaddingTop() + getPaddingBottom());
+    }
+
+    @SuppressWarnings("deprecation")
+    private Layout createLayout(int width) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            return StaticLayout.Builder.obtain(text, 0, text.length(), paint, width)
+                    .setBreakStrategy(Layout.BREAK_STRATEGY_SIMPLE)
+                    .build();
+        }
+
+        return new StaticLayout(text, paint, width, Layout.Alignment.ALIGN_NORMAL, 1, 0, false);
+    }
+
+    @Override
+    protected void onDraw(@NonNull Canvas canvas) {
+        if (layout == null) return;
+
+        canvas.save();
+        canvas.translate(getPaddingLeft(), getPaddingTop());
+        if (atlas != null) atlas.setDrawingView(this);
+        layout.draw(canvas);
+        if (atlas != null) atlas.setDrawingView(null);
+        canvas.restore();
+    }
+
+    @SuppressLint("ClickableViewAccessibility")
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (event.getActionMasked() == MotionEvent.ACTION_DOWN) {
+            touchX = event.getX();
+            touchY = event.getY();
+        }
+
+        return super.onTouchEvent(event);
+    }
+}